@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2011 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+package org.esa.beam.chris.operators.internal;
+
+import org.esa.beam.util.math.Array;
+
+import java.nio.FloatBuffer;
+
+/**
+ * Array backed by a float buffer, which typically is a view of a memory-mapped
+ * file. The buffer is accessed by absolute indexes only, so instances of this
+ * class can be shared between threads.
+ *
+ * @author Ralf Quast
+ * @version $Revision$ $Date$
+ * @since BEAM 4.2
+ */
+class FloatBufferArray implements Array {
+
+    private final FloatBuffer buffer;
+
+    FloatBufferArray(FloatBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    @Override
+    public final int getLength() {
+        return buffer.limit();
+    }
+
+    @Override
+    public final double getValue(int i) {
+        return buffer.get(i);
+    }
+
+    @Override
+    public final void copyTo(int srcPos, double[] dest, int destPos, int length) {
+        for (int i = 0; i < length; ++i) {
+            dest[destPos + i] = buffer.get(srcPos + i);
+        }
+    }
+}
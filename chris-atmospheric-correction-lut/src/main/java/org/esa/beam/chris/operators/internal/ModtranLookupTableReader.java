@@ -19,15 +19,39 @@ import org.esa.beam.util.math.Array;
 import org.esa.beam.util.math.IntervalPartition;
 import org.esa.beam.util.math.VectorLookupTable;
 
+import org.esa.beam.util.SystemUtils;
+
 import javax.imageio.stream.FileCacheImageInputStream;
 import javax.imageio.stream.ImageInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.lang.ref.SoftReference;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
 import java.text.MessageFormat;
+import java.util.jar.JarEntry;
 
 /**
  * Reader for the MODTRAN lookup table.
+ * <p/>
+ * Besides reading the lookup table resource into the heap, this class can
+ * extract a pre-scaled copy of the lookup table in native byte order into a
+ * cache directory. The cached copy is memory-mapped read-only and backs the
+ * lookup tables directly, so it is neither parsed nor copied. The header of
+ * the cached copy includes a fingerprint of the lookup table resource, so the
+ * copy is extracted again when the resource has changed. The table
+ * returned by {@link #getSharedModtranLookupTable()} is shared by all clients
+ * within the JVM and is softly referenced.
  *
  * @author Ralf Quast
  * @version $Revision: 2585 $ $Date: 2008-07-10 13:03:14 +0200 (Do, 10 Jul 2008) $
@@ -39,41 +63,368 @@ public class ModtranLookupTableReader {
     // unit conversion constant
     static final double DEKA_KILO = 1.0E4;
 
-    @SuppressWarnings({"ConstantConditions"})
+    // identifies (and versions) the format of the cached lookup table
+    private static final int CACHE_MAGIC = 0x43484c32;
+    // the number of header entries of the cached lookup table
+    private static final int CACHE_HEADER_COUNT = 12;
+    // the number of floats written at once when extracting the lookup table
+    private static final int CHUNK_SIZE = 65536;
+
+    private static SoftReference<ModtranLookupTable> sharedTableReference;
+
+    private final URL resourceUrl;
+
+    /**
+     * Creates a reader for the lookup table resource.
+     */
+    public ModtranLookupTableReader() {
+        this(ModtranLookupTableReader.class.getResource(LUT_FILE_NAME));
+    }
+
+    /**
+     * Creates a reader for the lookup table resource at the URL supplied as
+     * argument.
+     *
+     * @param resourceUrl the URL of the lookup table resource, may be {@code null}
+     *                    if the resource does not exist.
+     */
+    ModtranLookupTableReader(URL resourceUrl) {
+        this.resourceUrl = resourceUrl;
+    }
+
+    /**
+     * Returns the MODTRAN lookup table shared within the JVM. The shared table
+     * is memory-mapped from the cache directory of the application. When the
+     * cache directory cannot be written, the table is read into the heap.
+     *
+     * @return the shared MODTRAN lookup table.
+     *
+     * @throws IOException if the lookup table could not be read.
+     */
+    public static synchronized ModtranLookupTable getSharedModtranLookupTable() throws IOException {
+        ModtranLookupTable table = null;
+        if (sharedTableReference != null) {
+            table = sharedTableReference.get();
+        }
+        if (table == null) {
+            final File cacheDir = new File(SystemUtils.getApplicationDataDir(), "chris-box/cache");
+            table = new ModtranLookupTableReader().readModtranLookupTableOrFallBack(cacheDir);
+            sharedTableReference = new SoftReference<ModtranLookupTable>(table);
+        }
+
+        return table;
+    }
+
+    /**
+     * Reads the MODTRAN lookup table into the heap.
+     *
+     * @return the MODTRAN lookup table.
+     *
+     * @throws IOException if the lookup table could not be read.
+     */
     public ModtranLookupTable readModtranLookupTable() throws IOException {
+        final Content content = readContent();
+
+        return createModtranLookupTable(content.wavelengths, content.vza, content.sza, content.alt, content.aot,
+                                        content.ada, content.cwv, content.parameterCountA, content.parameterCountB,
+                                        new Array.Float(content.valuesA), new Array.Float(content.valuesB));
+    }
+
+    /**
+     * Reads the MODTRAN lookup table by memory-mapping the pre-scaled copy in
+     * the cache directory supplied as argument. When the copy cannot be mapped,
+     * the lookup table is read into the heap.
+     *
+     * @param cacheDir the cache directory.
+     *
+     * @return the MODTRAN lookup table.
+     *
+     * @throws IOException if the lookup table could not be read.
+     */
+    ModtranLookupTable readModtranLookupTableOrFallBack(File cacheDir) throws IOException {
+        try {
+            return readModtranLookupTable(cacheDir);
+        } catch (IOException e) {
+            return readModtranLookupTable();
+        }
+    }
+
+    /**
+     * Reads the MODTRAN lookup table by memory-mapping the pre-scaled copy in
+     * the cache directory supplied as argument. The copy is extracted from the
+     * lookup table resource when it does not exist or has been extracted from
+     * a different resource.
+     *
+     * @param cacheDir the cache directory.
+     *
+     * @return the MODTRAN lookup table.
+     *
+     * @throws IOException if the lookup table could not be extracted or mapped.
+     */
+    public ModtranLookupTable readModtranLookupTable(File cacheDir) throws IOException {
+        final File cacheFile = new File(cacheDir, getCacheFileName());
+        final long fingerprint = getResourceFingerprint();
+
+        if (!cacheFile.isFile()) {
+            extract(cacheDir, cacheFile, fingerprint);
+        }
+        try {
+            return mapModtranLookupTable(cacheFile, fingerprint);
+        } catch (IOException e) {
+            // the cached copy is not valid or outdated, extract it again
+            if (!cacheFile.delete()) {
+                throw e;
+            }
+            extract(cacheDir, cacheFile, fingerprint);
+            return mapModtranLookupTable(cacheFile, fingerprint);
+        }
+    }
+
+    static String getCacheFileName() {
+        final String baseName = LUT_FILE_NAME.substring(0, LUT_FILE_NAME.lastIndexOf('.'));
+
+        return MessageFormat.format("{0}-{1}.bin", baseName, ByteOrder.nativeOrder().toString().toLowerCase());
+    }
+
+    /**
+     * Returns a fingerprint of the lookup table resource, which is derived from
+     * the size and the CRC or modification time of the resource.
+     *
+     * @return the fingerprint.
+     *
+     * @throws IOException if the resource does not exist.
+     */
+    long getResourceFingerprint() throws IOException {
+        if (resourceUrl == null) {
+            throw new IOException(MessageFormat.format("resource {0} not found", LUT_FILE_NAME));
+        }
+        if ("file".equals(resourceUrl.getProtocol())) {
+            try {
+                final File file = new File(resourceUrl.toURI());
+                return 31L * file.length() + file.lastModified();
+            } catch (URISyntaxException e) {
+                throw new IOException(e);
+            }
+        }
+        final URLConnection connection = resourceUrl.openConnection();
+        if (connection instanceof JarURLConnection) {
+            final JarEntry entry = ((JarURLConnection) connection).getJarEntry();
+            return 31L * entry.getSize() + entry.getCrc();
+        }
+        final long fingerprint = 31L * connection.getContentLength() + connection.getLastModified();
+        try {
+            connection.getInputStream().close();
+        } catch (IOException e) {
+            // ignore
+        }
+
+        return fingerprint;
+    }
+
+    private void extract(File cacheDir, File cacheFile, long fingerprint) throws IOException {
+        if (!cacheDir.isDirectory() && !cacheDir.mkdirs()) {
+            throw new IOException(MessageFormat.format("could not create directory {0}", cacheDir));
+        }
+
+        final Content content = readContent();
+        final File tempFile = File.createTempFile(cacheFile.getName(), null, cacheDir);
+        try {
+            // the temporary file is not mapped, so it can be renamed on any platform
+            write(content, fingerprint, tempFile);
+            // another process may have extracted the lookup table meanwhile
+            if (!tempFile.renameTo(cacheFile) && !cacheFile.isFile()) {
+                throw new IOException(MessageFormat.format("could not create file {0}", cacheFile));
+            }
+        } finally {
+            if (tempFile.exists() && !tempFile.delete()) {
+                tempFile.deleteOnExit();
+            }
+        }
+    }
+
+    private static void write(Content content, long fingerprint, File file) throws IOException {
+        final float[][] arrays = {
+                content.wavelengths, content.vza, content.sza, content.alt, content.aot, content.ada, content.cwv,
+                content.valuesA, content.valuesB
+        };
+
+        final FileOutputStream fos = new FileOutputStream(file);
+        try {
+            final FileChannel channel = fos.getChannel();
+
+            final ByteBuffer header = ByteBuffer.allocate(4 * CACHE_HEADER_COUNT).order(ByteOrder.nativeOrder());
+            header.putInt(CACHE_MAGIC);
+            for (int i = 0; i < 7; ++i) {
+                header.putInt(arrays[i].length);
+            }
+            header.putInt(content.parameterCountA);
+            header.putInt(content.parameterCountB);
+            header.putLong(fingerprint);
+            header.flip();
+            writeFully(channel, header);
+
+            final ByteBuffer chunk = ByteBuffer.allocate(4 * CHUNK_SIZE).order(ByteOrder.nativeOrder());
+            for (final float[] array : arrays) {
+                for (int i = 0; i < array.length; i += CHUNK_SIZE) {
+                    final int length = Math.min(CHUNK_SIZE, array.length - i);
+                    chunk.clear();
+                    chunk.asFloatBuffer().put(array, i, length);
+                    chunk.limit(4 * length);
+                    writeFully(channel, chunk);
+                }
+            }
+            channel.force(false);
+        } finally {
+            try {
+                fos.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static ModtranLookupTable mapModtranLookupTable(File file, long fingerprint) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+        try {
+            final FileChannel channel = raf.getChannel();
+            // the mapping remains valid after the channel has been closed
+            final ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buffer.order(ByteOrder.nativeOrder());
+
+            if (buffer.remaining() < 4 * CACHE_HEADER_COUNT) {
+                throw new IOException(MessageFormat.format("invalid lookup table file {0}", file));
+            }
+            final IntBuffer header = buffer.asIntBuffer();
+            if (header.get(0) != CACHE_MAGIC) {
+                throw new IOException(MessageFormat.format("invalid lookup table file {0}", file));
+            }
+            final int wavelengthCount = header.get(1);
+            final int vzaCount = header.get(2);
+            final int szaCount = header.get(3);
+            final int altCount = header.get(4);
+            final int aotCount = header.get(5);
+            final int adaCount = header.get(6);
+            final int cwvCount = header.get(7);
+            final int parameterCountA = header.get(8);
+            final int parameterCountB = header.get(9);
+            if (buffer.getLong(4 * 10) != fingerprint) {
+                throw new IOException(MessageFormat.format("outdated lookup table file {0}", file));
+            }
+
+            final long valueCountA = (long) parameterCountA * wavelengthCount * adaCount * aotCount * altCount * szaCount * vzaCount;
+            final long valueCountB = (long) parameterCountB * wavelengthCount * cwvCount * aotCount * altCount * szaCount * vzaCount;
+            final long size = 4L * (CACHE_HEADER_COUNT + wavelengthCount + vzaCount + szaCount + altCount + aotCount + adaCount + cwvCount + valueCountA + valueCountB);
+            if (size != buffer.capacity()) {
+                throw new IOException(MessageFormat.format("invalid lookup table file {0}", file));
+            }
+
+            buffer.position(4 * CACHE_HEADER_COUNT);
+            final float[] wavelengths = getFloats(buffer, wavelengthCount);
+            final float[] vza = getFloats(buffer, vzaCount);
+            final float[] sza = getFloats(buffer, szaCount);
+            final float[] alt = getFloats(buffer, altCount);
+            final float[] aot = getFloats(buffer, aotCount);
+            final float[] ada = getFloats(buffer, adaCount);
+            final float[] cwv = getFloats(buffer, cwvCount);
+            final FloatBuffer valuesA = sliceFloats(buffer, (int) valueCountA);
+            final FloatBuffer valuesB = sliceFloats(buffer, (int) valueCountB);
+
+            return createModtranLookupTable(wavelengths, vza, sza, alt, aot, ada, cwv, parameterCountA,
+                                            parameterCountB, new FloatBufferArray(valuesA),
+                                            new FloatBufferArray(valuesB));
+        } finally {
+            try {
+                raf.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    private static float[] getFloats(ByteBuffer buffer, int count) {
+        final float[] floats = new float[count];
+        buffer.asFloatBuffer().get(floats);
+        buffer.position(buffer.position() + 4 * count);
+
+        return floats;
+    }
+
+    private static FloatBuffer sliceFloats(ByteBuffer buffer, int count) {
+        final ByteBuffer slice = buffer.slice().order(buffer.order());
+        slice.limit(4 * count);
+        buffer.position(buffer.position() + 4 * count);
+
+        return slice.asFloatBuffer().asReadOnlyBuffer();
+    }
+
+    private static ModtranLookupTable createModtranLookupTable(float[] wavelengths,
+                                                               float[] vza,
+                                                               float[] sza,
+                                                               float[] alt,
+                                                               float[] aot,
+                                                               float[] ada,
+                                                               float[] cwv,
+                                                               int parameterCountA,
+                                                               int parameterCountB,
+                                                               Array valuesA,
+                                                               Array valuesB) {
+        final int wavelengthCount = wavelengths.length;
+
+        // create lookup tables
+        final IntervalPartition[] partitionsA = IntervalPartition.createArray(vza, sza, alt, aot, ada);
+        final IntervalPartition[] partitionsB = IntervalPartition.createArray(vza, sza, alt, aot, cwv);
+        final VectorLookupTable lutA = new VectorLookupTable(wavelengthCount * parameterCountA, valuesA,
+                                                             partitionsA);
+        final VectorLookupTable lutB = new VectorLookupTable(wavelengthCount * parameterCountB, valuesB,
+                                                             partitionsB);
+
+        return new ModtranLookupTable(new Array.Float(wavelengths), lutA, lutB);
+    }
+
+    @SuppressWarnings({"ConstantConditions"})
+    private Content readContent() throws IOException {
         final ImageInputStream iis = getResourceAsImageInputStream(LUT_FILE_NAME);
         iis.setByteOrder(ByteOrder.LITTLE_ENDIAN);
 
         try {
+            final Content content = new Content();
+
             // read spectral wavelengths
             final int wavelengthCount = iis.readShort();
-            final float[] wavelengths = new float[wavelengthCount];
-            iis.readFully(wavelengths, 0, wavelengthCount);
+            content.wavelengths = new float[wavelengthCount];
+            iis.readFully(content.wavelengths, 0, wavelengthCount);
 
             // read view zenith angles
             final short vzaCount = iis.readShort();
-            final float[] vza = new float[vzaCount];
-            iis.readFully(vza, 0, vzaCount);
+            content.vza = new float[vzaCount];
+            iis.readFully(content.vza, 0, vzaCount);
             // read sun zenith angles
             final short szaCount = iis.readShort();
-            final float[] sza = new float[szaCount];
-            iis.readFully(sza, 0, szaCount);
+            content.sza = new float[szaCount];
+            iis.readFully(content.sza, 0, szaCount);
             // read altitudes
             final short altCount = iis.readShort();
-            final float[] alt = new float[altCount];
-            iis.readFully(alt, 0, altCount);
+            content.alt = new float[altCount];
+            iis.readFully(content.alt, 0, altCount);
             // read aerosol optical thicknesses
             final short aotCount = iis.readShort();
-            final float[] aot = new float[aotCount];
-            iis.readFully(aot, 0, aotCount);
+            content.aot = new float[aotCount];
+            iis.readFully(content.aot, 0, aotCount);
             // read relative azimuth angles
             final short adaCount = iis.readShort();
-            final float[] ada = new float[adaCount];
-            iis.readFully(ada, 0, adaCount);
+            content.ada = new float[adaCount];
+            iis.readFully(content.ada, 0, adaCount);
             // read water vapour columns
             final short cwvCount = iis.readShort();
-            final float[] cwv = new float[cwvCount];
-            iis.readFully(cwv, 0, cwvCount);
+            content.cwv = new float[cwvCount];
+            iis.readFully(content.cwv, 0, cwvCount);
 
             // read number of lookup table parameters
             final int parameterCountA = iis.readShort();
@@ -98,15 +449,12 @@ public class ModtranLookupTableReader {
                 valuesB[j] *= DEKA_KILO;
             }
 
-            // create lookup tables
-            final IntervalPartition[] partitionsA = IntervalPartition.createArray(vza, sza, alt, aot, ada);
-            final IntervalPartition[] partitionsB = IntervalPartition.createArray(vza, sza, alt, aot, cwv);
-            final VectorLookupTable lutA = new VectorLookupTable(wavelengthCount * parameterCountA, valuesA,
-                                                                 partitionsA);
-            final VectorLookupTable lutB = new VectorLookupTable(wavelengthCount * parameterCountB, valuesB,
-                                                                 partitionsB);
+            content.parameterCountA = parameterCountA;
+            content.parameterCountB = parameterCountB;
+            content.valuesA = valuesA;
+            content.valuesB = valuesB;
 
-            return new ModtranLookupTable(new Array.Float(wavelengths), lutA, lutB);
+            return content;
         } catch (Exception e) {
             throw new IOException("could not read MODTRAN lookup table for atmospheric correction", e);
         } finally {
@@ -119,12 +467,27 @@ public class ModtranLookupTableReader {
     }
 
     private ImageInputStream getResourceAsImageInputStream(String name) throws IOException {
-        final InputStream is = getClass().getResourceAsStream(name);
-
-        if (is == null) {
+        if (resourceUrl == null) {
             throw new IOException(MessageFormat.format("resource {0} not found", name));
         }
+        final InputStream is = resourceUrl.openStream();
 
         return new FileCacheImageInputStream(is, null);
     }
+
+    // the scaled content of the lookup table resource
+    private static class Content {
+
+        float[] wavelengths;
+        float[] vza;
+        float[] sza;
+        float[] alt;
+        float[] aot;
+        float[] ada;
+        float[] cwv;
+        int parameterCountA;
+        int parameterCountB;
+        float[] valuesA;
+        float[] valuesB;
+    }
 }
@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2011 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+package org.esa.beam.chris.operators.internal;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for class {@link ModtranLookupTableReader}, using a small synthetic
+ * lookup table resource.
+ *
+ * @author Ralf Quast
+ * @version $Revision$ $Date$
+ */
+public class ModtranLookupTableReaderTest {
+
+    private static final float[] WAVELENGTHS = {400.0f, 500.0f, 600.0f};
+    private static final float[] VZA = {0.0f, 20.0f};
+    private static final float[] SZA = {0.0f, 30.0f};
+    private static final float[] ALT = {0.0f, 1.0f};
+    private static final float[] AOT = {0.1f, 0.2f};
+    private static final float[] ADA = {0.0f, 90.0f};
+    private static final float[] CWV = {0.5f, 1.5f};
+    private static final int PARAMETER_COUNT_A = 1;
+    private static final int PARAMETER_COUNT_B = 4;
+
+    private File tempDir;
+    private File resourceFile;
+    private File cacheDir;
+
+    @Before
+    public void createTempDir() throws Exception {
+        tempDir = File.createTempFile("lut", "");
+        assertTrue(tempDir.delete());
+        assertTrue(tempDir.mkdir());
+
+        resourceFile = new File(tempDir, ModtranLookupTableReader.LUT_FILE_NAME);
+        cacheDir = new File(tempDir, "cache");
+    }
+
+    @After
+    public void deleteTempDir() throws Exception {
+        delete(tempDir);
+    }
+
+    @Test
+    public void extractAndMapCachedCopy() throws IOException {
+        writeResource(resourceFile, 1.0f);
+        final ModtranLookupTableReader reader = createReader();
+
+        final ModtranLookupTable mappedTable = reader.readModtranLookupTable(cacheDir);
+        assertTrue(new File(cacheDir, ModtranLookupTableReader.getCacheFileName()).isFile());
+
+        assertSameTable(reader.readModtranLookupTable(), mappedTable);
+    }
+
+    @Test
+    public void cachedCopyIsReused() throws IOException {
+        writeResource(resourceFile, 1.0f);
+        final ModtranLookupTableReader reader = createReader();
+        reader.readModtranLookupTable(cacheDir);
+
+        final File cacheFile = new File(cacheDir, ModtranLookupTableReader.getCacheFileName());
+        assertTrue(cacheFile.setLastModified(1000000000000L));
+
+        reader.readModtranLookupTable(cacheDir);
+        assertEquals(1000000000000L, cacheFile.lastModified());
+    }
+
+    @Test
+    public void invalidCachedCopyIsReplaced() throws IOException {
+        writeResource(resourceFile, 1.0f);
+        final ModtranLookupTableReader reader = createReader();
+
+        assertTrue(cacheDir.mkdir());
+        final File cacheFile = new File(cacheDir, ModtranLookupTableReader.getCacheFileName());
+        final FileOutputStream fos = new FileOutputStream(cacheFile);
+        try {
+            fos.write(new byte[64]);
+        } finally {
+            fos.close();
+        }
+
+        assertSameTable(reader.readModtranLookupTable(), reader.readModtranLookupTable(cacheDir));
+    }
+
+    @Test
+    public void changedResourceIsDetected() throws IOException {
+        writeResource(resourceFile, 1.0f);
+        final ModtranLookupTable oldTable = createReader().readModtranLookupTable(cacheDir);
+        final long lastModified = resourceFile.lastModified();
+
+        writeResource(resourceFile, 2.0f);
+        assertTrue(resourceFile.setLastModified(lastModified + 10000L));
+        final ModtranLookupTableReader reader = createReader();
+        final ModtranLookupTable newTable = reader.readModtranLookupTable(cacheDir);
+
+        assertSameTable(reader.readModtranLookupTable(), newTable);
+        assertFalse(getValueA(oldTable) == getValueA(newTable));
+    }
+
+    @Test
+    public void fallBackToHeapWhenCacheIsUnavailable() throws IOException {
+        writeResource(resourceFile, 1.0f);
+        final ModtranLookupTableReader reader = createReader();
+
+        // the cache directory cannot be created, because a file of the same name exists
+        final FileOutputStream fos = new FileOutputStream(cacheDir);
+        fos.close();
+
+        try {
+            reader.readModtranLookupTable(cacheDir);
+            fail();
+        } catch (IOException expected) {
+        }
+        assertSameTable(reader.readModtranLookupTable(), reader.readModtranLookupTableOrFallBack(cacheDir));
+    }
+
+    @Test
+    public void failWhenResourceIsMissing() {
+        final ModtranLookupTableReader reader = new ModtranLookupTableReader(null);
+
+        try {
+            reader.readModtranLookupTableOrFallBack(cacheDir);
+            fail();
+        } catch (IOException expected) {
+        }
+    }
+
+    private ModtranLookupTableReader createReader() throws IOException {
+        return new ModtranLookupTableReader(resourceFile.toURI().toURL());
+    }
+
+    private static double getValueA(ModtranLookupTable table) {
+        return table.getLutA().getValues(VZA[1], SZA[1], ALT[1], AOT[1], ADA[1])[1];
+    }
+
+    private static void assertSameTable(ModtranLookupTable expected, ModtranLookupTable actual) {
+        assertEquals(expected.getWavelengths().length, actual.getWavelengths().length);
+        for (int i = 0; i < expected.getWavelengths().length; ++i) {
+            assertEquals(expected.getWavelengths()[i], actual.getWavelengths()[i], 0.0);
+        }
+        for (final float vza : VZA) {
+            for (final float ada : ADA) {
+                for (final float cwv : CWV) {
+                    final double[] expectedA = expected.getLutA().getValues(vza, SZA[1], ALT[0], AOT[1], ada);
+                    final double[] actualA = actual.getLutA().getValues(vza, SZA[1], ALT[0], AOT[1], ada);
+                    assertEquals(expectedA.length, actualA.length);
+                    for (int i = 0; i < expectedA.length; ++i) {
+                        assertEquals(expectedA[i], actualA[i], 0.0);
+                    }
+                    final double[][] expectedB = expected.getLutB().getValues(vza, SZA[1], ALT[0], AOT[1], cwv);
+                    final double[][] actualB = actual.getLutB().getValues(vza, SZA[1], ALT[0], AOT[1], cwv);
+                    assertEquals(expectedB.length, actualB.length);
+                    for (int i = 0; i < expectedB.length; ++i) {
+                        for (int j = 0; j < expectedB[i].length; ++j) {
+                            assertEquals(expectedB[i][j], actualB[i][j], 0.0);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private static void writeResource(File file, float scale) throws IOException {
+        final float[][] dimensions = {WAVELENGTHS, VZA, SZA, ALT, AOT, ADA, CWV};
+        final int gridPointCount = VZA.length * SZA.length * ALT.length * AOT.length;
+        final int valueCountA = PARAMETER_COUNT_A * WAVELENGTHS.length * ADA.length * gridPointCount;
+        final int valueCountB = PARAMETER_COUNT_B * WAVELENGTHS.length * CWV.length * gridPointCount;
+
+        int size = 2 * (dimensions.length + 2) + 4 * (valueCountA + valueCountB);
+        for (final float[] dimension : dimensions) {
+            size += 4 * dimension.length;
+        }
+        final ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        for (final float[] dimension : dimensions) {
+            buffer.putShort((short) dimension.length);
+            for (final float value : dimension) {
+                buffer.putFloat(value);
+            }
+        }
+        buffer.putShort((short) PARAMETER_COUNT_A);
+        buffer.putShort((short) PARAMETER_COUNT_B);
+        for (int i = 0; i < valueCountA; ++i) {
+            buffer.putFloat(scale * 1.0E-6f * i);
+        }
+        for (int i = 0; i < valueCountB; ++i) {
+            buffer.putFloat(scale * 1.0E-5f * (i % 97));
+        }
+
+        final FileOutputStream fos = new FileOutputStream(file);
+        try {
+            fos.write(buffer.array());
+        } finally {
+            fos.close();
+        }
+    }
+
+    private static void delete(File file) {
+        final File[] files = file.listFiles();
+        if (files != null) {
+            for (final File child : files) {
+                delete(child);
+            }
+        }
+        if (!file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+}
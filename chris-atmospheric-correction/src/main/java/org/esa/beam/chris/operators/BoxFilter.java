@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2011 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+
+package org.esa.beam.chris.operators;
+
+/**
+ * Box filter computing the mean of the non-zero samples within a square window
+ * around each non-zero sample. Zero samples are neither counted nor filtered.
+ * <p/>
+ * For a sample at {@code (x, y)} the window comprises the samples within
+ * {@code [x - k / 2, x + k / 2)} and {@code [y - k / 2, y + k / 2)}, where
+ * {@code k} is the kernel size, clipped to the image bounds. The mean is the
+ * integral sum divided by the count, truncated towards zero.
+ * <p/>
+ * The filter is separable and uses running sums along rows and columns, so
+ * the cost per sample does not depend on the kernel size. Instances of this
+ * class hold scratch buffers and must not be shared between threads.
+ *
+ * @author Ralf Quast
+ * @version $Revision$ $Date$
+ * @since BEAM 4.2
+ */
+class BoxFilter {
+
+    private final int halfKernelSize;
+
+    // windowed row sums and counts of the row entering the column window
+    private int[] rowSums;
+    private int[] rowCounts;
+    // running column sums and counts
+    private int[] colSums;
+    private int[] colCounts;
+
+    /**
+     * Creates a new box filter.
+     *
+     * @param kernelSize the kernel size.
+     */
+    BoxFilter(int kernelSize) {
+        halfKernelSize = kernelSize / 2;
+    }
+
+    /**
+     * Filters an image.
+     *
+     * @param samples the image samples.
+     * @param offset  the index of the first sample of the image.
+     * @param stride  the scanline stride of the image samples.
+     * @param w       the width of the image.
+     * @param h       the height of the image.
+     * @param means   the means computed, in row-major order with scanline stride {@code w}
+     *                (overwritten on output). The mean of a zero sample is zero.
+     */
+    void filter(short[] samples, int offset, int stride, int w, int h, short[] means) {
+        if (rowSums == null || rowSums.length < w) {
+            rowSums = new int[w];
+            rowCounts = new int[w];
+            colSums = new int[w];
+            colCounts = new int[w];
+        }
+        for (int x = 0; x < w; ++x) {
+            colSums[x] = 0;
+            colCounts[x] = 0;
+        }
+        for (int y = 0; y < Math.min(h, halfKernelSize); ++y) {
+            accumulateRow(samples, offset + y * stride, w, 1);
+        }
+
+        for (int y = 0; y < h; ++y) {
+            if (y > 0) {
+                final int enteringRow = y - 1 + halfKernelSize;
+                final int leavingRow = y - 1 - halfKernelSize;
+
+                if (enteringRow < h) {
+                    accumulateRow(samples, offset + enteringRow * stride, w, 1);
+                }
+                if (leavingRow >= 0) {
+                    accumulateRow(samples, offset + leavingRow * stride, w, -1);
+                }
+            }
+
+            final int lineOffset = offset + y * stride;
+            final int meanOffset = y * w;
+
+            for (int x = 0; x < w; ++x) {
+                if (samples[lineOffset + x] != 0 && colCounts[x] > 0) {
+                    means[meanOffset + x] = (short) (colSums[x] / colCounts[x]);
+                } else {
+                    means[meanOffset + x] = 0;
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds (or subtracts) the windowed sums of the non-zero samples in a row to
+     * (or from) the running column sums.
+     *
+     * @param samples    the image samples.
+     * @param lineOffset the index of the first sample of the row.
+     * @param w          the width of the image.
+     * @param sign       {@code 1} for adding and {@code -1} for subtracting.
+     */
+    private void accumulateRow(short[] samples, int lineOffset, int w, int sign) {
+        int sum = 0;
+        int count = 0;
+
+        for (int x = 0; x < Math.min(w, halfKernelSize); ++x) {
+            final short sample = samples[lineOffset + x];
+            if (sample != 0) {
+                sum += sample;
+                count++;
+            }
+        }
+        rowSums[0] = sum;
+        rowCounts[0] = count;
+
+        for (int x = 1; x < w; ++x) {
+            final int entering = x - 1 + halfKernelSize;
+            final int leaving = x - 1 - halfKernelSize;
+
+            if (entering < w) {
+                final short sample = samples[lineOffset + entering];
+                if (sample != 0) {
+                    sum += sample;
+                    count++;
+                }
+            }
+            if (leaving >= 0) {
+                final short sample = samples[lineOffset + leaving];
+                if (sample != 0) {
+                    sum -= sample;
+                    count--;
+                }
+            }
+            rowSums[x] = sum;
+            rowCounts[x] = count;
+        }
+
+        if (sign > 0) {
+            for (int x = 0; x < w; ++x) {
+                colSums[x] += rowSums[x];
+                colCounts[x] += rowCounts[x];
+            }
+        } else {
+            for (int x = 0; x < w; ++x) {
+                colSums[x] -= rowSums[x];
+                colCounts[x] -= rowCounts[x];
+            }
+        }
+    }
+}
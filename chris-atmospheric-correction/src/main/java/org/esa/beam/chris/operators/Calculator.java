@@ -40,6 +40,18 @@ class Calculator {
         this.toaScaling = toaScaling;
     }
 
+    /**
+     * Creates a new calculator with coefficients set to zero. The coefficients
+     * are set by means of {@link #interpolate}, so the calculator can be reused.
+     *
+     * @param wavelengthCount the number of wavelengths.
+     * @param toaScaling      the TOA scaling.
+     */
+    Calculator(int wavelengthCount, double toaScaling) {
+        this(new double[wavelengthCount], new double[wavelengthCount], new double[wavelengthCount],
+             new double[wavelengthCount], toaScaling);
+    }
+
     public void calculateBoaReflectances(double[] toa, double[] rho) {
         calculateBoaReflectances(toa, rho, 0, toa.length);
     }
@@ -73,4 +85,49 @@ class Calculator {
     public double getAdjacencyCorrection(int i, double rho, double ave) {
         return (rho - ave) * rat[i];
     }
+
+    /**
+     * Sets the coefficients of this calculator to the linear interpolation of the
+     * coefficients given for two nodes.
+     *
+     * @param lpw the path radiances for the lower and upper node.
+     * @param egl the global fluxes at ground for the lower and upper node.
+     * @param sab the spherical albedos for the lower and upper node.
+     * @param rat the adjacency correction ratios for the lower and upper node.
+     * @param i   the index of the lower node.
+     * @param f   the interpolation weight of the upper node.
+     */
+    final void interpolate(double[][] lpw, double[][] egl, double[][] sab, double[][] rat, int i, double f) {
+        final double[] lpw0 = lpw[i];
+        final double[] lpw1 = lpw[i + 1];
+        final double[] egl0 = egl[i];
+        final double[] egl1 = egl[i + 1];
+        final double[] sab0 = sab[i];
+        final double[] sab1 = sab[i + 1];
+        final double[] rat0 = rat[i];
+        final double[] rat1 = rat[i + 1];
+
+        for (int k = 0; k < this.lpw.length; ++k) {
+            this.lpw[k] = (1.0 - f) * lpw0[k] + f * lpw1[k];
+            this.egl[k] = (1.0 - f) * egl0[k] + f * egl1[k];
+            this.sab[k] = (1.0 - f) * sab0[k] + f * sab1[k];
+            this.rat[k] = (1.0 - f) * rat0[k] + f * rat1[k];
+        }
+    }
+
+    final double getLpw(int i) {
+        return lpw[i];
+    }
+
+    final double getEgl(int i) {
+        return egl[i];
+    }
+
+    final double getSab(int i) {
+        return sab[i];
+    }
+
+    final double getToaScaling() {
+        return toaScaling;
+    }
 }
@@ -64,86 +64,87 @@ class CalculatorFactoryCwv {
         this.toaScaling = toaScaling;
     }
 
-    Calculator createCalculator(double cwv) {
-        final FI fracIndex = toFracIndex(cwv);
-
-        return createCalculator(fracIndex.i, fracIndex.f);
-    }
-
-    final double getMinCwv() {
-        return cwv[0];
+    CalculatorFactoryCwv(double[] cwv, double[][] lpw, double[][] egl, double[][] sab, double[][] rat,
+                         double toaScaling) {
+        this.cwv = cwv;
+        this.lpw = lpw;
+        this.egl = egl;
+        this.sab = sab;
+        this.rat = rat;
+        this.toaScaling = toaScaling;
     }
 
-    final double getMaxCwv() {
-        return cwv[cwv.length - 1];
+    /**
+     * Creates a new calculator for the columnar water vapour supplied as argument.
+     *
+     * @param cwv the columnar water vapour.
+     *
+     * @return the calculator.
+     */
+    Calculator createCalculator(double cwv) {
+        return interpolateInto(cwv, createCalculator());
     }
 
-    private Calculator createCalculator(final int i, final double f) {
-        final int wavelengthCount = lpw[i].length;
-
-        final double[] interpolatedLpw = new double[wavelengthCount];
-        final double[] interpolatedEgl = new double[wavelengthCount];
-        final double[] interpolatedSab = new double[wavelengthCount];
-        final double[] interpolatedRat = new double[wavelengthCount];
-
-        for (int k = 0; k < wavelengthCount; ++k) {
-            interpolatedLpw[k] = (1.0 - f) * lpw[i][k] + f * lpw[i + 1][k];
-            interpolatedEgl[k] = (1.0 - f) * egl[i][k] + f * egl[i + 1][k];
-            interpolatedSab[k] = (1.0 - f) * sab[i][k] + f * sab[i + 1][k];
-            interpolatedRat[k] = (1.0 - f) * rat[i][k] + f * rat[i + 1][k];
-        }
-
-        return new Calculator(interpolatedLpw, interpolatedEgl, interpolatedSab, interpolatedRat, toaScaling);
+    /**
+     * Creates a new calculator, which is not yet targeted to any columnar water
+     * vapour. The calculator returned is meant to be confined to a single thread
+     * and re-targeted by means of {@link #interpolateInto}.
+     *
+     * @return the calculator.
+     */
+    Calculator createCalculator() {
+        return new Calculator(lpw[0].length, toaScaling);
     }
 
-    private FI toFracIndex(final double coordinate) {
+    /**
+     * Re-targets a calculator to the columnar water vapour supplied as argument.
+     * No objects are allocated.
+     *
+     * @param cwv        the columnar water vapour.
+     * @param calculator the calculator, which must have been created by this factory.
+     *
+     * @return the calculator re-targeted.
+     */
+    Calculator interpolateInto(double cwv, Calculator calculator) {
         int lo = 0;
-        int hi = cwv.length - 1;
+        int hi = this.cwv.length - 1;
 
         while (hi > lo + 1) {
             final int m = (lo + hi) >> 1;
 
-            if (coordinate < cwv[m]) {
+            if (cwv < this.cwv[m]) {
                 hi = m;
             } else {
                 lo = m;
             }
         }
 
-        return new FI(lo, Math.log(coordinate / cwv[lo]) / Math.log(cwv[hi] / cwv[lo]));
+        double f = Math.log(cwv / this.cwv[lo]) / Math.log(this.cwv[hi] / this.cwv[lo]);
+        if (f < 0.0) {
+            f = 0.0;
+        } else if (f > 1.0) {
+            f = 1.0;
+        }
+        calculator.interpolate(lpw, egl, sab, rat, lo, f);
+
+        return calculator;
+    }
+
+    final double getMinCwv() {
+        return cwv[0];
+    }
+
+    final double getMaxCwv() {
+        return cwv[cwv.length - 1];
     }
 
     /**
-     * Index with integral and fractional components.
+     * Returns the water vapour columns the radiative transfer calculations are
+     * tabulated for.
+     *
+     * @return the water vapour columns.
      */
-    private static class FI {
-        /**
-         * The integral component.
-         */
-        public int i;
-        /**
-         * The fractional component.
-         */
-        public double f;
-
-        /**
-         * Constructs a new instance of this class.
-         *
-         * @param i the integral component.
-         * @param f the fractional component.  Note that the fractional component of the
-         *          created instance is set to {@code 0.0} if {@code f < 0.0} and set to
-         *          {@code 1.0} if {@code f > 1.0}.
-         */
-        public FI(int i, double f) {
-            this.i = i;
-
-            if (f < 0.0) {
-                f = 0.0;
-            } else if (f > 1.0) {
-                f = 1.0;
-            }
-
-            this.f = f;
-        }
+    final double[] getCwv() {
+        return cwv;
     }
 }
@@ -26,10 +26,7 @@ import org.esa.beam.chris.util.math.internal.LegendrePolynomials;
 import org.esa.beam.chris.util.math.internal.LocalRegressionSmoother;
 import org.esa.beam.chris.util.math.internal.LowessRegressionWeightCalculator;
 import org.esa.beam.chris.util.math.internal.Regression;
-import org.esa.beam.chris.util.math.internal.Roots;
-import org.esa.beam.chris.util.math.internal.SimpleLinearRegression;
 import org.esa.beam.chris.util.math.internal.Statistics;
-import org.esa.beam.chris.util.math.internal.UnivariateFunction;
 import org.esa.beam.dataio.chris.ChrisConstants;
 import org.esa.beam.framework.datamodel.Band;
 import org.esa.beam.framework.datamodel.FlagCoding;
@@ -47,6 +44,7 @@ import org.esa.beam.util.ProductUtils;
 
 import javax.imageio.stream.ImageInputStream;
 import javax.media.jai.OpImage;
+import java.awt.Point;
 import java.awt.Rectangle;
 import java.awt.image.Raster;
 import java.io.IOException;
@@ -81,6 +79,8 @@ public class ComputeSurfaceReflectancesOp extends Operator {
     private static final double SURFACE_REFL_SCALING_FACTOR = 1.0E-4;
 
     private static final double WATER_VAPOUR_SCALING_FACTOR = 2.0E-4;
+    // the height of the target tiles (full width strips) when no scene-wide stage is applied to the tiles
+    private static final int TILE_HEIGHT = 16;
 
     @SourceProduct(alias = "source", type = "CHRIS_M[12345].*_NR")
     private Product sourceProduct;
@@ -99,6 +99,12 @@ public class ComputeSurfaceReflectancesOp extends Operator {
                description = "The initial guess of the water vapour (WV) column (g cm-2) used for WV retrieval.")
     private double cwvIni;
 
+    @Parameter(defaultValue = "1.0E-4",
+               interval = "(0.0, 1.0]",
+               label = "Water vapour retrieval tolerance (g cm-2)",
+               description = "The absolute tolerance of the water vapour (WV) column retrieved for modes 1, 3 and 5.")
+    private double wvRetrievalTolerance;
+
     @Parameter(defaultValue = "0.05",
                interval = "[0.0, 1.0]",
                label = "Cloud product threshold",
@@ -131,6 +137,7 @@ public class ComputeSurfaceReflectancesOp extends Operator {
     private transient OpImage cloudMaskImage;
 
     private transient OpImage waterMaskImage;
+    private transient OpImage wvImage;
 
     private transient int mode;
     private transient double[] nominalWavelengths;
@@ -182,7 +189,9 @@ public class ComputeSurfaceReflectancesOp extends Operator {
 
             synchronized (this) {
                 if (hyperMaskImage == null) {
-                    initialize2(targetRectangle, SubProgressMonitor.create(pm, 40));
+                    final Rectangle sceneRectangle = new Rectangle(0, 0, sourceProduct.getSceneRasterWidth(),
+                                                                   sourceProduct.getSceneRasterHeight());
+                    initialize2(sceneRectangle, SubProgressMonitor.create(pm, 40));
                 } else {
                     pm.worked(40);
                 }
@@ -210,9 +219,13 @@ public class ComputeSurfaceReflectancesOp extends Operator {
         if (waterMaskImage != null) {
             waterMaskImage.dispose();
         }
+        if (wvImage != null) {
+            wvImage.dispose();
+        }
         hyperMaskImage = null;
         cloudMaskImage = null;
         waterMaskImage = null;
+        wvImage = null;
 
         rhoBands = null;
         wvBand = null;
@@ -294,13 +307,27 @@ public class ComputeSurfaceReflectancesOp extends Operator {
         ProductUtils.copyMasks(sourceProduct, targetProduct);
         ProductUtils.copyMetadata(sourceProduct.getMetadataRoot(), targetProduct.getMetadataRoot());
 
-        // ESSENTIAL - ALGORITHM WILL NOT WORK WITH A DIFFERENT TILE SIZE!
-        targetProduct.setPreferredTileSize(w, h);
+        if (performAdjacencyCorrection || performSpectralPolishing && (mode == 1 || mode == 5)) {
+            // ESSENTIAL - ADJACENCY CORRECTION AND SPECTRAL POLISHING WILL NOT WORK WITH A DIFFERENT TILE SIZE!
+            targetProduct.setPreferredTileSize(w, h);
+        } else {
+            // scene-wide quantities are computed in a pre-pass, so the tiles can be computed independently
+            targetProduct.setPreferredTileSize(w, Math.min(h, TILE_HEIGHT));
+        }
 
         return targetProduct;
     }
 
-    private void initialize2(Rectangle targetRectangle, ProgressMonitor pm) {
+    private void initialize2(Rectangle sceneRectangle, ProgressMonitor pm) {
+        try {
+            pm.beginTask("Preparing atmospheric correction...", 2);
+            initialize2(sceneRectangle, SubProgressMonitor.create(pm, 1), SubProgressMonitor.create(pm, 1));
+        } finally {
+            pm.done();
+        }
+    }
+
+    private void initialize2(Rectangle sceneRectangle, ProgressMonitor aotPm, ProgressMonitor wvPm) {
         final double ada = OpUtils.getAzimuthalDifferenceAngle(vaa, saa);
         // get nominal wavelengths and bandwidths
         nominalWavelengths = OpUtils.getWavelenghts(toaBands);
@@ -335,7 +362,7 @@ public class ComputeSurfaceReflectancesOp extends Operator {
 
         final ModtranLookupTable modtranLookupTable;
         try {
-            modtranLookupTable = new ModtranLookupTableReader().readModtranLookupTable();
+            modtranLookupTable = ModtranLookupTableReader.getSharedModtranLookupTable();
         } catch (IOException e) {
             throw new OperatorException(e.getMessage());
         }
@@ -359,11 +386,11 @@ public class ComputeSurfaceReflectancesOp extends Operator {
                     new RtcTableFactoryAot(modtranLookupTable, resamplerFactory.createResampler(0.0), vza, sza, ada,
                                            alt, cwvIni);
             if (mode == 2) {
-                computeAotWater(tableFactory, toaScaling, targetRectangle, pm);
+                computeAotWater(tableFactory, toaScaling, sceneRectangle, aotPm);
                 OpUtils.setAnnotationString(getTargetProduct(), "AOT@550nm",
                                             new DecimalFormat("0.000").format(aot550));
             } else {
-                computeAotLand(tableFactory, toaScaling, targetRectangle, pm);
+                computeAotLand(tableFactory, toaScaling, sceneRectangle, aotPm);
                 OpUtils.setAnnotationString(getTargetProduct(), "Maximum AOT@550nm",
                                             new DecimalFormat("0.000").format(aot550));
             }
@@ -390,12 +417,64 @@ public class ComputeSurfaceReflectancesOp extends Operator {
             final CalculatorFactoryCwv ac1CalculatorFactory = new CalculatorFactoryCwv(modtranLookupTable, resampler,
                                                                                        vza, sza, ada, alt, aot550,
                                                                                        lpwCor, toaScaling);
-            ac = new Ac1(ac1CalculatorFactory);
+            wvImage = WaterVapourOpImage.createImage(toaBands, hyperMaskImage, cloudMaskImage, waterMaskImage,
+                                                     ac1CalculatorFactory, cwvIni, wvRetrievalTolerance,
+                                                     getTargetProduct().getPreferredTileSize());
+            final double wvMean = computeWvMean(wvImage, wvPm);
+            ac = new Ac1(ac1CalculatorFactory, wvMean);
         } else {
             ac = new Ac2(calculatorFactory.createCalculator(resampler));
         }
     }
 
+    /**
+     * Computes the scene-mean columnar water vapour over land pixels. The tiles of
+     * the water vapour image are scheduled in chunks, so they are computed in parallel
+     * by the JAI tile scheduler.
+     *
+     * @param wvImage the water vapour image.
+     * @param pm      the progress monitor.
+     *
+     * @return the scene-mean columnar water vapour.
+     */
+    private double computeWvMean(OpImage wvImage, ProgressMonitor pm) {
+        final Point[] tileIndices = wvImage.getTileIndices(wvImage.getBounds());
+        final int chunkSize = Runtime.getRuntime().availableProcessors();
+
+        try {
+            pm.beginTask("Retrieving water vapour...", tileIndices.length);
+
+            double wvSum = 0.0;
+            int wvCount = 0;
+
+            for (int i = 0; i < tileIndices.length; i += chunkSize) {
+                checkForCancellation();
+
+                final Point[] chunk = Arrays.copyOfRange(tileIndices, i, Math.min(i + chunkSize, tileIndices.length));
+                for (final Raster tile : wvImage.getTiles(chunk)) {
+                    final int minX = tile.getMinX();
+                    final int minY = tile.getMinY();
+
+                    for (int y = minY; y < minY + tile.getHeight(); ++y) {
+                        for (int x = minX; x < minX + tile.getWidth(); ++x) {
+                            final double wv = tile.getSampleDouble(x, y, 0);
+
+                            if (!Double.isNaN(wv)) {
+                                wvSum += wv;
+                                wvCount++;
+                            }
+                        }
+                    }
+                }
+                pm.worked(chunk.length);
+            }
+
+            return wvCount > 0 ? wvSum / wvCount : 0.0;
+        } finally {
+            pm.done();
+        }
+    }
+
     private void computeAotLand(RtcTableFactoryAot tableFactory, double toaScaling, Rectangle targetRectangle,
                                 ProgressMonitor pm) {
         try {
@@ -601,53 +680,16 @@ public class ComputeSurfaceReflectancesOp extends Operator {
     private class Ac1 implements Ac {
 
         private static final int SPIKY_PIXEL_COUNT = 50;
-        private static final int WV_RETRIEVAL_MAX_ITER = 10000;
-
-        private static final double WV_A_LOWER_BOUND = 770.0;
-        private static final double WV_A_UPPER_BOUND = 890.0;
-        private static final double WV_B_UPPER_BOUND = 921.0;
 
         private final CalculatorFactoryCwv calculatorFactory;
-        // indexes for water vapour absorption bands
-        private final int lowerWva;
-        private final int upperWva;
-        private final int upperWvb;
+        // scene-mean water vapour column used for water pixels
+        private final double wvMean;
         // endmember regression used for spectral polishing
         private final Regression endmemberRegression;
 
-        private Ac1(CalculatorFactoryCwv calculatorFactory) {
+        private Ac1(CalculatorFactoryCwv calculatorFactory, double wvMean) {
             this.calculatorFactory = calculatorFactory;
-
-            int lowerWva = -1;
-            int upperWva = -1;
-            int upperWvb = -1;
-            for (int i = 0; i < nominalWavelengths.length; ++i) {
-                if (nominalWavelengths[i] >= WV_A_LOWER_BOUND) {
-                    lowerWva = i;
-                    break;
-                }
-            }
-            for (int i = lowerWva + 1; i < nominalWavelengths.length; ++i) {
-                if (nominalWavelengths[i] <= WV_A_UPPER_BOUND) {
-                    upperWva = i;
-                } else {
-                    break;
-                }
-            }
-            for (int i = upperWva + 1; i < nominalWavelengths.length; ++i) {
-                if (nominalWavelengths[i] <= WV_B_UPPER_BOUND) {
-                    upperWvb = i;
-                } else {
-                    break;
-                }
-            }
-            if (lowerWva == -1 || upperWva == -1 || upperWvb == -1) {
-                throw new OperatorException("No water vapour absorption bands.");
-            }
-
-            this.lowerWva = lowerWva;
-            this.upperWva = upperWva;
-            this.upperWvb = upperWvb;
+            this.wvMean = wvMean;
 
             if (performSpectralPolishing && (mode == 1 || mode == 5)) {
                 final double[][] endmemberTable = readEndmemberTable();
@@ -669,7 +711,7 @@ public class ComputeSurfaceReflectancesOp extends Operator {
         public void computeTileStack(Map<Band, Tile> targetTileMap, Rectangle targetRectangle, ProgressMonitor pm) {
             final int tileWork = targetRectangle.height;
 
-            int totalWork = tileWork * 2;
+            int totalWork = tileWork;
             if (performAdjacencyCorrection) {
                 totalWork += tileWork * rhoBands.length * 2;
             }
@@ -680,9 +722,9 @@ public class ComputeSurfaceReflectancesOp extends Operator {
                 pm.beginTask("Performing atmospheric correction", totalWork);
 
                 // Inversion of Lambertian equation
-                final double wv = ac(targetTileMap, targetRectangle, SubProgressMonitor.create(pm, tileWork * 2));
+                ac(targetTileMap, targetRectangle, SubProgressMonitor.create(pm, tileWork));
                 if (performAdjacencyCorrection) {
-                    final AdjacencyCorrection ac = new AdjacencyCorrection(calculatorFactory.createCalculator(wv));
+                    final AdjacencyCorrection ac = new AdjacencyCorrection(calculatorFactory.createCalculator(wvMean));
                     ac.computeTileStack(targetTileMap, targetRectangle,
                                         SubProgressMonitor.create(pm, tileWork * rhoBands.length * 2));
                 }
@@ -840,13 +882,14 @@ public class ComputeSurfaceReflectancesOp extends Operator {
             }
         }
 
-        public double ac(Map<Band, Tile> targetTileMap, Rectangle targetRectangle, ProgressMonitor pm) {
+        public void ac(Map<Band, Tile> targetTileMap, Rectangle targetRectangle, ProgressMonitor pm) {
             try {
-                pm.beginTask("Computing surface reflectances...", targetRectangle.height * 2);
+                pm.beginTask("Computing surface reflectances...", targetRectangle.height);
 
                 final Raster hyperMaskRaster = hyperMaskImage.getData(targetRectangle);
                 final Raster cloudMaskRaster = cloudMaskImage.getData(targetRectangle);
                 final Raster waterMaskRaster = waterMaskImage.getData(targetRectangle);
+                final Raster wvRaster = wvImage.getData(targetRectangle);
 
                 final Tile[] toaTiles = new Tile[toaBands.length];
                 final Tile[] rhoTiles = new Tile[rhoBands.length];
@@ -858,57 +901,30 @@ public class ComputeSurfaceReflectancesOp extends Operator {
                     rhoTiles[i] = targetTileMap.get(rhoBands[i]);
                 }
                 final Tile wvTile = targetTileMap.get(wvBand);
+                final Calculator waterCalculator = calculatorFactory.createCalculator(wvMean);
+                // calculator confined to the current thread, re-targeted for each land pixel
+                final Calculator landCalculator = calculatorFactory.createCalculator();
 
-                double wvSum = 0.0;
-                int wvCount = 0;
-
-                // first pass for land pixels only
                 for (final Tile.Pos pos : rhoTiles[0]) {
                     if (pos.x == targetRectangle.x) {
                         checkForCancellation();
                     }
-
-                    final double[] toa = new double[toaBands.length];
-                    final double[] rho = new double[rhoBands.length];
-
                     final int hyperMask = hyperMaskRaster.getSample(pos.x, pos.y, 0);
                     final int cloudMask = cloudMaskRaster.getSample(pos.x, pos.y, 0);
                     final int waterMask = waterMaskRaster.getSample(pos.x, pos.y, 0);
 
-                    if ((hyperMask & 3) == 0 && cloudMask == 0 && waterMask == 0) {
-                        for (int i = 0; i < toaTiles.length; i++) {
-                            toa[i] = toaTiles[i].getSampleDouble(pos.x, pos.y);
-                        }
-
-                        final double wv = wv(toa, rho);
-                        wvSum += wv;
-                        wvCount++;
-
-                        for (int i = 0; i < rhoTiles.length; i++) {
-                            rhoTiles[i].setSample(pos.x, pos.y, rho[i]);
+                    if ((hyperMask & 3) == 0 && cloudMask == 0) {
+                        final double wv;
+                        final Calculator calculator;
+                        if (waterMask == 0) {
+                            // land pixels use the water vapour retrieved for the pixel
+                            wv = wvRaster.getSampleDouble(pos.x, pos.y, 0);
+                            calculator = calculatorFactory.interpolateInto(wv, landCalculator);
+                        } else {
+                            // water pixels use the scene-mean water vapour
+                            wv = wvMean;
+                            calculator = waterCalculator;
                         }
-                        if (wvTile != null) {
-                            wvTile.setSample(pos.x, pos.y, wv);
-                        }
-                    }
-                    if (pos.x == targetRectangle.x + targetRectangle.width - 1) {
-                        pm.worked(1);
-                    }
-                }
-
-                final double wvMean = wvCount > 0 ? wvSum / wvCount : 0.0;
-                final Calculator calculator = calculatorFactory.createCalculator(wvMean);
-
-                // second pass for water pixels only
-                for (final Tile.Pos pos : rhoTiles[0]) {
-                    if (pos.x == targetRectangle.x) {
-                        checkForCancellation();
-                    }
-                    final int hyperMask = hyperMaskRaster.getSample(pos.x, pos.y, 0);
-                    final int cloudMask = cloudMaskRaster.getSample(pos.x, pos.y, 0);
-                    final int waterMask = waterMaskRaster.getSample(pos.x, pos.y, 0);
-
-                    if ((hyperMask & 3) == 0 && cloudMask == 0 && waterMask != 0) {
                         for (int i = 0; i < rhoTiles.length; i++) {
                             final double toa = toaTiles[i].getSampleDouble(pos.x, pos.y);
                             final double rho = calculator.getBoaReflectance(i, toa);
@@ -916,66 +932,17 @@ public class ComputeSurfaceReflectancesOp extends Operator {
                             rhoTiles[i].setSample(pos.x, pos.y, rho);
                         }
                         if (wvTile != null) {
-                            wvTile.setSample(pos.x, pos.y, wvMean);
+                            wvTile.setSample(pos.x, pos.y, wv);
                         }
                     }
                     if (pos.x == targetRectangle.x + targetRectangle.width - 1) {
                         pm.worked(1);
                     }
                 }
-
-                return wvMean;
             } finally {
                 pm.done();
             }
         }
-
-        /**
-         * Simultaneously calculates the surface reflectance spectrum and the columnar
-         * water vapour.
-         *
-         * @param toa the TOA radiance spectrum.
-         * @param rho the surface reflectance spectrum calculated.
-         *
-         * @return the columnar water vapour.
-         */
-        private double wv(final double[] toa, final double[] rho) {
-            final Calculator calculator = calculatorFactory.createCalculator(cwvIni);
-            calculator.calculateBoaReflectances(toa, rho, lowerWva, upperWva + 1);
-
-            // 2. Extrapolate surface reflectances from region A to region B
-            final SimpleLinearRegression lg = new SimpleLinearRegression(nominalWavelengths, rho,
-                                                                         lowerWva, upperWva + 1);
-            for (int i = upperWva + 1; i < upperWvb + 1; ++i) {
-                rho[i] = lg.getIntercept() + lg.getSlope() * nominalWavelengths[i];
-            }
-
-            final Roots.Bracket bracket = new Roots.Bracket(calculatorFactory.getMinCwv(),
-                                                            calculatorFactory.getMaxCwv());
-            final double[] sim = new double[toa.length];
-
-            // 3. Define the merit-function for retrieving columnar water vapour
-            final UnivariateFunction function = new UnivariateFunction() {
-                @Override
-                public double value(double cwv) {
-                    final Calculator calculator = calculatorFactory.createCalculator(cwv);
-                    calculator.calculateToaRadiances(rho, sim, upperWva + 1, upperWvb + 1);
-
-                    double sum = 0.0;
-                    for (int i = upperWva + 1; i < upperWvb + 1; ++i) {
-                        sum += toa[i] - sim[i];
-                    }
-
-                    return sum;
-                }
-            };
-            // 4. Calculate columnar water vapour by finding the root of the merit-function
-            Roots.brent(function, bracket, WV_RETRIEVAL_MAX_ITER);
-            // 5. Calculate surface reflectances
-            calculatorFactory.createCalculator(bracket.root).calculateBoaReflectances(toa, rho);
-
-            return bracket.root;
-        }
     }
 
     private class Ac2 implements Ac {
@@ -1124,25 +1091,35 @@ public class ComputeSurfaceReflectancesOp extends Operator {
             try {
                 pm.beginTask("Performing adjacency correction", targetRectangle.height * rhoBands.length * 2);
 
+                final BoxFilter boxFilter = new BoxFilter(kernelSize);
+                // scratch buffer for the smoothed image, reused for all bands
+                final short[] means = new short[targetRectangle.width * targetRectangle.height];
+
                 for (int i = 0; i < rhoBands.length; i++) {
+                    checkForCancellation();
+
                     final Tile targetTile = targetTileMap.get(rhoBands[i]);
                     final short[] targetSamples = targetTile.getDataBufferShort();
-                    final short[][] means = computeMeans(targetTile, targetRectangle,
-                                                         SubProgressMonitor.create(pm, targetRectangle.height));
+                    boxFilter.filter(targetSamples, targetTile.getScanlineOffset(), targetTile.getScanlineStride(),
+                                     targetRectangle.width, targetRectangle.height, means);
+                    pm.worked(targetRectangle.height);
 
                     int targetLineOffset = targetTile.getScanlineOffset();
+                    int meanLineOffset = 0;
                     for (int y = 0; y < targetRectangle.height; y++) {
                         checkForCancellation();
 
                         int targetPixelIndex = targetLineOffset;
                         for (int x = 0; x < targetRectangle.width; x++) {
                             double rho = rhoBands[i].scale(targetSamples[targetPixelIndex]);
-                            rho += calculator.getAdjacencyCorrection(i, rho, rhoBands[i].scale(means[x][y]));
+                            rho += calculator.getAdjacencyCorrection(i, rho,
+                                                                     rhoBands[i].scale(means[meanLineOffset + x]));
                             targetSamples[targetPixelIndex] = (short) rhoBands[i].scaleInverse(rho);
 
                             targetPixelIndex++;
                         }
                         targetLineOffset += targetTile.getScanlineStride();
+                        meanLineOffset += targetRectangle.width;
 
                         pm.worked(1);
                     }
@@ -1151,71 +1128,6 @@ public class ComputeSurfaceReflectancesOp extends Operator {
                 pm.done();
             }
         }
-
-        private short[][] computeMeans(Tile targetTile, Rectangle targetRectangle, ProgressMonitor pm) {
-
-            final short[][] means = new short[targetRectangle.width][targetRectangle.height];
-
-            try {
-                pm.beginTask("Computing smoothed image", targetRectangle.height);
-
-                final int halfKernelSize = kernelSize / 2;
-                final short[] targetSamples = targetTile.getDataBufferShort();
-
-                for (int y = targetRectangle.y; y < targetRectangle.y + targetRectangle.height; y++) {
-                    checkForCancellation();
-
-                    final int minY = Math.max(targetRectangle.y, y - halfKernelSize);
-                    final int maxY = Math.min(targetRectangle.height, y + halfKernelSize);
-
-                    for (int x = targetRectangle.x; x < targetRectangle.x + targetRectangle.width; x++) {
-                        if (targetSamples[y * targetRectangle.width + x] != 0) {
-                            final int minX = Math.max(targetRectangle.x, x - halfKernelSize);
-                            final int maxX = Math.min(targetRectangle.width, x + halfKernelSize);
-
-                            means[x - targetRectangle.x][y - targetRectangle.y] = computeMean(targetTile, minX, minY,
-                                                                                              maxX, maxY);
-                        }
-                    }
-                    pm.worked(1);
-                }
-            } finally {
-                pm.done();
-            }
-
-            return means;
-        }
-
-        private short computeMean(Tile targetTile, int minX, int minY, int maxX, int maxY) {
-            final short[] targetSamples = targetTile.getDataBufferShort();
-
-            int sum = 0;
-            int count = 0;
-
-            int targetLineOffset = targetTile.getScanlineOffset() + minY * targetTile.getScanlineStride();
-
-            for (int y = minY; y < maxY; y++) {
-                int targetPixelIndex = targetLineOffset + minX;
-
-                for (int x = minX; x < maxX; x++) {
-                    final short targetSample = targetSamples[targetPixelIndex];
-                    if (targetSample != 0) {
-                        sum += targetSample;
-                        count++;
-                    }
-
-                    targetPixelIndex++;
-                }
-
-                targetLineOffset += targetTile.getScanlineStride();
-            }
-
-            if (count > 0) {
-                sum /= count;
-            }
-
-            return (short) sum;
-        }
     }
 
     static double[][] readEndmemberTable() throws OperatorException {
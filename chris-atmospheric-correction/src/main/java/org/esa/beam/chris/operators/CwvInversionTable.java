@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2011 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+
+package org.esa.beam.chris.operators;
+
+/**
+ * Table for retrieving the columnar water vapour from the TOA radiances in
+ * the water vapour absorption bands.
+ * <p/>
+ * The radiative transfer coefficients of the absorption bands are tabulated
+ * on a dense grid of water vapour columns, which subdivides each interval of
+ * the MODTRAN lookup table into a number of logarithmically equidistant
+ * sub-intervals. Since the coefficients provided by {@link CalculatorFactoryCwv}
+ * are interpolated linearly in the logarithm of the water vapour column, the
+ * coefficients within a sub-interval are again linear and the simulated TOA
+ * radiances are identical to those obtained from the calculator factory.
+ * <p/>
+ * The water vapour column is found by bisecting the grid nodes, which brackets
+ * the root of the merit function, followed by the Illinois variant of the
+ * regula falsi within the bracketing sub-interval. No objects are allocated
+ * during the retrieval, so instances of this class can be shared between
+ * threads.
+ *
+ * @author Ralf Quast
+ * @version $Revision$ $Date$
+ * @since BEAM 4.2
+ */
+class CwvInversionTable {
+
+    private static final int MAX_ITER = 100;
+
+    // the grid of water vapour columns
+    private final double[] cwv;
+    // the logarithms of the ratios of adjacent water vapour columns
+    private final double[] log;
+    // path radiances divided by TOA scaling
+    private final double[][] a;
+    // global fluxes at ground divided by PI times TOA scaling
+    private final double[][] b;
+    // spherical albedos
+    private final double[][] s;
+
+    private final int from;
+    private final int to;
+    private final double tolerance;
+
+    /**
+     * Creates a new instance of this class.
+     *
+     * @param calculatorFactory the calculator factory.
+     * @param from              the index of the first absorption band.
+     * @param to                the index of the last absorption band plus one.
+     * @param subdivisionCount  the number of sub-intervals each interval of the
+     *                          MODTRAN lookup table is divided into.
+     * @param tolerance         the absolute tolerance of the water vapour column
+     *                          retrieved (g cm-2).
+     */
+    CwvInversionTable(CalculatorFactoryCwv calculatorFactory, int from, int to, int subdivisionCount,
+                      double tolerance) {
+        final double[] nodes = calculatorFactory.getCwv();
+        final int n = (nodes.length - 1) * subdivisionCount + 1;
+
+        cwv = new double[n];
+        log = new double[n - 1];
+        a = new double[n][to - from];
+        b = new double[n][to - from];
+        s = new double[n][to - from];
+
+        for (int i = 0; i < nodes.length - 1; ++i) {
+            final double ratio = Math.log(nodes[i + 1] / nodes[i]);
+            for (int j = 0; j < subdivisionCount; ++j) {
+                cwv[i * subdivisionCount + j] = nodes[i] * Math.exp(ratio * j / subdivisionCount);
+            }
+        }
+        cwv[n - 1] = nodes[nodes.length - 1];
+
+        final Calculator calculator = calculatorFactory.createCalculator();
+        for (int k = 0; k < n; ++k) {
+            calculatorFactory.interpolateInto(cwv[k], calculator);
+            final double toaScaling = calculator.getToaScaling();
+
+            for (int i = from; i < to; ++i) {
+                a[k][i - from] = calculator.getLpw(i) / toaScaling;
+                b[k][i - from] = calculator.getEgl(i) / (Math.PI * toaScaling);
+                s[k][i - from] = calculator.getSab(i);
+            }
+            if (k > 0) {
+                log[k - 1] = Math.log(cwv[k] / cwv[k - 1]);
+            }
+        }
+
+        this.from = from;
+        this.to = to;
+        this.tolerance = tolerance;
+    }
+
+    /**
+     * Returns the columnar water vapour for which the sum of the simulated
+     * TOA radiances in the absorption bands matches the sum of the measured
+     * TOA radiances.
+     * <p/>
+     * When the measured radiances are not bracketed by the simulated radiances
+     * the boundary of the table which fits best is returned.
+     *
+     * @param toa the measured TOA radiance spectrum.
+     * @param rho the surface reflectance spectrum.
+     *
+     * @return the columnar water vapour.
+     */
+    double getCwv(double[] toa, double[] rho) {
+        double toaSum = 0.0;
+        for (int i = from; i < to; ++i) {
+            toaSum += toa[i];
+        }
+
+        int lo = 0;
+        int hi = cwv.length - 1;
+        double flo = toaSum - simulate(lo, rho);
+        double fhi = toaSum - simulate(hi, rho);
+
+        if (flo == 0.0) {
+            return cwv[lo];
+        }
+        if (fhi == 0.0) {
+            return cwv[hi];
+        }
+        if (flo < 0.0 && fhi < 0.0 || flo > 0.0 && fhi > 0.0) {
+            return Math.abs(flo) < Math.abs(fhi) ? cwv[lo] : cwv[hi];
+        }
+
+        // 1. Bisection of the grid nodes
+        while (hi > lo + 1) {
+            final int m = (lo + hi) >> 1;
+            final double fm = toaSum - simulate(m, rho);
+
+            if (fm == 0.0) {
+                return cwv[m];
+            }
+            if (fm < 0.0 && flo < 0.0 || fm > 0.0 && flo > 0.0) {
+                lo = m;
+                flo = fm;
+            } else {
+                hi = m;
+                fhi = fm;
+            }
+        }
+
+        // 2. Illinois algorithm within the bracketing sub-interval
+        double tlo = 0.0;
+        double thi = 1.0;
+        int side = 0;
+
+        for (int iter = 0; iter < MAX_ITER; ++iter) {
+            if (toCwv(lo, thi) - toCwv(lo, tlo) < tolerance) {
+                break;
+            }
+            final double t = (tlo * fhi - thi * flo) / (fhi - flo);
+            final double ft = toaSum - simulate(lo, t, rho);
+
+            if (ft == 0.0) {
+                return toCwv(lo, t);
+            }
+            if (ft < 0.0 && flo < 0.0 || ft > 0.0 && flo > 0.0) {
+                tlo = t;
+                flo = ft;
+                if (side == -1) {
+                    fhi *= 0.5;
+                }
+                side = -1;
+            } else {
+                thi = t;
+                fhi = ft;
+                if (side == +1) {
+                    flo *= 0.5;
+                }
+                side = +1;
+            }
+        }
+
+        return toCwv(lo, (tlo * fhi - thi * flo) / (fhi - flo));
+    }
+
+    final int getNodeCount() {
+        return cwv.length;
+    }
+
+    private double toCwv(int k, double t) {
+        return cwv[k] * Math.exp(t * log[k]);
+    }
+
+    private double simulate(int k, double[] rho) {
+        final double[] ak = a[k];
+        final double[] bk = b[k];
+        final double[] sk = s[k];
+
+        double sum = 0.0;
+        for (int i = from; i < to; ++i) {
+            final double r = rho[i];
+            sum += ak[i - from] + r * bk[i - from] / (1.0 - sk[i - from] * r);
+        }
+
+        return sum;
+    }
+
+    private double simulate(int k, double t, double[] rho) {
+        final double[] ak = a[k];
+        final double[] bk = b[k];
+        final double[] sk = s[k];
+        final double[] al = a[k + 1];
+        final double[] bl = b[k + 1];
+        final double[] sl = s[k + 1];
+
+        double sum = 0.0;
+        for (int i = 0; i < to - from; ++i) {
+            final double r = rho[i + from];
+            final double ai = ak[i] + t * (al[i] - ak[i]);
+            final double bi = bk[i] + t * (bl[i] - bk[i]);
+            final double si = sk[i] + t * (sl[i] - sk[i]);
+
+            sum += ai + r * bi / (1.0 - si * r);
+        }
+
+        return sum;
+    }
+}
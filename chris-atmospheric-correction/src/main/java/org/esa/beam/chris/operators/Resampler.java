@@ -18,6 +18,10 @@ package org.esa.beam.chris.operators;
 
 /**
  * Resampler.
+ * <p/>
+ * Only the non-zero resampling weights are stored, i.e. for each target band
+ * the weights of the contiguous range of source wavelengths within twice the
+ * target bandwidth.
  *
  * @author Ralf Quast
  * @version $Revision$ $Date$
@@ -27,6 +31,9 @@ class Resampler {
 
     private final int sourceWavelengthCount;
     private final int targetWavelengthCount;
+    // the index of the first source wavelength contributing to each target band
+    private final int[] offsets;
+    // the non-zero resampling weights for each target band
     private final double[][] weights;
 
     /**
@@ -55,8 +62,9 @@ class Resampler {
         sourceWavelengthCount = sourceWavelengths.length;
         targetWavelengthCount = targetWavelengths.length;
 
+        offsets = new int[targetWavelengthCount];
         weights = calculateResamplingWeights(sourceWavelengths, targetWavelengths, targetBandwidths,
-                                             targetShift, new double[targetWavelengthCount][sourceWavelengthCount]);
+                                             targetShift, offsets, new double[targetWavelengthCount][]);
     }
 
     /**
@@ -67,7 +75,7 @@ class Resampler {
      * @return the resampled values.
      */
     public double[] resample(double[] sourceValues) {
-        return multiply(sourceValues, weights, new double[targetWavelengthCount]);
+        return multiply(sourceValues, offsets, weights, new double[targetWavelengthCount]);
     }
 
     /**
@@ -86,24 +94,28 @@ class Resampler {
             throw new IllegalArgumentException("targetValues.length != targetWavelengthCount");
         }
 
-        return multiply(sourceValues, weights, targetValues);
+        return multiply(sourceValues, offsets, weights, targetValues);
     }
 
     /**
-     * Multiplies a vector by the rows of a matrix. The resulting vector has the same
-     * number of components as the matrix has rows.
+     * Multiplies a vector by the rows of a sparse banded matrix. The resulting vector
+     * has the same number of components as the matrix has rows.
      *
      * @param a the vector.
-     * @param b the matrix.
+     * @param o the column offsets of the non-zero elements in each row of the matrix.
+     * @param b the non-zero elements in each row of the matrix.
      * @param c the resulting matrix (overwritten on output).
      *
      * @return the resutlting matrix.
      */
-    private static double[] multiply(double[] a, double[][] b, double[] c) {
+    private static double[] multiply(double[] a, int[] o, double[][] b, double[] c) {
         for (int i = 0; i < b.length; ++i) {
+            final double[] row = b[i];
+            final int offset = o[i];
+
             double sum = 0.0;
-            for (int k = 0; k < a.length; ++k) {
-                sum += a[k] * b[i][k];
+            for (int k = 0; k < row.length; ++k) {
+                sum += a[offset + k] * row[k];
             }
             c[i] = sum;
         }
@@ -120,14 +132,16 @@ class Resampler {
      * @param targetWavelengths the targetWavelengths.
      * @param targetBandwidths  the target bandwidths.
      * @param targetShift       the target wavelength shift.
-     * @param weights           the resampling weights (overwritten on output).
+     * @param offsets           the index of the first source wavelength contributing
+     *                          to each target band (overwritten on output).
+     * @param weights           the non-zero resampling weights (overwritten on output).
      *
      * @return the resampling weights.
      */
     private static double[][] calculateResamplingWeights(double[] sourceWavelengths,
                                                          double[] targetWavelengths,
                                                          double[] targetBandwidths, double targetShift,
-                                                         double[][] weights) {
+                                                         int[] offsets, double[][] weights) {
         final int sourceWavelengthCount = sourceWavelengths.length;
         final int targetWavelengthCount = targetWavelengths.length;
 
@@ -143,22 +157,44 @@ class Resampler {
         }
 
         for (int i = 0; i < targetWavelengthCount; ++i) {
+            // find the range of source wavelengths within the target band
+            int first = sourceWavelengthCount;
+            int last = -1;
             for (int j = 0; j < sourceWavelengthCount; ++j) {
                 final double delta = Math.abs(targetWavelengths[i] + targetShift - sourceWavelengths[j]);
                 if (delta <= 2.0 * targetBandwidths[i]) {
-                    weights[i][j] = 1.0 / Math.exp(Math.pow(delta / (targetBandwidths[i] * c[i]), e[i]));
+                    if (j < first) {
+                        first = j;
+                    }
+                    last = j;
+                }
+            }
+            if (last == -1) {
+                offsets[i] = 0;
+                weights[i] = new double[0];
+                continue;
+            }
+
+            final double[] row = new double[last - first + 1];
+            for (int j = first; j <= last; ++j) {
+                final double delta = Math.abs(targetWavelengths[i] + targetShift - sourceWavelengths[j]);
+                if (delta <= 2.0 * targetBandwidths[i]) {
+                    row[j - first] = 1.0 / Math.exp(Math.pow(delta / (targetBandwidths[i] * c[i]), e[i]));
                 }
             }
             // normalize weights
             double sum = 0.0;
-            for (int j = 0; j < sourceWavelengthCount; ++j) {
-                sum += weights[i][j];
+            for (final double weight : row) {
+                sum += weight;
             }
             if (sum > 0.0) {
-                for (int j = 0; j < sourceWavelengthCount; ++j) {
-                    weights[i][j] /= sum;
+                for (int j = 0; j < row.length; ++j) {
+                    row[j] /= sum;
                 }
             }
+
+            offsets[i] = first;
+            weights[i] = row;
         }
 
         return weights;
@@ -16,8 +16,16 @@
 
 package org.esa.beam.chris.operators;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 /**
  * Creates a {@link Resampler}.
+ * <p/>
+ * The resamplers created are cached. The cache is keyed by the wavelength shift
+ * quantized to a multiple of the shift quantum, and a resampler is always created
+ * for the quantized shift, so the resampler returned depends on the quantized
+ * shift only.
  *
  * @author Ralf Quast
  * @version $Revision$ $Date$
@@ -25,17 +33,60 @@ package org.esa.beam.chris.operators;
  */
 class ResamplerFactory {
 
+    // the default wavelength shift quantum (nm), which equals the absolute tolerance of
+    // the smile correction retrieval. Shifts closer than the tolerance are not resolved
+    // by the retrieval anyway, and the bracketing steps of the retrieval, which are the
+    // same for all columns, as well as the shifts retrieved for neighbouring columns
+    // fall onto the same quanta
+    private static final double SHIFT_QUANTUM = 1.0E-5;
+    // the maximum number of resamplers cached
+    private static final int MAX_CACHE_SIZE = 1000;
+
     private final double[] sourceWavelengths;
     private final double[] targetWavelengths;
     private final double[] targetBandwidths;
 
+    private final double shiftQuantum;
+    private final Map<Long, Resampler> cache;
+
     ResamplerFactory(double[] sourceWavelengths, double[] targetWavelengths, double[] targetBandwidths) {
+        this(sourceWavelengths, targetWavelengths, targetBandwidths, SHIFT_QUANTUM);
+    }
+
+    ResamplerFactory(double[] sourceWavelengths, double[] targetWavelengths, double[] targetBandwidths,
+                     double shiftQuantum) {
         this.sourceWavelengths = sourceWavelengths;
         this.targetWavelengths = targetWavelengths;
         this.targetBandwidths = targetBandwidths;
+        this.shiftQuantum = shiftQuantum;
+
+        cache = new LinkedHashMap<Long, Resampler>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Resampler> eldest) {
+                return size() > MAX_CACHE_SIZE;
+            }
+        };
     }
 
     Resampler createResampler(double wavlengthShift) {
-        return new Resampler(sourceWavelengths, targetWavelengths, targetBandwidths, wavlengthShift);
+        final long key = Math.round(wavlengthShift / shiftQuantum);
+
+        synchronized (cache) {
+            final Resampler resampler = cache.get(key);
+            if (resampler != null) {
+                return resampler;
+            }
+        }
+        // the resampler is created outside the lock, so other threads are not blocked
+        final Resampler resampler = new Resampler(sourceWavelengths, targetWavelengths, targetBandwidths,
+                                                  key * shiftQuantum);
+        synchronized (cache) {
+            final Resampler cachedResampler = cache.get(key);
+            if (cachedResampler != null) {
+                return cachedResampler;
+            }
+            cache.put(key, resampler);
+            return resampler;
+        }
     }
 }
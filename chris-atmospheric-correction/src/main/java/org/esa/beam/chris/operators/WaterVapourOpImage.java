@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2011 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+
+package org.esa.beam.chris.operators;
+
+import org.esa.beam.chris.util.OpUtils;
+import org.esa.beam.chris.util.math.internal.SimpleLinearRegression;
+import org.esa.beam.framework.datamodel.Band;
+import org.esa.beam.framework.gpf.OperatorException;
+import org.esa.beam.jai.BandOpImage;
+
+import javax.media.jai.*;
+import java.awt.*;
+import java.awt.image.*;
+import java.util.Vector;
+
+/**
+ * Columnar water vapour image. The water vapour is retrieved for land pixels
+ * only, all other pixels are set to {@code NaN}.
+ * <p/>
+ * The image is computed tile-by-tile and does not depend on any scene-wide
+ * quantity, so it can be used for computing the scene-mean water vapour in
+ * a pre-pass and for tiled atmospheric correction afterwards.
+ *
+ * @author Ralf Quast
+ * @version $Revision$ $Date$
+ * @since BEAM 4.2
+ */
+class WaterVapourOpImage extends PointOpImage {
+
+    // the number of sub-intervals each interval of the MODTRAN lookup table is divided into
+    private static final int WV_RETRIEVAL_SUBDIVISION_COUNT = 16;
+
+    private static final double WV_A_LOWER_BOUND = 770.0;
+    private static final double WV_A_UPPER_BOUND = 890.0;
+    private static final double WV_B_UPPER_BOUND = 921.0;
+
+    // calculator for the initial guess of the water vapour column
+    private final Calculator calculatorIni;
+    private final CwvInversionTable inversionTable;
+    private final double[] wavelengths;
+
+    // indexes for water vapour absorption bands
+    private final int lowerWva;
+    private final int upperWva;
+    private final int upperWvb;
+
+    /**
+     * Creates a new image from the radiance bands of a CHRIS product and the
+     * corresponding mask images.
+     *
+     * @param radianceBands     the radiance bands.
+     * @param hyperMaskImage    the hyper-spectral quality mask image.
+     * @param cloudMaskImage    the cloud mask image.
+     * @param waterMaskImage    the water mask image.
+     * @param calculatorFactory the factory for creating the strategy for calculating
+     *                          surface reflectances from TOA radiances.
+     * @param cwvIni            the initial guess of the columnar water vapour.
+     * @param tolerance         the absolute tolerance of the columnar water vapour
+     *                          retrieved (g cm-2).
+     * @param tileSize          the tile size.
+     *
+     * @return the columnar water vapour image.
+     *
+     * @throws OperatorException if there are no water vapour absorption bands.
+     */
+    public static OpImage createImage(Band[] radianceBands, RenderedImage hyperMaskImage,
+                                      RenderedImage cloudMaskImage, RenderedImage waterMaskImage,
+                                      CalculatorFactoryCwv calculatorFactory, double cwvIni, double tolerance,
+                                      Dimension tileSize) {
+        final Vector<RenderedImage> sourceImageVector = new Vector<RenderedImage>();
+
+        sourceImageVector.add(hyperMaskImage);
+        sourceImageVector.add(cloudMaskImage);
+        sourceImageVector.add(waterMaskImage);
+
+        for (final Band band : radianceBands) {
+            RenderedImage image = band.getSourceImage();
+            if (image == null) {
+                image = new BandOpImage(band);
+                band.setSourceImage(image);
+            }
+            sourceImageVector.add(image);
+        }
+
+        final double[] wavelengths = OpUtils.getWavelenghts(radianceBands);
+
+        int lowerWva = -1;
+        int upperWva = -1;
+        int upperWvb = -1;
+        for (int i = 0; i < wavelengths.length; ++i) {
+            if (wavelengths[i] >= WV_A_LOWER_BOUND) {
+                lowerWva = i;
+                break;
+            }
+        }
+        for (int i = lowerWva + 1; i < wavelengths.length; ++i) {
+            if (wavelengths[i] <= WV_A_UPPER_BOUND) {
+                upperWva = i;
+            } else {
+                break;
+            }
+        }
+        for (int i = upperWva + 1; i < wavelengths.length; ++i) {
+            if (wavelengths[i] <= WV_B_UPPER_BOUND) {
+                upperWvb = i;
+            } else {
+                break;
+            }
+        }
+        if (lowerWva == -1 || upperWva == -1 || upperWvb == -1) {
+            throw new OperatorException("No water vapour absorption bands.");
+        }
+
+        int w = hyperMaskImage.getWidth();
+        int h = hyperMaskImage.getHeight();
+        int tw = Math.min(w, tileSize.width);
+        int th = Math.min(h, tileSize.height);
+
+        final SampleModel sampleModel = new ComponentSampleModelJAI(DataBuffer.TYPE_DOUBLE, tw, th, 1, tw,
+                                                                    new int[]{0});
+        final ColorModel colorModel = PlanarImage.createColorModel(sampleModel);
+        final ImageLayout imageLayout = new ImageLayout(0, 0, w, h, 0, 0, tw, th, sampleModel, colorModel);
+
+        final CwvInversionTable inversionTable = new CwvInversionTable(calculatorFactory, upperWva + 1,
+                                                                       upperWvb + 1,
+                                                                       WV_RETRIEVAL_SUBDIVISION_COUNT,
+                                                                       tolerance);
+
+        return new WaterVapourOpImage(sourceImageVector, imageLayout, calculatorFactory.createCalculator(cwvIni),
+                                      inversionTable, wavelengths, lowerWva, upperWva, upperWvb);
+    }
+
+    private WaterVapourOpImage(Vector<RenderedImage> sourceImageVector, ImageLayout imageLayout,
+                               Calculator calculatorIni, CwvInversionTable inversionTable, double[] wavelengths,
+                               int lowerWva, int upperWva, int upperWvb) {
+        super(sourceImageVector, imageLayout, null, true);
+
+        this.calculatorIni = calculatorIni;
+        this.inversionTable = inversionTable;
+        this.wavelengths = wavelengths;
+
+        this.lowerWva = lowerWva;
+        this.upperWva = upperWva;
+        this.upperWvb = upperWvb;
+    }
+
+    @Override
+    protected void computeRect(Raster[] sources, WritableRaster target, Rectangle rectangle) {
+        final UnpackedImageData hyperMaskData = getSourcePixels(sources, 0, rectangle, DataBuffer.TYPE_BYTE);
+        final UnpackedImageData cloudMaskData = getSourcePixels(sources, 1, rectangle, DataBuffer.TYPE_BYTE);
+        final UnpackedImageData waterMaskData = getSourcePixels(sources, 2, rectangle, DataBuffer.TYPE_BYTE);
+
+        final byte[] hyperMaskPixels = hyperMaskData.getByteData(0);
+        final byte[] cloudMaskPixels = cloudMaskData.getByteData(0);
+        final byte[] waterMaskPixels = waterMaskData.getByteData(0);
+
+        final int bandCount = sources.length - 3;
+        final UnpackedImageData[] radianceData = new UnpackedImageData[bandCount];
+        final int[][] radiancePixels = new int[bandCount][];
+
+        for (int i = 0; i < bandCount; ++i) {
+            radianceData[i] = getSourcePixels(sources, i + 3, rectangle, DataBuffer.TYPE_INT);
+            radiancePixels[i] = radianceData[i].getIntData(0);
+        }
+
+        final PixelAccessor targetAccessor = new PixelAccessor(getSampleModel(), getColorModel());
+        final UnpackedImageData targetData = targetAccessor.getPixels(target, rectangle, DataBuffer.TYPE_DOUBLE,
+                                                                      true);
+        final double[] targetPixels = targetData.getDoubleData(0);
+
+        final double[] toa = new double[bandCount];
+        final double[] rho = new double[bandCount];
+
+        for (int y = 0; y < rectangle.height; ++y) {
+            for (int x = 0; x < rectangle.width; ++x) {
+                final int hyperMask = hyperMaskPixels[offset(hyperMaskData, x, y)];
+                final int cloudMask = cloudMaskPixels[offset(cloudMaskData, x, y)];
+                final int waterMask = waterMaskPixels[offset(waterMaskData, x, y)];
+
+                final double wv;
+                if ((hyperMask & 3) == 0 && cloudMask == 0 && waterMask == 0) {
+                    for (int i = 0; i < bandCount; ++i) {
+                        toa[i] = radiancePixels[i][offset(radianceData[i], x, y)];
+                    }
+                    wv = wv(toa, rho);
+                } else {
+                    wv = Double.NaN;
+                }
+                targetPixels[offset(targetData, x, y)] = wv;
+            }
+        }
+
+        targetAccessor.setPixels(targetData);
+    }
+
+    private UnpackedImageData getSourcePixels(Raster[] sources, int i, Rectangle rectangle, int dataType) {
+        final PixelAccessor accessor = new PixelAccessor(getSourceImage(i));
+
+        return accessor.getPixels(sources[i], rectangle, dataType, false);
+    }
+
+    private static int offset(UnpackedImageData data, int x, int y) {
+        return data.bandOffsets[0] + y * data.lineStride + x * data.pixelStride;
+    }
+
+    /**
+     * Calculates the columnar water vapour.
+     *
+     * @param toa the TOA radiance spectrum.
+     * @param rho the surface reflectance spectrum (used as workspace).
+     *
+     * @return the columnar water vapour.
+     */
+    private double wv(double[] toa, double[] rho) {
+        // 1. Calculate surface reflectances in region A
+        calculatorIni.calculateBoaReflectances(toa, rho, lowerWva, upperWva + 1);
+
+        // 2. Extrapolate surface reflectances from region A to region B
+        final SimpleLinearRegression lg = new SimpleLinearRegression(wavelengths, rho, lowerWva, upperWva + 1);
+        for (int i = upperWva + 1; i < upperWvb + 1; ++i) {
+            rho[i] = lg.getIntercept() + lg.getSlope() * wavelengths[i];
+        }
+
+        // 3. Calculate columnar water vapour by inverting the simulated TOA radiances in region B
+        return inversionTable.getCwv(toa, rho);
+    }
+}
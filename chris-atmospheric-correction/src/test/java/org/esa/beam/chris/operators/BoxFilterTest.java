@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2011 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+package org.esa.beam.chris.operators;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+/**
+ * Tests for class {@link BoxFilter}.
+ *
+ * @author Ralf Quast
+ * @version $Revision$ $Date$
+ * @since BEAM 4.2
+ */
+public class BoxFilterTest extends TestCase {
+
+    public void testMeansAreIdenticalToDirectSummation() {
+        final Random random = new Random(5489);
+
+        assertIdenticalMeans(random, 27, 100, 80);
+        assertIdenticalMeans(random, 59, 130, 140);
+        assertIdenticalMeans(random, 27, 10, 7);
+        assertIdenticalMeans(random, 59, 1, 60);
+        assertIdenticalMeans(random, 3, 5, 5);
+    }
+
+    public void testFilterWithScanlineOffsetAndStride() {
+        final Random random = new Random(5489);
+
+        final int w = 40;
+        final int h = 30;
+        final short[] samples = createSamples(random, w, h);
+
+        final int offset = 7;
+        final int stride = w + 5;
+        final short[] paddedSamples = new short[offset + h * stride];
+        for (int y = 0; y < h; ++y) {
+            System.arraycopy(samples, y * w, paddedSamples, offset + y * stride, w);
+        }
+
+        final short[] expected = computeMeansDirectly(samples, w, h, 27);
+        final short[] actual = new short[w * h];
+        new BoxFilter(27).filter(paddedSamples, offset, stride, w, h, actual);
+
+        for (int i = 0; i < expected.length; ++i) {
+            assertEquals(expected[i], actual[i]);
+        }
+    }
+
+    public void testScratchBuffersAreReused() {
+        final Random random = new Random(5489);
+        final BoxFilter filter = new BoxFilter(27);
+
+        for (int i = 0; i < 3; ++i) {
+            final int w = 50 - 10 * i;
+            final int h = 45;
+            final short[] samples = createSamples(random, w, h);
+
+            final short[] expected = computeMeansDirectly(samples, w, h, 27);
+            final short[] actual = new short[w * h];
+            filter.filter(samples, 0, w, w, h, actual);
+
+            for (int k = 0; k < expected.length; ++k) {
+                assertEquals(expected[k], actual[k]);
+            }
+        }
+    }
+
+    private static void assertIdenticalMeans(Random random, int kernelSize, int w, int h) {
+        final short[] samples = createSamples(random, w, h);
+
+        final short[] expected = computeMeansDirectly(samples, w, h, kernelSize);
+        final short[] actual = new short[w * h];
+        new BoxFilter(kernelSize).filter(samples, 0, w, w, h, actual);
+
+        for (int i = 0; i < expected.length; ++i) {
+            assertEquals(expected[i], actual[i]);
+        }
+    }
+
+    private static short[] createSamples(Random random, int w, int h) {
+        final short[] samples = new short[w * h];
+
+        for (int i = 0; i < samples.length; ++i) {
+            // about a quarter of the samples is zero, some are negative
+            if (random.nextInt(4) != 0) {
+                samples[i] = (short) (random.nextInt(12000) - 1000);
+            }
+        }
+
+        return samples;
+    }
+
+    /**
+     * Computes the means by direct summation over the window of each sample, as
+     * done by the adjacency correction before the box filter was introduced.
+     */
+    private static short[] computeMeansDirectly(short[] samples, int w, int h, int kernelSize) {
+        final short[] means = new short[w * h];
+        final int halfKernelSize = kernelSize / 2;
+
+        for (int y = 0; y < h; y++) {
+            final int minY = Math.max(0, y - halfKernelSize);
+            final int maxY = Math.min(h, y + halfKernelSize);
+
+            for (int x = 0; x < w; x++) {
+                if (samples[y * w + x] != 0) {
+                    final int minX = Math.max(0, x - halfKernelSize);
+                    final int maxX = Math.min(w, x + halfKernelSize);
+
+                    int sum = 0;
+                    int count = 0;
+                    for (int j = minY; j < maxY; j++) {
+                        for (int i = minX; i < maxX; i++) {
+                            final short sample = samples[j * w + i];
+                            if (sample != 0) {
+                                sum += sample;
+                                count++;
+                            }
+                        }
+                    }
+                    if (count > 0) {
+                        sum /= count;
+                    }
+                    means[y * w + x] = (short) sum;
+                }
+            }
+        }
+
+        return means;
+    }
+}
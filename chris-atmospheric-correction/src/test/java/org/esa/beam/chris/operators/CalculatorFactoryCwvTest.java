@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2011 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+package org.esa.beam.chris.operators;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for class {@link CalculatorFactoryCwv}.
+ *
+ * @author Ralf Quast
+ * @version $Revision$ $Date$
+ * @since BEAM 4.2
+ */
+public class CalculatorFactoryCwvTest extends TestCase {
+
+    private static final double TOA_SCALING = 1.0E-3;
+
+    private static final double[] CWV = {0.5, 1.0, 2.0, 4.0};
+
+    private static final double[][] LPW = {{1.0, 2.0}, {2.0, 3.0}, {3.0, 4.0}, {4.0, 5.0}};
+    private static final double[][] EGL = {{100.0, 90.0}, {80.0, 70.0}, {60.0, 50.0}, {40.0, 30.0}};
+    private static final double[][] SAB = {{0.1, 0.2}, {0.2, 0.3}, {0.3, 0.4}, {0.4, 0.5}};
+    private static final double[][] RAT = {{0.5, 0.6}, {0.6, 0.7}, {0.7, 0.8}, {0.8, 0.9}};
+
+    private CalculatorFactoryCwv calculatorFactory;
+
+    @Override
+    protected void setUp() throws Exception {
+        calculatorFactory = new CalculatorFactoryCwv(CWV, LPW, EGL, SAB, RAT, TOA_SCALING);
+    }
+
+    public void testInterpolateInto() {
+        final Calculator calculator = calculatorFactory.createCalculator();
+
+        assertSame(calculator, calculatorFactory.interpolateInto(1.0, calculator));
+        assertEquals(2.0, calculator.getLpw(0), 0.0);
+        assertEquals(70.0, calculator.getEgl(1), 0.0);
+
+        // the fractional index is logarithmic in the water vapour column
+        assertSame(calculator, calculatorFactory.interpolateInto(Math.sqrt(2.0), calculator));
+        assertEquals(2.5, calculator.getLpw(0), 1.0E-10);
+        assertEquals(0.35, calculator.getSab(1), 1.0E-10);
+        assertEquals(0.75, calculator.getAdjacencyCorrection(1, 1.0, 0.0), 1.0E-10);
+
+        // values outside the table are clamped
+        calculatorFactory.interpolateInto(8.0, calculator);
+        assertEquals(4.0, calculator.getLpw(0), 0.0);
+        calculatorFactory.interpolateInto(0.25, calculator);
+        assertEquals(1.0, calculator.getLpw(0), 0.0);
+    }
+
+    public void testInterpolateIntoRetargetsCalculator() {
+        final Calculator calculator = calculatorFactory.createCalculator();
+
+        // the water vapour columns alternate between the lower and the upper part of the table,
+        // so any coefficients left over from the previous call would be noticed
+        for (int k = 0; k <= 35; ++k) {
+            final double cwv = (k % 2 == 0) ? 0.5 + 0.1 * k : 4.0 - 0.1 * (k - 1);
+            assertSame(calculator, calculatorFactory.interpolateInto(cwv, calculator));
+
+            // find the table rows enclosing the water vapour column by linear search
+            int lo = 0;
+            while (lo < CWV.length - 2 && cwv >= CWV[lo + 1]) {
+                ++lo;
+            }
+            final int hi = lo + 1;
+            final double f = Math.log(cwv / CWV[lo]) / Math.log(CWV[hi] / CWV[lo]);
+
+            for (int i = 0; i < 2; ++i) {
+                final double lpw = (1.0 - f) * LPW[lo][i] + f * LPW[hi][i];
+                final double egl = (1.0 - f) * EGL[lo][i] + f * EGL[hi][i];
+                final double sab = (1.0 - f) * SAB[lo][i] + f * SAB[hi][i];
+                final double rat = (1.0 - f) * RAT[lo][i] + f * RAT[hi][i];
+
+                assertEquals(lpw, calculator.getLpw(i), 1.0E-10);
+                assertEquals(egl, calculator.getEgl(i), 1.0E-10);
+                assertEquals(sab, calculator.getSab(i), 1.0E-10);
+                assertEquals(rat, calculator.getAdjacencyCorrection(i, 1.0, 0.0), 1.0E-10);
+
+                final double a = Math.PI * (1000.0 * TOA_SCALING - lpw) / egl;
+                assertEquals(a / (1.0 + a * sab), calculator.getBoaReflectance(i, 1000.0), 1.0E-10);
+            }
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2011 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+package org.esa.beam.chris.operators;
+
+import junit.framework.TestCase;
+import org.esa.beam.chris.util.math.internal.Roots;
+import org.esa.beam.chris.util.math.internal.UnivariateFunction;
+
+/**
+ * Tests for class {@link CwvInversionTable}.
+ *
+ * @author Ralf Quast
+ * @version $Revision$ $Date$
+ * @since BEAM 4.2
+ */
+public class CwvInversionTableTest extends TestCase {
+
+    private static final double TOLERANCE = 1.0E-4;
+
+    private static final int FROM = 2;
+    private static final int TO = 5;
+
+    private CalculatorFactoryCwv calculatorFactory;
+    private CwvInversionTable inversionTable;
+
+    @Override
+    protected void setUp() throws Exception {
+        final double[] cwv = {0.3, 0.6, 1.2, 2.4, 4.8};
+
+        final double[][] lpw = new double[cwv.length][6];
+        final double[][] egl = new double[cwv.length][6];
+        final double[][] sab = new double[cwv.length][6];
+        final double[][] rat = new double[cwv.length][6];
+
+        for (int k = 0; k < cwv.length; ++k) {
+            for (int i = 0; i < 6; ++i) {
+                final double transmittance = Math.exp(-0.1 * i * cwv[k]);
+
+                lpw[k][i] = 2.0 + 0.5 * transmittance;
+                egl[k][i] = 100.0 * transmittance;
+                sab[k][i] = 0.1 + 0.01 * cwv[k];
+                rat[k][i] = 0.5;
+            }
+        }
+
+        calculatorFactory = new CalculatorFactoryCwv(cwv, lpw, egl, sab, rat, 1.0E-3);
+        inversionTable = new CwvInversionTable(calculatorFactory, FROM, TO, 16, TOLERANCE);
+    }
+
+    public void testNodeCount() {
+        assertEquals(4 * 16 + 1, inversionTable.getNodeCount());
+    }
+
+    public void testCwvMatchesBrentSolution() {
+        final double[] rho = {0.1, 0.15, 0.2, 0.25, 0.3, 0.35};
+        final double[] toa = new double[rho.length];
+
+        for (double cwv = 0.35; cwv < 4.8; cwv += 0.05) {
+            calculatorFactory.createCalculator(cwv).calculateToaRadiances(rho, toa);
+
+            final double expected = brent(toa, rho);
+            final double actual = inversionTable.getCwv(toa, rho);
+
+            assertEquals(cwv, expected, 1.0E-8);
+            assertEquals(expected, actual, TOLERANCE);
+        }
+    }
+
+    public void testCwvIsClampedToTableBounds() {
+        final double[] rho = {0.1, 0.15, 0.2, 0.25, 0.3, 0.35};
+        final double[] toa = new double[rho.length];
+
+        calculatorFactory.createCalculator(0.3).calculateToaRadiances(rho, toa);
+        for (int i = FROM; i < TO; ++i) {
+            toa[i] *= 2.0;
+        }
+        assertEquals(0.3, inversionTable.getCwv(toa, rho), 0.0);
+
+        calculatorFactory.createCalculator(4.8).calculateToaRadiances(rho, toa);
+        for (int i = FROM; i < TO; ++i) {
+            toa[i] *= 0.5;
+        }
+        assertEquals(4.8, inversionTable.getCwv(toa, rho), 0.0);
+    }
+
+    private double brent(final double[] toa, final double[] rho) {
+        final double[] sim = new double[toa.length];
+        final UnivariateFunction function = new UnivariateFunction() {
+            @Override
+            public double value(double cwv) {
+                calculatorFactory.createCalculator(cwv).calculateToaRadiances(rho, sim, FROM, TO);
+
+                double sum = 0.0;
+                for (int i = FROM; i < TO; ++i) {
+                    sum += toa[i] - sim[i];
+                }
+
+                return sum;
+            }
+        };
+        final Roots.Bracket bracket = new Roots.Bracket(calculatorFactory.getMinCwv(),
+                                                        calculatorFactory.getMaxCwv());
+        Roots.brent(function, bracket, 10000);
+
+        return bracket.root;
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2011 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+package org.esa.beam.chris.operators;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+
+/**
+ * Tests for classes {@link Resampler} and {@link ResamplerFactory}.
+ *
+ * @author Ralf Quast
+ * @version $Revision$ $Date$
+ * @since BEAM 4.2
+ */
+public class ResamplerTest extends TestCase {
+
+    private static final double[] SOURCE_WAVELENGTHS = new double[601];
+    private static final double[] TARGET_WAVELENGTHS = {450.0, 550.0, 650.0, 750.0, 850.0};
+    private static final double[] TARGET_BANDWIDTHS = {5.0, 10.0, 10.0, 15.0, 20.0};
+
+    static {
+        for (int i = 0; i < SOURCE_WAVELENGTHS.length; ++i) {
+            SOURCE_WAVELENGTHS[i] = 400.0 + i;
+        }
+    }
+
+    public void testResampleConstantSpectrum() {
+        final Resampler resampler = new Resampler(SOURCE_WAVELENGTHS, TARGET_WAVELENGTHS, TARGET_BANDWIDTHS);
+
+        final double[] sourceValues = new double[SOURCE_WAVELENGTHS.length];
+        Arrays.fill(sourceValues, 2.0);
+
+        final double[] targetValues = resampler.resample(sourceValues);
+        for (final double targetValue : targetValues) {
+            assertEquals(2.0, targetValue, 1.0E-12);
+        }
+    }
+
+    public void testResampleLinearSpectrum() {
+        final Resampler resampler = new Resampler(SOURCE_WAVELENGTHS, TARGET_WAVELENGTHS, TARGET_BANDWIDTHS, 1.5);
+
+        final double[] targetValues = resampler.resample(SOURCE_WAVELENGTHS, new double[TARGET_WAVELENGTHS.length]);
+        for (int i = 0; i < targetValues.length; ++i) {
+            // symmetric weights reproduce the shifted central wavelength
+            assertEquals(TARGET_WAVELENGTHS[i] + 1.5, targetValues[i], 1.0E-10);
+        }
+    }
+
+    public void testResampleOutsideSourceRange() {
+        final Resampler resampler = new Resampler(SOURCE_WAVELENGTHS, new double[]{300.0, 700.0},
+                                                  new double[]{10.0, 10.0});
+
+        final double[] sourceValues = new double[SOURCE_WAVELENGTHS.length];
+        Arrays.fill(sourceValues, 1.0);
+
+        final double[] targetValues = resampler.resample(sourceValues);
+        assertEquals(0.0, targetValues[0], 0.0);
+        assertEquals(1.0, targetValues[1], 1.0E-12);
+    }
+
+    public void testResamplerFactoryCache() {
+        final ResamplerFactory factory = new ResamplerFactory(SOURCE_WAVELENGTHS, TARGET_WAVELENGTHS,
+                                                              TARGET_BANDWIDTHS, 1.0E-3);
+
+        final Resampler resampler = factory.createResampler(0.5);
+        assertSame(resampler, factory.createResampler(0.5));
+        assertSame(resampler, factory.createResampler(0.5002));
+        assertNotSame(resampler, factory.createResampler(0.501));
+    }
+}
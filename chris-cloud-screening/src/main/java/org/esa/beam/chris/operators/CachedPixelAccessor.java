@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2011 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+package org.esa.beam.chris.operators;
+
+import org.esa.beam.chris.operators.internal.PixelAccessor;
+import org.esa.beam.framework.gpf.OperatorException;
+import org.esa.beam.framework.gpf.Tile;
+
+import java.util.BitSet;
+
+/**
+ * Class for accessing the valid pixels in a tile stack, which are cached in
+ * a contiguous array of pixel-interleaved geophysical samples.
+ * <p/>
+ * A pixel is valid when all its samples are valid and finite. Invalid pixels
+ * are dropped when the cache is created, so the index of a pixel in the cache
+ * usually differs from its index in the tile stack.
+ *
+ * @author Ralf Quast
+ * @version $Revision$ $Date$
+ * @since BEAM 4.2
+ */
+class CachedPixelAccessor implements PixelAccessor {
+
+    private final int sampleCount;
+    private final int pixelCount;
+    // the pixel-interleaved samples
+    private final float[] samples;
+    // the indexes of the cached pixels in the tile stack
+    private final int[] tileIndexes;
+
+    /**
+     * Creates a new instance of this class by reading all valid pixels
+     * from the tiles supplied as argument.
+     * <p/>
+     * The valid pixels are counted before the cache is allocated, so the
+     * cache is not larger than needed.
+     *
+     * @param tiles the tiles.
+     *
+     * @throws OperatorException if the tiles do not contain any valid pixel.
+     */
+    CachedPixelAccessor(Tile[] tiles) throws OperatorException {
+        final int w = tiles[0].getWidth();
+        final int h = tiles[0].getHeight();
+        final int n = tiles.length;
+
+        final BitSet validPixels = new BitSet(w * h);
+        for (int y = 0; y < h; ++y) {
+            for (int x = 0; x < w; ++x) {
+                if (isValid(tiles, x, y)) {
+                    validPixels.set(y * w + x);
+                }
+            }
+        }
+        final int pixelCount = validPixels.cardinality();
+        if (pixelCount == 0) {
+            throw new OperatorException("No valid pixels found for cluster analysis.");
+        }
+
+        samples = new float[pixelCount * n];
+        tileIndexes = new int[pixelCount];
+
+        for (int i = 0, j = validPixels.nextSetBit(0); j >= 0; ++i, j = validPixels.nextSetBit(j + 1)) {
+            final int x = j % w;
+            final int y = j / w;
+            for (int k = 0; k < n; ++k) {
+                final Tile tile = tiles[k];
+                samples[i * n + k] = tile.getSampleFloat(tile.getMinX() + x, tile.getMinY() + y);
+            }
+            tileIndexes[i] = j;
+        }
+
+        this.sampleCount = n;
+        this.pixelCount = pixelCount;
+    }
+
+    private static boolean isValid(Tile[] tiles, int x, int y) {
+        for (final Tile tile : tiles) {
+            final int tileX = tile.getMinX() + x;
+            final int tileY = tile.getMinY() + y;
+
+            if (!tile.isSampleValid(tileX, tileY)) {
+                return false;
+            }
+            final float sample = tile.getSampleFloat(tileX, tileY);
+            if (Float.isNaN(sample) || Float.isInfinite(sample)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    @Override
+    public double[] addSamples(int i, double[] samples) {
+        final int offset = i * sampleCount;
+
+        for (int k = 0; k < samples.length; ++k) {
+            samples[k] += this.samples[offset + k];
+        }
+
+        return samples;
+    }
+
+    @Override
+    public double[] getSamples(int i, double[] samples) {
+        final int offset = i * sampleCount;
+
+        for (int k = 0; k < samples.length; ++k) {
+            samples[k] = this.samples[offset + k];
+        }
+
+        return samples;
+    }
+
+    @Override
+    public int getPixelCount() {
+        return pixelCount;
+    }
+
+    @Override
+    public int getSampleCount() {
+        return sampleCount;
+    }
+
+    /**
+     * Returns the index of a cached pixel in the tile stack, which is the
+     * index used by a {@link TilePixelAccessor} for accessing the pixel.
+     *
+     * @param i the index of the pixel in the cache.
+     *
+     * @return the index of the pixel in the tile stack.
+     */
+    int getTileIndex(int i) {
+        return tileIndexes[i];
+    }
+}
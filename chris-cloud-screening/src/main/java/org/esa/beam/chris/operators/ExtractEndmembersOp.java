@@ -17,15 +17,14 @@ package org.esa.beam.chris.operators;
 
 import com.bc.ceres.core.ProgressMonitor;
 import com.bc.ceres.core.SubProgressMonitor;
-import org.esa.beam.chris.operators.internal.Clusterer;
 import org.esa.beam.chris.operators.internal.ExclusiveIndexFilter;
 import org.esa.beam.chris.operators.internal.InclusiveIndexFilter;
 import org.esa.beam.chris.operators.internal.PixelAccessor;
+import org.esa.beam.chris.operators.internal.PosteriorKernel;
 import org.esa.beam.chris.util.BandFilter;
 import org.esa.beam.chris.util.OpUtils;
 import org.esa.beam.cluster.EMCluster;
 import org.esa.beam.cluster.IndexFilter;
-import org.esa.beam.cluster.ProbabilityCalculator;
 import org.esa.beam.framework.datamodel.Band;
 import org.esa.beam.framework.datamodel.Product;
 import org.esa.beam.framework.datamodel.SampleCoding;
@@ -41,6 +40,11 @@ import org.esa.beam.unmixing.Endmember;
 
 import java.awt.Rectangle;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 /**
  * Extracts endmembers for calculating cloud abundances.
@@ -68,6 +72,12 @@ public class ExtractEndmembersOp extends Operator {
             {885.0, 985.0},
             {985.0, 1010.0}});
 
+    // the number of pixels for which posteriors are calculated at once
+    private static final int CHUNK_SIZE = 256;
+    // number of partitions the pixels are divided into, which must not depend on
+    // the machine, because the sums of reflectances depend on the number of partitions
+    private static final int PARTITION_COUNT = 16;
+
     @SourceProduct(alias = "reflectances")
     private Product reflectanceProduct;
     @SourceProduct(alias = "features")
@@ -142,26 +152,17 @@ public class ExtractEndmembersOp extends Operator {
             final Band[] reflectanceBands = OpUtils.findBands(reflectanceProduct, "toa_refl", BAND_FILTER);
             final double[] wavelengths = OpUtils.getWavelenghts(reflectanceBands);
 
-            final PixelAccessor featAccessor = createPixelAccessor(op, featureProduct, featureBandNames);
+            final CachedPixelAccessor featAccessor = createPixelAccessor(op, featureProduct, featureBandNames);
             final PixelAccessor reflAccessor = createPixelAccessor(op, reflectanceBands);
 
             final IndexFilter validFilter = new ExclusiveIndexFilter(invalidFlags);
             final IndexFilter cloudFilter = new InclusiveIndexFilter(cloudFlags);
             final IndexFilter earthFilter = new ExclusiveIndexFilter(cloudFlags, invalidFlags);
 
-            final double[] cloudReflectances = extractCloudReflectances(op, featAccessor,
-                                                                        reflAccessor,
-                                                                        clusters,
-                                                                        cloudFilter,
-                                                                        validFilter,
-                                                                        SubProgressMonitor.create(pm, 40));
-
-            final double[][] surfaceReflectances = extractSurfaceReflectances(op, featAccessor,
-                                                                              reflAccessor,
-                                                                              clusters,
-                                                                              earthFilter,
-                                                                              validFilter,
-                                                                              SubProgressMonitor.create(pm, 60));
+            final Accumulator accumulator = accumulate(op, featAccessor, reflAccessor, clusters, cloudFilter,
+                                                       earthFilter, validFilter, SubProgressMonitor.create(pm, 100));
+            final double[] cloudReflectances = accumulator.getCloudReflectances(reflAccessor);
+            final double[][] surfaceReflectances = accumulator.getSurfaceReflectances();
 
             final ArrayList<Endmember> endmemberList = new ArrayList<Endmember>();
             endmemberList.add(new Endmember("cloud", wavelengths, cloudReflectances));
@@ -179,97 +180,66 @@ public class ExtractEndmembersOp extends Operator {
         }
     }
 
-    private static double[] extractCloudReflectances(ExtractEndmembersOp op,
-                                                     PixelAccessor featAccessor,
-                                                     PixelAccessor reflAccessor,
-                                                     EMCluster[] clusters,
-                                                     IndexFilter cloudFilter,
-                                                     IndexFilter validFilter,
-                                                     ProgressMonitor pm) {
-        try {
-            pm.beginTask("Extracting cloud endmember", featAccessor.getPixelCount() / 500);
-
-            final ProbabilityCalculator calculator = Clusterer.createProbabilityCalculator(clusters);
-
-            int maxIndex = -1;
-            double maxRatio = 0.0;
-
-            for (int i = 0; i < featAccessor.getPixelCount(); ++i) {
-                final double[] features = new double[featAccessor.getSampleCount()];
-                featAccessor.getSamples(i, features);
-
-                if (features[1] > 0.0) {
-                    final double[] posteriors = new double[clusters.length];
-                    calculator.calculate(features, posteriors, validFilter);
-
-                    for (int k = 0; k < clusters.length; ++k) {
-                        if (posteriors[k] > 0.5) {
-                            if (cloudFilter.accept(k)) {
-                                final double ratio = features[0] / features[1];
+    /**
+     * Finds the cloud pixel with the largest ratio of brightness to whiteness
+     * and sums the reflectances of the surface pixels cluster by cluster, in a
+     * single pass. The pixels are divided into a fixed number of partitions,
+     * which are processed in parallel by the executor service shared with the
+     * cluster analysis, and reduced in order, so the result does not depend on
+     * the number of threads.
+     */
+    private static Accumulator accumulate(final ExtractEndmembersOp op,
+                                          final CachedPixelAccessor featAccessor,
+                                          final PixelAccessor reflAccessor,
+                                          EMCluster[] clusters,
+                                          final IndexFilter cloudFilter,
+                                          final IndexFilter earthFilter,
+                                          final IndexFilter validFilter,
+                                          ProgressMonitor pm) {
+        final ExecutorService executorService = FindClustersOp.getSharedExecutorService();
+        final List<Future<Accumulator>> futures = new ArrayList<Future<Accumulator>>(PARTITION_COUNT);
 
-                                if (maxIndex == -1 || ratio > maxRatio) {
-                                    maxIndex = i;
-                                    maxRatio = ratio;
-                                }
-                            }
-                        }
+        try {
+            pm.beginTask("Extracting endmembers", PARTITION_COUNT);
+
+            final PosteriorKernel kernel = new PosteriorKernel(clusters);
+            final int pixelCount = featAccessor.getPixelCount();
+
+            for (int p = 0; p < PARTITION_COUNT; ++p) {
+                final int from = (int) ((long) pixelCount * p / PARTITION_COUNT);
+                final int to = (int) ((long) pixelCount * (p + 1) / PARTITION_COUNT);
+
+                futures.add(executorService.submit(new Callable<Accumulator>() {
+                    @Override
+                    public Accumulator call() {
+                        final Accumulator accumulator = new Accumulator(kernel.getClusterCount(),
+                                                                        reflAccessor.getSampleCount());
+                        accumulator.accumulate(op, kernel, featAccessor, reflAccessor, cloudFilter, earthFilter,
+                                               validFilter, from, to);
+                        return accumulator;
                     }
-                }
-                if (i % 500 == 0) {
-                    op.checkForCancellation();
-                    pm.worked(1);
-                }
+                }));
             }
-            return reflAccessor.getSamples(maxIndex, new double[reflAccessor.getSampleCount()]);
-        } finally {
-            pm.done();
-        }
-    }
-
-    private static double[][] extractSurfaceReflectances(ExtractEndmembersOp op,
-                                                         PixelAccessor featAccessor,
-                                                         PixelAccessor reflAccessor,
-                                                         EMCluster[] clusters,
-                                                         IndexFilter earthFilter,
-                                                         IndexFilter validFilter,
-                                                         ProgressMonitor pm) {
-        try {
-            pm.beginTask("Extracting surface endmembers", featAccessor.getPixelCount() / 500);
-
-            final ProbabilityCalculator calculator = Clusterer.createProbabilityCalculator(clusters);
-
-            final double[][] reflectances = new double[clusters.length][reflAccessor.getSampleCount()];
-            final int[] count = new int[clusters.length];
 
-            for (int i = 0; i < featAccessor.getPixelCount(); ++i) {
-                final double[] features = new double[featAccessor.getSampleCount()];
-                featAccessor.getSamples(i, features);
-                final double[] posteriors = new double[clusters.length];
-                calculator.calculate(features, posteriors, validFilter);
-
-                for (int k = 0; k < clusters.length; ++k) {
-                    if (posteriors[k] > 0.5) {
-                        if (earthFilter.accept(k)) {
-                            reflAccessor.addSamples(i, reflectances[k]);
-                            ++count[k];
-                            break;
-                        }
-                    }
-                }
-                if (i % 500 == 0) {
-                    op.checkForCancellation();
-                    pm.worked(1);
-                }
+            final Accumulator accumulator = new Accumulator(clusters.length, reflAccessor.getSampleCount());
+            for (final Future<Accumulator> future : futures) {
+                accumulator.merge(future.get());
+                pm.worked(1);
             }
-            for (int k = 0; k < clusters.length; ++k) {
-                if (count[k] > 0) {
-                    for (int i = 0; i < reflAccessor.getSampleCount(); ++i) {
-                        reflectances[k][i] /= count[k];
-                    }
-                }
+
+            return accumulator;
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof OperatorException) {
+                throw (OperatorException) cause;
             }
-            return reflectances;
+            throw new OperatorException(cause);
+        } catch (InterruptedException e) {
+            throw new OperatorException(e);
         } finally {
+            for (final Future<Accumulator> future : futures) {
+                future.cancel(true);
+            }
             pm.done();
         }
     }
@@ -287,7 +257,7 @@ public class ExtractEndmembersOp extends Operator {
         return new TilePixelAccessor(tiles);
     }
 
-    private static PixelAccessor createPixelAccessor(Operator op, Product product, String[] bandNames) {
+    private static CachedPixelAccessor createPixelAccessor(Operator op, Product product, String[] bandNames) {
         final int w = product.getSceneRasterWidth();
         final int h = product.getSceneRasterHeight();
         final Rectangle rectangle = new Rectangle(0, 0, w, h);
@@ -297,10 +267,128 @@ public class ExtractEndmembersOp extends Operator {
             tiles[i] = op.getSourceTile(product.getBand(bandNames[i]), rectangle);
         }
 
-        return new TilePixelAccessor(tiles);
+        return new CachedPixelAccessor(tiles);
     }
 
 
+    private static class Accumulator {
+
+        // the tile index of the cloud pixel with the largest ratio or -1
+        private int maxIndex;
+        private double maxRatio;
+
+        // reflectance sums and pixel counts of the surface clusters
+        private final double[][] sums;
+        private final int[] counts;
+
+        private Accumulator(int clusterCount, int sampleCount) {
+            maxIndex = -1;
+            maxRatio = 0.0;
+            sums = new double[clusterCount][sampleCount];
+            counts = new int[clusterCount];
+        }
+
+        private void accumulate(ExtractEndmembersOp op,
+                                PosteriorKernel kernel,
+                                CachedPixelAccessor featAccessor,
+                                PixelAccessor reflAccessor,
+                                IndexFilter cloudFilter,
+                                IndexFilter earthFilter,
+                                IndexFilter validFilter,
+                                int from, int to) {
+            final int featureCount = featAccessor.getSampleCount();
+            final int clusterCount = kernel.getClusterCount();
+
+            final double[] pixelFeatures = new double[featureCount];
+            final double[] features = new double[CHUNK_SIZE * featureCount];
+            final double[] posteriors = new double[CHUNK_SIZE * clusterCount];
+
+            for (int start = from; start < to; start += CHUNK_SIZE) {
+                op.checkForCancellation();
+
+                final int count = Math.min(CHUNK_SIZE, to - start);
+                for (int j = 0; j < count; ++j) {
+                    featAccessor.getSamples(start + j, pixelFeatures);
+                    System.arraycopy(pixelFeatures, 0, features, j * featureCount, featureCount);
+                }
+                kernel.calculate(features, count, posteriors, validFilter);
+
+                for (int j = 0; j < count; ++j) {
+                    final int k = findClusterIndex(posteriors, j * clusterCount, clusterCount);
+                    if (k == -1) {
+                        continue;
+                    }
+                    if (cloudFilter.accept(k)) {
+                        final double brightness = features[j * featureCount];
+                        final double whiteness = features[j * featureCount + 1];
+
+                        if (whiteness > 0.0) {
+                            final double ratio = brightness / whiteness;
+
+                            if (maxIndex == -1 || ratio > maxRatio) {
+                                maxIndex = featAccessor.getTileIndex(start + j);
+                                maxRatio = ratio;
+                            }
+                        }
+                    }
+                    if (earthFilter.accept(k)) {
+                        reflAccessor.addSamples(featAccessor.getTileIndex(start + j), sums[k]);
+                        ++counts[k];
+                    }
+                }
+            }
+        }
+
+        /**
+         * Merges the results of a subsequent partition of pixels into this
+         * accumulator.
+         *
+         * @param other the accumulator of the subsequent partition.
+         */
+        private void merge(Accumulator other) {
+            if (other.maxIndex != -1 && (maxIndex == -1 || other.maxRatio > maxRatio)) {
+                maxIndex = other.maxIndex;
+                maxRatio = other.maxRatio;
+            }
+            for (int k = 0; k < sums.length; ++k) {
+                for (int i = 0; i < sums[k].length; ++i) {
+                    sums[k][i] += other.sums[k][i];
+                }
+                counts[k] += other.counts[k];
+            }
+        }
+
+        private double[] getCloudReflectances(PixelAccessor reflAccessor) {
+            return reflAccessor.getSamples(maxIndex, new double[reflAccessor.getSampleCount()]);
+        }
+
+        private double[][] getSurfaceReflectances() {
+            final double[][] reflectances = new double[sums.length][];
+
+            for (int k = 0; k < sums.length; ++k) {
+                reflectances[k] = sums[k].clone();
+                if (counts[k] > 0) {
+                    for (int i = 0; i < reflectances[k].length; ++i) {
+                        reflectances[k][i] /= counts[k];
+                    }
+                }
+            }
+
+            return reflectances;
+        }
+
+        // returns the index of the cluster with a posterior probability greater than 0.5, or -1
+        private static int findClusterIndex(double[] posteriors, int offset, int clusterCount) {
+            for (int k = 0; k < clusterCount; ++k) {
+                if (posteriors[offset + k] > 0.5) {
+                    return k;
+                }
+            }
+
+            return -1;
+        }
+    }
+
     public static class Spi extends OperatorSpi {
 
         public Spi() {
@@ -17,7 +17,6 @@
 package org.esa.beam.chris.operators;
 
 import com.bc.ceres.core.ProgressMonitor;
-import com.bc.ceres.core.SubProgressMonitor;
 import org.esa.beam.chris.util.BandFilter;
 import org.esa.beam.chris.util.OpUtils;
 import org.esa.beam.dataio.chris.ChrisConstants;
@@ -29,6 +28,7 @@ import org.esa.beam.framework.gpf.OperatorException;
 import org.esa.beam.framework.gpf.OperatorSpi;
 import org.esa.beam.framework.gpf.Tile;
 import org.esa.beam.framework.gpf.annotations.OperatorMetadata;
+import org.esa.beam.framework.gpf.annotations.Parameter;
 import org.esa.beam.framework.gpf.annotations.SourceProduct;
 import org.esa.beam.framework.gpf.annotations.TargetProduct;
 import org.esa.beam.util.ProductUtils;
@@ -38,6 +38,7 @@ import java.awt.Rectangle;
 import java.io.IOException;
 import java.text.MessageFormat;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -57,6 +58,13 @@ import static java.lang.Math.*;
                   description = "Extracts features from TOA reflectances needed for cloud screening.")
 public class ExtractFeaturesOp extends Operator {
 
+    public static final String BR_VIS_NAME = "brightness_vis";
+    public static final String WH_VIS_NAME = "whiteness_vis";
+    public static final String BR_NIR_NAME = "brightness_nir";
+    public static final String WH_NIR_NAME = "whiteness_nir";
+    public static final String WV_NAME = "wv";
+    public static final String O2_NAME = "o2";
+
     private static final double INVERSE_SCALING_FACTOR = 10000.0;
 
     @SourceProduct(alias = "source")
@@ -64,6 +72,17 @@ public class ExtractFeaturesOp extends Operator {
     @TargetProduct
     private Product targetProduct;
 
+    @Parameter(defaultValue = "0",
+               interval = "[0,10000]",
+               label = "Tile width",
+               description = "The preferred tile width in pixels. If zero, the scene width is used.")
+    private int tileWidth;
+    @Parameter(defaultValue = "64",
+               interval = "[0,10000]",
+               label = "Tile height",
+               description = "The preferred tile height in pixels. If zero, the scene height is used.")
+    private int tileHeight;
+
     private transient Band br;
     private transient Band wh;
     private transient Band visBr;
@@ -77,6 +96,20 @@ public class ExtractFeaturesOp extends Operator {
     private transient Band[] visBands;
     private transient Band[] nirBands;
 
+    // the source bands read by the feature kernel, each band occurs once
+    private transient Band[] kernelBands;
+    // the indexes of surface, VIS, and NIR bands into the kernel bands
+    private transient int[] surfaceIndexes;
+    private transient int[] visIndexes;
+    private transient int[] nirIndexes;
+    // the indexes of inner, inferior, and superior bands of the O2 and WV interpolators
+    private transient int o2Index;
+    private transient int[] o2InfIndexes;
+    private transient int[] o2SupIndexes;
+    private transient int wvIndex;
+    private transient int[] wvInfIndexes;
+    private transient int[] wvSupIndexes;
+
     private transient boolean canComputeAtmosphericFeatures;
     private transient double trO2;
     private transient double trWv;
@@ -111,6 +144,7 @@ public class ExtractFeaturesOp extends Operator {
                                                      0.0);
             mu = 1.0 / (1.0 / cos(toRadians(sza)) + 1.0 / cos(toRadians(vza)));
         }
+        indexKernelBands();
 
         final String type = sourceProduct.getProductType() + "_FEAT";
         targetProduct = new Product("CHRIS_FEATURES", type,
@@ -125,12 +159,12 @@ public class ExtractFeaturesOp extends Operator {
         br.setUnit("dl");
         br.setScalingFactor(1.0 / INVERSE_SCALING_FACTOR);
 
-        visBr = targetProduct.addBand("brightness_vis", ProductData.TYPE_INT16);
+        visBr = targetProduct.addBand(BR_VIS_NAME, ProductData.TYPE_INT16);
         visBr.setDescription("Brightness for visual bands");
         visBr.setUnit("dl");
         visBr.setScalingFactor(1.0 / INVERSE_SCALING_FACTOR);
 
-        nirBr = targetProduct.addBand("brightness_nir", ProductData.TYPE_INT16);
+        nirBr = targetProduct.addBand(BR_NIR_NAME, ProductData.TYPE_INT16);
         nirBr.setDescription("Brightness for NIR bands");
         nirBr.setUnit("dl");
         nirBr.setScalingFactor(1.0 / INVERSE_SCALING_FACTOR);
@@ -140,53 +174,90 @@ public class ExtractFeaturesOp extends Operator {
         wh.setUnit("dl");
         wh.setScalingFactor(1.0 / INVERSE_SCALING_FACTOR);
 
-        visWh = targetProduct.addBand("whiteness_vis", ProductData.TYPE_INT16);
+        visWh = targetProduct.addBand(WH_VIS_NAME, ProductData.TYPE_INT16);
         visWh.setDescription("Whiteness for visual bands");
         visWh.setUnit("dl");
         visWh.setScalingFactor(1.0 / INVERSE_SCALING_FACTOR);
 
-        nirWh = targetProduct.addBand("whiteness_nir", ProductData.TYPE_INT16);
+        nirWh = targetProduct.addBand(WH_NIR_NAME, ProductData.TYPE_INT16);
         nirWh.setDescription("Whiteness for NIR bands");
         nirWh.setUnit("dl");
         nirWh.setScalingFactor(1.0 / INVERSE_SCALING_FACTOR);
 
         if (canComputeAtmosphericFeatures) {
-            o2 = targetProduct.addBand("o2", ProductData.TYPE_INT16);
+            o2 = targetProduct.addBand(O2_NAME, ProductData.TYPE_INT16);
             o2.setDescription("Atmospheric oxygen absorption");
             o2.setUnit("dl");
             o2.setScalingFactor(1.0 / INVERSE_SCALING_FACTOR);
 
-            wv = targetProduct.addBand("wv", ProductData.TYPE_INT16);
+            wv = targetProduct.addBand(WV_NAME, ProductData.TYPE_INT16);
             wv.setDescription("Atmospheric water vapour absorption");
             wv.setUnit("dl");
             wv.setScalingFactor(1.0 / INVERSE_SCALING_FACTOR);
         }
 
         ProductUtils.copyMetadata(sourceProduct.getMetadataRoot(), targetProduct.getMetadataRoot());
-        // DO NOT CHANGE TILE SIZE - IT IS NEEDED FOR PROGRESS MONITORING!
-        targetProduct.setPreferredTileSize(32, 32);
+        OpUtils.setPreferredTileSize(targetProduct, tileWidth, tileHeight);
     }
 
     @Override
     public void computeTileStack(Map<Band, Tile> targetTileMap, Rectangle targetRectangle, ProgressMonitor pm)
             throws OperatorException {
-        if (canComputeAtmosphericFeatures) {
-            pm.beginTask("computing bands...", 8);
-        } else {
-            pm.beginTask("computing bands...", 6);
-        }
+        pm.beginTask("computing bands...", targetRectangle.height);
         try {
-            computeSurfaceFeatures(br, wh, targetTileMap, targetRectangle, surfaceBands,
-                                   SubProgressMonitor.create(pm, 2));
-            computeSurfaceFeatures(visBr, visWh, targetTileMap, targetRectangle, visBands,
-                                   SubProgressMonitor.create(pm, 2));
-            computeSurfaceFeatures(nirBr, nirWh, targetTileMap, targetRectangle, nirBands,
-                                   SubProgressMonitor.create(pm, 2));
-            if (canComputeAtmosphericFeatures) {
-                computeAtmosphericFeature(o2, targetTileMap, targetRectangle, interpolatorO2, trO2,
-                                          SubProgressMonitor.create(pm, 1));
-                computeAtmosphericFeature(wv, targetTileMap, targetRectangle, interpolatorWv, trWv,
-                                          SubProgressMonitor.create(pm, 1));
+            final KernelTile[] sourceTiles = new KernelTile[kernelBands.length];
+            for (int i = 0; i < kernelBands.length; ++i) {
+                sourceTiles[i] = new KernelTile(kernelBands[i], getSourceTile(kernelBands[i], targetRectangle));
+            }
+
+            final Tile brTile = targetTileMap.get(br);
+            final Tile whTile = targetTileMap.get(wh);
+            final Tile visBrTile = targetTileMap.get(visBr);
+            final Tile visWhTile = targetTileMap.get(visWh);
+            final Tile nirBrTile = targetTileMap.get(nirBr);
+            final Tile nirWhTile = targetTileMap.get(nirWh);
+            final Tile o2Tile = canComputeAtmosphericFeatures ? targetTileMap.get(o2) : null;
+            final Tile wvTile = canComputeAtmosphericFeatures ? targetTileMap.get(wv) : null;
+
+            final double[] surfaceWavelengths = getSpectralWavelengths(surfaceBands);
+            final double[] visWavelengths = getSpectralWavelengths(visBands);
+            final double[] nirWavelengths = getSpectralWavelengths(nirBands);
+
+            final double cO2 = canComputeAtmosphericFeatures ? mu / log(trO2) : 0.0;
+            final double cWv = canComputeAtmosphericFeatures ? mu / log(trWv) : 0.0;
+
+            // the reflectances of a single pixel
+            final double[] values = new double[kernelBands.length];
+
+            for (int y = targetRectangle.y; y < targetRectangle.y + targetRectangle.height; ++y) {
+                checkForCancellation();
+
+                for (int x = targetRectangle.x; x < targetRectangle.x + targetRectangle.width; ++x) {
+                    for (int i = 0; i < sourceTiles.length; ++i) {
+                        values[i] = sourceTiles[i].getSample(x, y);
+                    }
+
+                    final double b = brightness(surfaceWavelengths, values, surfaceIndexes);
+                    brTile.setSample(x, y, b);
+                    whTile.setSample(x, y, whiteness(surfaceWavelengths, values, surfaceIndexes, b));
+
+                    final double visB = brightness(visWavelengths, values, visIndexes);
+                    visBrTile.setSample(x, y, visB);
+                    visWhTile.setSample(x, y, whiteness(visWavelengths, values, visIndexes, visB));
+
+                    final double nirB = brightness(nirWavelengths, values, nirIndexes);
+                    nirBrTile.setSample(x, y, nirB);
+                    nirWhTile.setSample(x, y, whiteness(nirWavelengths, values, nirIndexes, nirB));
+
+                    if (canComputeAtmosphericFeatures) {
+                        o2Tile.setSample(x, y, opticalPath(values, o2Index, o2InfIndexes, o2SupIndexes,
+                                                           interpolatorO2, cO2));
+                        wvTile.setSample(x, y, opticalPath(values, wvIndex, wvInfIndexes, wvSupIndexes,
+                                                           interpolatorWv, cWv));
+                    }
+                }
+
+                pm.worked(1);
             }
         } finally {
             pm.done();
@@ -207,6 +278,7 @@ public class ExtractFeaturesOp extends Operator {
         surfaceBands = null;
         visBands = null;
         nirBands = null;
+        kernelBands = null;
 
         interpolatorO2 = null;
         interpolatorWv = null;
@@ -258,42 +330,41 @@ public class ExtractFeaturesOp extends Operator {
         nirBands = nirBandList.toArray(new Band[nirBandList.size()]);
     }
 
-    void computeSurfaceFeatures(Band bBand, Band wBand, Map<Band, Tile> targetTileMap, Rectangle targetRectangle,
-                                Band[] sourceBands, ProgressMonitor pm) {
-        pm.beginTask("computing surface features...", targetRectangle.height);
-        try {
-            final double[] wavelengths = getSpectralWavelengths(sourceBands);
-            final Tile[] sourceTiles = getSourceTiles(sourceBands, targetRectangle);
-
-            final Tile bTile = targetTileMap.get(bBand);
-            final Tile wTile = targetTileMap.get(wBand);
-
-            for (int y = targetRectangle.y; y < targetRectangle.y + targetRectangle.height; ++y) {
-                for (int x = targetRectangle.x; x < targetRectangle.x + targetRectangle.width; ++x) {
-                    checkForCancellation();
-
-                    final double[] reflectances = getSamples(x, y, sourceTiles);
-                    final double b = brightness(wavelengths, reflectances);
-                    final double w = whiteness(wavelengths, reflectances, b);
-
-                    bTile.setSample(x, y, b);
-                    wTile.setSample(x, y, w);
-                }
+    /**
+     * Collects the source bands needed for computing all features, and maps
+     * the bands used for computing each individual feature onto these.
+     */
+    private void indexKernelBands() {
+        final Map<Band, Integer> indexMap = new LinkedHashMap<Band, Integer>();
 
-                pm.worked(1);
-            }
-        } finally {
-            pm.done();
+        surfaceIndexes = indexBands(surfaceBands, indexMap);
+        visIndexes = indexBands(visBands, indexMap);
+        nirIndexes = indexBands(nirBands, indexMap);
+        if (canComputeAtmosphericFeatures) {
+            o2Index = indexBands(new Band[]{interpolatorO2.getInnerBand()}, indexMap)[0];
+            o2InfIndexes = indexBands(interpolatorO2.getInfBands(), indexMap);
+            o2SupIndexes = indexBands(interpolatorO2.getSupBands(), indexMap);
+            wvIndex = indexBands(new Band[]{interpolatorWv.getInnerBand()}, indexMap)[0];
+            wvInfIndexes = indexBands(interpolatorWv.getInfBands(), indexMap);
+            wvSupIndexes = indexBands(interpolatorWv.getSupBands(), indexMap);
         }
+
+        kernelBands = indexMap.keySet().toArray(new Band[indexMap.size()]);
     }
 
-    private Tile[] getSourceTiles(Band[] bands, Rectangle targetRectangle) {
-        final Tile[] sourceTiles = new Tile[bands.length];
+    private static int[] indexBands(Band[] bands, Map<Band, Integer> indexMap) {
+        final int[] indexes = new int[bands.length];
 
         for (int i = 0; i < bands.length; ++i) {
-            sourceTiles[i] = getSourceTile(bands[i], targetRectangle);
+            Integer index = indexMap.get(bands[i]);
+            if (index == null) {
+                index = indexMap.size();
+                indexMap.put(bands[i], index);
+            }
+            indexes[i] = index;
         }
-        return sourceTiles;
+
+        return indexes;
     }
 
     private static double[] getSpectralWavelengths(Band[] bands) {
@@ -305,59 +376,22 @@ public class ExtractFeaturesOp extends Operator {
         return wavelengths;
     }
 
-    private void computeAtmosphericFeature(Band targetBand, Map<Band, Tile> targetTileMap, Rectangle targetRectangle,
-                                           BandInterpolator bandInterpolator, double transmittance,
-                                           ProgressMonitor pm) {
-        pm.beginTask("computing optical path...", targetRectangle.height);
-        try {
-            final Band sourceBand = bandInterpolator.getInnerBand();
-            final Band[] infBands = bandInterpolator.getInfBands();
-            final Band[] supBands = bandInterpolator.getSupBands();
-
-            final Tile sourceTile = getSourceTile(sourceBand, targetRectangle);
-            final Tile targetTile = targetTileMap.get(targetBand);
-
-            final Tile[] infTiles = getSourceTiles(infBands, targetRectangle);
-            final Tile[] supTiles = getSourceTiles(supBands, targetRectangle);
-
-            final double c = mu / log(transmittance);
-
-            for (int y = targetRectangle.y; y < targetRectangle.y + targetRectangle.height; ++y) {
-                for (int x = targetRectangle.x; x < targetRectangle.x + targetRectangle.width; ++x) {
-                    checkForCancellation();
-
-                    final double a = getMean(x, y, infTiles);
-                    final double b = getMean(x, y, supTiles);
-                    final double f = c * log(sourceTile.getSampleDouble(x, y) / bandInterpolator.getValue(a, b));
+    private static double opticalPath(double[] values, int index, int[] infIndexes, int[] supIndexes,
+                                      BandInterpolator bandInterpolator, double c) {
+        final double a = getMean(values, infIndexes);
+        final double b = getMean(values, supIndexes);
 
-                    targetTile.setSample(x, y, f);
-                }
-
-                pm.worked(1);
-            }
-        } finally {
-            pm.done();
-        }
+        return c * log(values[index] / bandInterpolator.getValue(a, b));
     }
 
-    private static double[] getSamples(int x, int y, Tile[] tiles) {
-        final double[] samples = new double[tiles.length];
-
-        for (int i = 0; i < samples.length; i++) {
-            samples[i] = tiles[i].getSampleDouble(x, y);
-        }
-
-        return samples;
-    }
-
-    private static double getMean(int x, int y, Tile[] tiles) {
+    private static double getMean(double[] values, int[] indexes) {
         double sum = 0.0;
 
-        for (final Tile tile : tiles) {
-            sum += tile.getSampleDouble(x, y);
+        for (final int index : indexes) {
+            sum += values[index];
         }
 
-        return sum / tiles.length;
+        return sum / indexes.length;
     }
 
     private static double getAverageValue(double[][] table, double wavelength, double width) {
@@ -382,22 +416,22 @@ public class ExtractFeaturesOp extends Operator {
         return ys / ws;
     }
 
-    private static double brightness(double[] wavelengths, double[] reflectances) {
+    private static double brightness(double[] wavelengths, double[] values, int[] indexes) {
         double sum = 0.0;
 
-        for (int i = 1; i < reflectances.length; ++i) {
-            sum += 0.5 * (reflectances[i] + reflectances[i - 1]) * (wavelengths[i] - wavelengths[i - 1]);
+        for (int i = 1; i < indexes.length; ++i) {
+            sum += 0.5 * (values[indexes[i]] + values[indexes[i - 1]]) * (wavelengths[i] - wavelengths[i - 1]);
         }
 
         return sum / (wavelengths[wavelengths.length - 1] - wavelengths[0]);
     }
 
-    private static double whiteness(double[] wavelengths, double[] reflectances, double brightness) {
+    private static double whiteness(double[] wavelengths, double[] values, int[] indexes, double brightness) {
         double sum = 0.0;
 
-        for (int i = 1; i < reflectances.length; i++) {
-            final double y1 = reflectances[i - 1] - brightness;
-            final double y2 = reflectances[i] - brightness;
+        for (int i = 1; i < indexes.length; i++) {
+            final double y1 = values[indexes[i - 1]] - brightness;
+            final double y2 = values[indexes[i]] - brightness;
 
             // trapezoidal integration
             final double x1 = wavelengths[i - 1];
@@ -417,6 +451,40 @@ public class ExtractFeaturesOp extends Operator {
         return sum / (wavelengths[wavelengths.length - 1] - wavelengths[0]);
     }
 
+    /**
+     * Returns the names of the feature bands used for cloud screening. The
+     * visual brightness and whiteness are always used, and are the first
+     * two features.
+     *
+     * @param useNirBr if {@code true} the NIR brightness is used.
+     * @param useNirWh if {@code true} the NIR whiteness is used.
+     * @param useWv    if {@code true} the atmospheric water vapour feature is used.
+     * @param useO2    if {@code true} the atmospheric oxygen feature is used.
+     *
+     * @return the names of the feature bands.
+     */
+    public static String[] getFeatureBandNames(boolean useNirBr, boolean useNirWh, boolean useWv, boolean useO2) {
+        final List<String> nameList = new ArrayList<String>(6);
+
+        nameList.add(BR_VIS_NAME);
+        nameList.add(WH_VIS_NAME);
+
+        if (useNirBr) {
+            nameList.add(BR_NIR_NAME);
+        }
+        if (useNirWh) {
+            nameList.add(WH_NIR_NAME);
+        }
+        if (useWv) {
+            nameList.add(WV_NAME);
+        }
+        if (useO2) {
+            nameList.add(O2_NAME);
+        }
+
+        return nameList.toArray(new String[nameList.size()]);
+    }
+
     static double[][] readTransmittanceTable() throws OperatorException {
         final ImageInputStream iis = OpUtils.getResourceAsImageInputStream(ExtractFeaturesOp.class,
                                                                            "nir-transmittance.img");
@@ -450,6 +518,44 @@ public class ExtractFeaturesOp extends Operator {
     }
 
 
+    /**
+     * Source tile providing geophysical samples. Samples of scaled 16-bit
+     * integer bands are read from the raw data buffer of the tile.
+     */
+    private static class KernelTile {
+
+        private final Tile tile;
+        private final short[] data;
+        private final int minX;
+        private final int minY;
+        private final int offset;
+        private final int stride;
+        private final double scalingFactor;
+        private final double scalingOffset;
+
+        private KernelTile(Band band, Tile tile) {
+            this.tile = tile;
+            if (band.getDataType() == ProductData.TYPE_INT16 && !band.isLog10Scaled()) {
+                data = tile.getDataBufferShort();
+            } else {
+                data = null;
+            }
+            minX = tile.getMinX();
+            minY = tile.getMinY();
+            offset = tile.getScanlineOffset();
+            stride = tile.getScanlineStride();
+            scalingFactor = band.getScalingFactor();
+            scalingOffset = band.getScalingOffset();
+        }
+
+        private double getSample(int x, int y) {
+            if (data == null) {
+                return tile.getSampleDouble(x, y);
+            }
+            return data[offset + (y - minY) * stride + (x - minX)] * scalingFactor + scalingOffset;
+        }
+    }
+
     private static class BandInterpolator {
 
         private final Band innerBand;
@@ -16,7 +16,9 @@
 package org.esa.beam.chris.operators;
 
 import com.bc.ceres.core.ProgressMonitor;
+import org.esa.beam.chris.operators.internal.ClusterCache;
 import org.esa.beam.chris.operators.internal.Clusterer;
+import org.esa.beam.chris.operators.internal.EMResult;
 import org.esa.beam.cluster.EMCluster;
 import org.esa.beam.framework.datamodel.Band;
 import org.esa.beam.framework.datamodel.Product;
@@ -30,7 +32,12 @@ import org.esa.beam.framework.gpf.annotations.SourceProduct;
 import org.esa.beam.framework.gpf.annotations.TargetProperty;
 
 import java.awt.Rectangle;
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.Comparator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * Clustering operator.
@@ -46,6 +53,17 @@ import java.util.Comparator;
                   internal = true)
 public class FindClustersOp extends Operator {
 
+    // number of partitions the pixels are divided into, which must not depend on
+    // the machine, because the clusters found depend on the number of partitions
+    static final int PARTITION_COUNT = 16;
+
+    /**
+     * The default limit of the relative improvement of the mean log-likelihood.
+     */
+    public static final double DEFAULT_CONVERGENCE_EPSILON = 1.0E-5;
+
+    private static ExecutorService sharedExecutorService;
+
     @SourceProduct(alias = "source")
     private Product sourceProduct;
 
@@ -62,6 +80,21 @@ public class FindClustersOp extends Operator {
                defaultValue = "31415",
                description = "The seed used for initializing the EM clustering algorithm.")
     private int seed;
+    @Parameter(label = "Sample fraction",
+               defaultValue = "1.0",
+               interval = "(0,1]",
+               description = "The fraction of pixels used for all but the final refinement iterations.")
+    private double sampleFraction;
+    @Parameter(label = "Number of refinement iterations",
+               defaultValue = "3",
+               interval = "[0,999]",
+               description = "The number of final iterations using all pixels, when the sample fraction is less than unity.")
+    private int refinementIterationCount;
+    @Parameter(label = "Convergence limit",
+               defaultValue = "1.0E-5",
+               interval = "[0,1]",
+               description = "The iteration stops when the relative improvement of the mean log-likelihood falls below this limit.")
+    private double convergenceEpsilon;
 
     public FindClustersOp() {
     }
@@ -79,24 +112,133 @@ public class FindClustersOp extends Operator {
     public void initialize() throws OperatorException {
         final Comparator<EMCluster> comparator = new Clusterer.PriorProbabilityClusterComparator();
         clusters = new EMCluster[clusterCount];
-        findClusters(sourceProduct, sourceBandNames, clusters, iterationCount, seed, comparator,
-                     ProgressMonitor.NULL);
+        findClusters(sourceProduct, sourceBandNames, clusters, iterationCount, seed, sampleFraction,
+                     refinementIterationCount, convergenceEpsilon, comparator, ProgressMonitor.NULL);
         setTargetProduct(new Product("NULL", "NULL", 0, 0));
     }
 
-    public static void findClusters(Product sourceProduct,
-                                    String[] sourceBandNames,
-                                    EMCluster[] clusters,
-                                    int iterationCount,
-                                    int seed,
-                                    Comparator<EMCluster> clusterComparator,
-                                    ProgressMonitor pm) {
+    /**
+     * Finds clusters using all pixels. The iteration stops early when the
+     * relative improvement of the mean log-likelihood falls below the
+     * {@link #DEFAULT_CONVERGENCE_EPSILON default limit}.
+     *
+     * @param sourceProduct     the source product.
+     * @param sourceBandNames   the names of the source bands used for clustering.
+     * @param clusters          the clusters found (overwritten on output).
+     * @param iterationCount    the number of EM iterations.
+     * @param seed              the seed used for initializing the clusters.
+     * @param clusterComparator the comparator used for sorting the clusters.
+     * @param pm                the progress monitor.
+     *
+     * @return the result of the cluster analysis.
+     */
+    public static EMResult findClusters(Product sourceProduct,
+                                        String[] sourceBandNames,
+                                        EMCluster[] clusters,
+                                        int iterationCount,
+                                        int seed,
+                                        Comparator<EMCluster> clusterComparator,
+                                        ProgressMonitor pm) {
+        return findClusters(sourceProduct, sourceBandNames, clusters, iterationCount, seed, 1.0, 0,
+                            DEFAULT_CONVERGENCE_EPSILON, clusterComparator, pm);
+    }
+
+    /**
+     * Finds clusters, unless clusters found with the same parameters for the
+     * same product file are available from the shared cluster cache.
+     *
+     * @param fileProduct              the product read from file, which identifies the
+     *                                 cache entry.
+     * @param sourceProduct            the source product, which is derived from the
+     *                                 product read from file.
+     * @param sourceBandNames          the names of the source bands used for clustering.
+     * @param clusters                 the clusters found (overwritten on output).
+     * @param iterationCount           the total number of EM iterations.
+     * @param seed                     the seed used for initializing the clusters and
+     *                                 for drawing the sample.
+     * @param sampleFraction           the fraction of pixels used for all but the final
+     *                                 refinement iterations.
+     * @param refinementIterationCount the number of final iterations using all pixels.
+     * @param convergenceEpsilon       the limit of the relative improvement of the mean
+     *                                 log-likelihood. If zero, all iterations are made.
+     * @param clusterComparator        the comparator used for sorting the clusters.
+     * @param pm                       the progress monitor.
+     */
+    public static void findCachedClusters(Product fileProduct,
+                                          Product sourceProduct,
+                                          String[] sourceBandNames,
+                                          EMCluster[] clusters,
+                                          int iterationCount,
+                                          int seed,
+                                          double sampleFraction,
+                                          int refinementIterationCount,
+                                          double convergenceEpsilon,
+                                          Comparator<EMCluster> clusterComparator,
+                                          ProgressMonitor pm) {
+        final ClusterCache cache = ClusterCache.getSharedClusterCache();
+        final String key = ClusterCache.createKey(fileProduct, sourceBandNames, clusters.length, iterationCount,
+                                                  seed, sampleFraction, refinementIterationCount,
+                                                  convergenceEpsilon);
+        if (key != null) {
+            final EMCluster[] cachedClusters = cache.get(key);
+            if (cachedClusters != null && cachedClusters.length == clusters.length) {
+                Arrays.sort(cachedClusters, clusterComparator);
+                System.arraycopy(cachedClusters, 0, clusters, 0, clusters.length);
+                pm.done();
+                return;
+            }
+        }
+        findClusters(sourceProduct, sourceBandNames, clusters, iterationCount, seed, sampleFraction,
+                     refinementIterationCount, convergenceEpsilon, clusterComparator, pm);
+        if (key != null) {
+            try {
+                cache.put(key, clusters);
+            } catch (IOException e) {
+                // the cache is an optimization only
+            }
+        }
+    }
+
+    /**
+     * Finds clusters, where all but the final refinement iterations use a
+     * stratified random sample of the pixels only.
+     * <p/>
+     * Sampled iterations stop early when they have converged, and are followed
+     * by the refinement iterations, which are never more than the given number.
+     * The refinement iterations stop early when they have converged, too.
+     *
+     * @param sourceProduct            the source product.
+     * @param sourceBandNames          the names of the source bands used for clustering.
+     * @param clusters                 the clusters found (overwritten on output).
+     * @param iterationCount           the total number of EM iterations.
+     * @param seed                     the seed used for initializing the clusters and
+     *                                 for drawing the sample.
+     * @param sampleFraction           the fraction of pixels in the sample.
+     * @param refinementIterationCount the number of final iterations using all pixels.
+     * @param convergenceEpsilon       the limit of the relative improvement of the mean
+     *                                 log-likelihood. If zero, all iterations are made.
+     * @param clusterComparator        the comparator used for sorting the clusters.
+     * @param pm                       the progress monitor.
+     *
+     * @return the result of the cluster analysis.
+     */
+    public static EMResult findClusters(Product sourceProduct,
+                                        String[] sourceBandNames,
+                                        EMCluster[] clusters,
+                                        int iterationCount,
+                                        int seed,
+                                        double sampleFraction,
+                                        int refinementIterationCount,
+                                        double convergenceEpsilon,
+                                        Comparator<EMCluster> clusterComparator,
+                                        ProgressMonitor pm) {
         final FindClustersOp op = new FindClustersOp(sourceProduct, clusters.length, iterationCount, seed,
                                                      sourceBandNames);
 
         final Tile[] tiles = new Tile[sourceBandNames.length];
         final int w = sourceProduct.getSceneRasterWidth();
         final int h = sourceProduct.getSceneRasterHeight();
+        final ExecutorService executorService = getSharedExecutorService();
 
         try {
             pm.beginTask("Performing cluster analysis...", iterationCount);
@@ -107,13 +249,46 @@ public class FindClustersOp extends Operator {
                                             sourceRectangle);
             }
 
-            final Clusterer clusterer = new Clusterer(new TilePixelAccessor(tiles), clusters.length, seed);
-            for (int i = 0; i < iterationCount; ++i) {
+            final Clusterer clusterer = new Clusterer(new CachedPixelAccessor(tiles), clusters.length, seed,
+                                                      PARTITION_COUNT);
+            int sampledIterationCount = sampleFraction < 1.0 ? iterationCount - refinementIterationCount : 0;
+            if (sampledIterationCount > 0) {
+                clusterer.setSampleFraction(sampleFraction);
+            }
+
+            final double[] logLikelihoods = new double[iterationCount];
+            int iterationsMade = 0;
+            boolean converged = false;
+            // the first iteration with the current sample
+            int phaseStart = 0;
+            // the number of iterations to be made, reduced when the sampled iterations converge early
+            int iterationLimit = iterationCount;
+
+            for (int i = 0; i < iterationLimit; ++i) {
                 op.checkForCancellation();
-                clusterer.iterate();
+                if (i == sampledIterationCount && i > 0) {
+                    clusterer.setSampleFraction(1.0);
+                    phaseStart = i;
+                }
+                logLikelihoods[i] = clusterer.iterate(executorService);
+                iterationsMade = i + 1;
                 pm.worked(1);
+
+                if (i > phaseStart && Clusterer.isConverged(logLikelihoods[i - 1], logLikelihoods[i],
+                                                            convergenceEpsilon)) {
+                    if (i < sampledIterationCount && refinementIterationCount > 0) {
+                        // continue with the refinement iterations
+                        sampledIterationCount = i + 1;
+                        iterationLimit = sampledIterationCount + refinementIterationCount;
+                    } else {
+                        converged = true;
+                        break;
+                    }
+                }
             }
             clusterer.getClusters(clusterComparator, clusters);
+
+            return new EMResult(clusters, Arrays.copyOf(logLikelihoods, iterationsMade), converged);
         } catch (OperatorException e) {
             throw e;
         } catch (Throwable t) {
@@ -123,6 +298,31 @@ public class FindClustersOp extends Operator {
         }
     }
 
+    /**
+     * Returns the executor service used for iterating and for extracting
+     * endmembers, which is shared within the JVM. The number of threads
+     * equals the number of available processors.
+     *
+     * @return the shared executor service.
+     */
+    static synchronized ExecutorService getSharedExecutorService() {
+        if (sharedExecutorService == null) {
+            final int threadCount = Runtime.getRuntime().availableProcessors();
+            sharedExecutorService = Executors.newFixedThreadPool(threadCount, new ThreadFactory() {
+                private final ThreadFactory threadFactory = Executors.defaultThreadFactory();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    final Thread thread = threadFactory.newThread(r);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+
+        return sharedExecutorService;
+    }
+
     public static class Spi extends OperatorSpi {
 
         public Spi() {
@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2011 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+package org.esa.beam.chris.operators;
+
+import com.bc.ceres.core.ProgressMonitor;
+import org.esa.beam.chris.operators.internal.CloudProbabilityOpImage;
+import org.esa.beam.chris.operators.internal.ExclusiveIndexFilter;
+import org.esa.beam.chris.operators.internal.InclusiveIndexFilter;
+import org.esa.beam.chris.operators.internal.ScreeningModel;
+import org.esa.beam.chris.util.BandFilter;
+import org.esa.beam.chris.util.OpUtils;
+import org.esa.beam.cluster.EMCluster;
+import org.esa.beam.framework.datamodel.Band;
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.framework.gpf.GPF;
+import org.esa.beam.framework.gpf.Operator;
+import org.esa.beam.framework.gpf.OperatorException;
+import org.esa.beam.framework.gpf.OperatorSpi;
+import org.esa.beam.framework.gpf.annotations.OperatorMetadata;
+import org.esa.beam.framework.gpf.annotations.Parameter;
+import org.esa.beam.framework.gpf.annotations.SourceProduct;
+import org.esa.beam.framework.gpf.annotations.TargetProduct;
+import org.esa.beam.jai.ImageManager;
+
+import java.awt.image.RenderedImage;
+import java.io.File;
+import java.io.IOException;
+import java.text.MessageFormat;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Operator for screening clouds without user interaction.
+ * <p/>
+ * The clusters and their labels are either read from a screening model saved
+ * from the cloud labeling dialog, or the clusters are found by EM clustering
+ * and labeled as cloudy when their mean brightness and whiteness satisfy the
+ * brightness and whiteness thresholds.
+ *
+ * @author Ralf Quast
+ * @version $Revision$ $Date$
+ */
+@OperatorMetadata(alias = "chris.ScreenClouds",
+                  version = "1.0",
+                  authors = "Ralf Quast",
+                  copyright = "(c) 2011 by Brockmann Consult",
+                  description = "Creates a cloud mask for a CHRIS/Proba RCI without user interaction.")
+public class ScreenCloudsOp extends Operator {
+
+    private static final BandFilter ALL_BANDS = new BandFilter() {
+        @Override
+        public boolean accept(Band band) {
+            return true;
+        }
+    };
+
+    @SourceProduct(alias = "source", type = "CHRIS_M.*")
+    private Product sourceProduct;
+    @TargetProduct
+    private Product targetProduct;
+
+    @Parameter(label = "Screening model file",
+               description = "The cluster model and labels saved from the cloud labeling dialog. " +
+                             "If not set, the clusters are found and labeled automatically.")
+    private File modelFile;
+
+    @Parameter(label = "Number of clusters", defaultValue = "14", interval = "[2,99]")
+    private int clusterCount;
+    @Parameter(label = "Number of iterations", defaultValue = "30", interval = "[1,999]")
+    private int iterationCount;
+    @Parameter(label = "Random seed",
+               defaultValue = "31415",
+               description = "The seed used for initializing the EM clustering algorithm.")
+    private int seed;
+    @Parameter(label = "Sample fraction",
+               defaultValue = "1.0",
+               interval = "(0,1]",
+               description = "The fraction of pixels used for all but the final refinement iterations.")
+    private double sampleFraction;
+    @Parameter(label = "Number of refinement iterations",
+               defaultValue = "3",
+               interval = "[0,999]",
+               description = "The number of final iterations using all pixels, when the sample fraction is less than unity.")
+    private int refinementIterationCount;
+    @Parameter(label = "Convergence limit",
+               defaultValue = "1.0E-5",
+               interval = "[0,1]",
+               description = "The iteration stops when the relative improvement of the mean log-likelihood falls below this limit.")
+    private double convergenceEpsilon;
+
+    @Parameter(label = "Use NIR brightness", defaultValue = "true")
+    private boolean useNirBr;
+    @Parameter(label = "Use NIR whiteness", defaultValue = "true")
+    private boolean useNirWh;
+    @Parameter(label = "Use atmospheric water vapour feature", defaultValue = "false")
+    private boolean useWv;
+    @Parameter(label = "Use atmospheric oxygen feature", defaultValue = "false")
+    private boolean useO2;
+
+    @Parameter(label = "Cloud brightness threshold",
+               defaultValue = "0.3",
+               description = "Clusters with a mean visual brightness not below this threshold are labeled " +
+                             "as cloudy, if their mean visual whiteness does not exceed the whiteness threshold.")
+    private double cloudBrightnessThreshold;
+    @Parameter(label = "Cloud whiteness threshold",
+               defaultValue = "0.1",
+               description = "Clusters with a mean visual whiteness not above this threshold are labeled " +
+                             "as cloudy, if their mean visual brightness is not below the brightness threshold.")
+    private double cloudWhitenessThreshold;
+
+    private transient Product reflectanceProduct;
+    private transient Product featureProduct;
+
+    @Override
+    public void initialize() throws OperatorException {
+        final ScreeningModel model = readScreeningModel();
+
+        // 1. Reflectances
+        final Map<String, Object> reflectanceParameterMap = new HashMap<String, Object>();
+        reflectanceParameterMap.put("virtualBands", true);
+        reflectanceProduct =
+                GPF.createProduct(OperatorSpi.getOperatorAlias(ComputeToaReflectancesOp.class),
+                                  reflectanceParameterMap,
+                                  sourceProduct);
+
+        // 2. Features
+        final Map<String, Object> emptyMap = Collections.emptyMap();
+        featureProduct = GPF.createProduct(OperatorSpi.getOperatorAlias(ExtractFeaturesOp.class),
+                                           emptyMap,
+                                           reflectanceProduct);
+
+        // 3. Clusters and labels
+        final String[] featureBandNames;
+        final EMCluster[] clusters;
+        final boolean[] cloudyFlags;
+        final boolean[] ignoreFlags;
+
+        if (model != null) {
+            featureBandNames = model.getFeatureBandNames();
+            checkFeatureBandNames(featureProduct, featureBandNames);
+            clusters = model.getClusters();
+            cloudyFlags = model.getCloudyFlags();
+            ignoreFlags = model.getIgnoreFlags();
+        } else {
+            // the atmospheric features can be extracted from mode 1 and mode 5 products only
+            final boolean canUseWv = useWv && featureProduct.containsBand(ExtractFeaturesOp.WV_NAME);
+            final boolean canUseO2 = useO2 && featureProduct.containsBand(ExtractFeaturesOp.O2_NAME);
+            featureBandNames = ExtractFeaturesOp.getFeatureBandNames(useNirBr, useNirWh, canUseWv, canUseO2);
+            clusters = new EMCluster[clusterCount];
+            FindClustersOp.findCachedClusters(sourceProduct,
+                                              featureProduct,
+                                              featureBandNames,
+                                              clusters,
+                                              iterationCount,
+                                              seed,
+                                              sampleFraction,
+                                              refinementIterationCount,
+                                              convergenceEpsilon,
+                                              new BrightnessComparator(),
+                                              ProgressMonitor.NULL);
+            cloudyFlags = labelClusters(clusters, cloudBrightnessThreshold, cloudWhitenessThreshold);
+            ignoreFlags = new boolean[clusters.length];
+        }
+
+        // 4. Cloud mask
+        final RenderedImage cloudMaskImage =
+                CloudProbabilityOpImage.createDiscretizedImage(featureProduct,
+                                                               featureBandNames,
+                                                               clusters,
+                                                               new ExclusiveIndexFilter(ignoreFlags),
+                                                               new InclusiveIndexFilter(cloudyFlags));
+
+        targetProduct = OpUtils.createCopy(sourceProduct, sourceProduct.getName() + "_CLOUD",
+                                           sourceProduct.getProductType() + "_CLOUD", ALL_BANDS);
+        final int dataType = ImageManager.getProductDataType(cloudMaskImage.getSampleModel().getDataType());
+        final Band cloudProductBand = targetProduct.addBand("cloud_product", dataType);
+        cloudProductBand.setDescription("Cloud product");
+        cloudProductBand.setSourceImage(cloudMaskImage);
+    }
+
+    private ScreeningModel readScreeningModel() throws OperatorException {
+        if (modelFile == null) {
+            return null;
+        }
+        try {
+            return ScreeningModel.read(modelFile);
+        } catch (IOException e) {
+            throw new OperatorException(MessageFormat.format(
+                    "Cannot read screening model file ''{0}''.", modelFile.getPath()), e);
+        }
+    }
+
+    @Override
+    public void dispose() {
+        if (featureProduct != null) {
+            featureProduct.dispose();
+        }
+        if (reflectanceProduct != null) {
+            reflectanceProduct.dispose();
+        }
+        featureProduct = null;
+        reflectanceProduct = null;
+    }
+
+    /**
+     * Checks that the features of a screening model can be extracted from the
+     * source product.
+     *
+     * @param featureProduct   the feature product.
+     * @param featureBandNames the names of the features of the screening model.
+     *
+     * @throws OperatorException if a feature is not contained in the feature product.
+     */
+    static void checkFeatureBandNames(Product featureProduct, String[] featureBandNames) throws OperatorException {
+        for (final String name : featureBandNames) {
+            if (!featureProduct.containsBand(name)) {
+                throw new OperatorException(MessageFormat.format(
+                        "The feature ''{0}'' of the screening model cannot be extracted from the source product.",
+                        name));
+            }
+        }
+    }
+
+    /**
+     * Labels clusters as cloudy when their mean visual brightness is not below
+     * the brightness threshold and their mean visual whiteness is not above the
+     * whiteness threshold.
+     *
+     * @param clusters            the clusters, whose first two features are the
+     *                            visual brightness and whiteness.
+     * @param brightnessThreshold the brightness threshold.
+     * @param whitenessThreshold  the whiteness threshold.
+     *
+     * @return the cloudy flags, one for each cluster.
+     */
+    static boolean[] labelClusters(EMCluster[] clusters, double brightnessThreshold, double whitenessThreshold) {
+        final boolean[] cloudyFlags = new boolean[clusters.length];
+
+        for (int k = 0; k < clusters.length; ++k) {
+            final double brightness = clusters[k].getMean()[0];
+            final double whiteness = clusters[k].getMean()[1];
+
+            cloudyFlags[k] = brightness >= brightnessThreshold && whiteness <= whitenessThreshold;
+        }
+
+        return cloudyFlags;
+    }
+
+    private static class BrightnessComparator implements Comparator<EMCluster> {
+        @Override
+        public int compare(EMCluster c1, EMCluster c2) {
+            return Double.compare(c2.getMean()[0], c1.getMean()[0]);
+        }
+    }
+
+    public static class Spi extends OperatorSpi {
+
+        public Spi() {
+            super(ScreenCloudsOp.class);
+        }
+    }
+}
@@ -17,7 +17,6 @@ package org.esa.beam.chris.operators.internal;
 
 import org.esa.beam.cluster.EMCluster;
 import org.esa.beam.cluster.IndexFilter;
-import org.esa.beam.cluster.ProbabilityCalculator;
 import org.esa.beam.framework.datamodel.Band;
 import org.esa.beam.framework.datamodel.Product;
 import org.esa.beam.jai.BandOpImage;
@@ -52,24 +51,20 @@ public class ClassOpImage extends PointOpImage {
     private static final int TILE_H = 32;
 
     private final Band[] sourceBands;
-    private final ProbabilityCalculator calculator;
+    private final PosteriorKernel kernel;
     private final IndexFilter validClusterFilter;
-    private final int clusterCount;
 
     public static OpImage createImage(Product sourceProduct, String[] sourceBandNames, EMCluster[] clusters,
                                       IndexFilter validClusterFilter) {
-        final ProbabilityCalculator calculator = Clusterer.createProbabilityCalculator(clusters);
-
         final Band[] sourceBands = new Band[sourceBandNames.length];
         for (int i = 0; i < sourceBandNames.length; i++) {
             sourceBands[i] = sourceProduct.getBand(sourceBandNames[i]);
         }
 
-        return createImage(sourceBands, calculator, validClusterFilter, clusters.length);
+        return createImage(sourceBands, new PosteriorKernel(clusters), validClusterFilter);
     }
 
-    static OpImage createImage(Band[] featureBands, ProbabilityCalculator calculator, IndexFilter clusterFilter,
-                               int clusterCount) {
+    static OpImage createImage(Band[] featureBands, PosteriorKernel kernel, IndexFilter clusterFilter) {
         final Vector<RenderedImage> sourceImageVector = new Vector<RenderedImage>();
 
         for (final Band band : featureBands) {
@@ -88,22 +83,19 @@ public class ClassOpImage extends PointOpImage {
         final ColorModel colorModel = PlanarImage.createColorModel(sampleModel);
         final ImageLayout imageLayout = new ImageLayout(0, 0, w, h, 0, 0, TILE_W, TILE_H, sampleModel, colorModel);
 
-        return new ClassOpImage(imageLayout, sourceImageVector, featureBands, calculator, clusterFilter,
-                                clusterCount);
+        return new ClassOpImage(imageLayout, sourceImageVector, featureBands, kernel, clusterFilter);
     }
 
     private ClassOpImage(ImageLayout imageLayout,
                          Vector<RenderedImage> sourceImageVector,
                          Band[] sourceBands,
-                         ProbabilityCalculator calculator,
-                         IndexFilter validClusterFilter,
-                         int clusterCount) {
+                         PosteriorKernel kernel,
+                         IndexFilter validClusterFilter) {
         super(sourceImageVector, imageLayout, new RenderingHints(JAI.KEY_TILE_CACHE, null), true);
 
         this.sourceBands = sourceBands;
-        this.calculator = calculator;
+        this.kernel = kernel;
         this.validClusterFilter = validClusterFilter;
-        this.clusterCount = clusterCount;
     }
 
     @Override
@@ -138,21 +130,26 @@ public class ClassOpImage extends PointOpImage {
         int sourceLineOffset = sourceBandOffset;
         int targetLineOffset = targetBandOffset;
 
-        final double[] sourceSamples = new double[sources.length];
-        final double[] posteriors = new double[clusterCount];
+        final int featureCount = sources.length;
+        final int clusterCount = kernel.getClusterCount();
+        final double[] sourceSamples = new double[rectangle.width * featureCount];
+        final double[] posteriors = new double[rectangle.width * clusterCount];
 
-        for (int y = 0; y < rectangle.getHeight(); y++) {
+        for (int y = 0; y < rectangle.height; y++) {
             int sourcePixelOffset = sourceLineOffset;
             int targetPixelOffset = targetLineOffset;
 
-            for (int x = 0; x < rectangle.getWidth(); x++) {
-                for (int i = 0; i < sources.length; i++) {
-                    sourceSamples[i] = sourceBands[i].scale(sourcePixels[i][sourcePixelOffset]);
+            for (int x = 0; x < rectangle.width; x++) {
+                for (int i = 0; i < featureCount; i++) {
+                    sourceSamples[x * featureCount + i] = sourceBands[i].scale(sourcePixels[i][sourcePixelOffset]);
                 }
-                calculator.calculate(sourceSamples, posteriors, validClusterFilter);
-                targetPixels[targetPixelOffset] = findClassIndex(posteriors);
-
                 sourcePixelOffset += sourcePixelStride;
+            }
+            // posteriors are calculated for the whole row at once
+            kernel.calculate(sourceSamples, rectangle.width, posteriors, validClusterFilter);
+
+            for (int x = 0; x < rectangle.width; x++) {
+                targetPixels[targetPixelOffset] = findClassIndex(posteriors, x * clusterCount, clusterCount);
                 targetPixelOffset += targetPixelStride;
             }
 
@@ -163,17 +160,17 @@ public class ClassOpImage extends PointOpImage {
         targetAccessor.setPixels(targetData);
     }
 
-    private static byte findClassIndex(double[] posteriors) {
+    private static byte findClassIndex(double[] posteriors, int offset, int clusterCount) {
         // for most cases the class index is found in this loop
-        for (byte i = 0; i < posteriors.length; ++i) {
-            if (posteriors[i] > 0.5) {
+        for (byte i = 0; i < clusterCount; ++i) {
+            if (posteriors[offset + i] > 0.5) {
                 return i;
             }
         }
 
         byte index = 0;
-        for (byte i = 1; i < posteriors.length; ++i) {
-            if (posteriors[i] > posteriors[index]) {
+        for (byte i = 1; i < clusterCount; ++i) {
+            if (posteriors[offset + i] > posteriors[offset + index]) {
                 index = i;
             }
         }
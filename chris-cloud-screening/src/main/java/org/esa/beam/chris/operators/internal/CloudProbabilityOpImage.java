@@ -17,7 +17,6 @@ package org.esa.beam.chris.operators.internal;
 
 import org.esa.beam.cluster.EMCluster;
 import org.esa.beam.cluster.IndexFilter;
-import org.esa.beam.cluster.ProbabilityCalculator;
 import org.esa.beam.framework.datamodel.Band;
 import org.esa.beam.framework.datamodel.Product;
 import org.esa.beam.jai.BandOpImage;
@@ -52,10 +51,9 @@ public class CloudProbabilityOpImage extends PointOpImage {
     public static final int TILE_H = 32;
 
     private final Band[] sourceBands;
-    private final ProbabilityCalculator calculator;
+    private final PosteriorKernel kernel;
     private final IndexFilter validClusterFilter;
     private final IndexFilter cloudClusterFilter;
-    private final int clusterCount;
     private final boolean discrete;
 
     public static OpImage createProbabilityImage(Product sourceProduct, String[] sourceBandNames,
@@ -67,8 +65,7 @@ public class CloudProbabilityOpImage extends PointOpImage {
             sourceBands[i] = sourceProduct.getBand(sourceBandNames[i]);
         }
 
-        return createImage(sourceBands, Clusterer.createProbabilityCalculator(clusters), validClusterFilter,
-                           cloudClusterFilter, clusters.length, false);
+        return createImage(sourceBands, new PosteriorKernel(clusters), validClusterFilter, cloudClusterFilter, false);
     }
 
     public static OpImage createDiscretizedImage(Product sourceProduct, String[] sourceBandNames,
@@ -80,16 +77,15 @@ public class CloudProbabilityOpImage extends PointOpImage {
             sourceBands[i] = sourceProduct.getBand(sourceBandNames[i]);
         }
 
-        return createImage(sourceBands, Clusterer.createProbabilityCalculator(clusters), validClusterFilter,
-                           cloudClusterFilter, clusters.length, true);
+        return createImage(sourceBands, new PosteriorKernel(clusters), validClusterFilter, cloudClusterFilter, true);
     }
 
     /*
-     * For unit-level testing, which is easier with a calculator 
+     * For unit-level testing, which is easier with a kernel
      * instead of a clusters array.
      */
-    static OpImage createImage(Band[] sourceBands, ProbabilityCalculator calculator, IndexFilter clusterFilter,
-                               IndexFilter cloudClusterFilter, int clusterCount, boolean discrete) {
+    static OpImage createImage(Band[] sourceBands, PosteriorKernel kernel, IndexFilter clusterFilter,
+                               IndexFilter cloudClusterFilter, boolean discrete) {
         final Vector<RenderedImage> sourceImageVector = new Vector<RenderedImage>();
 
         for (final Band band : sourceBands) {
@@ -108,21 +104,21 @@ public class CloudProbabilityOpImage extends PointOpImage {
         final ColorModel colorModel = PlanarImage.createColorModel(sampleModel);
         final ImageLayout imageLayout = new ImageLayout(0, 0, w, h, 0, 0, TILE_W, TILE_H, sampleModel, colorModel);
 
-        return new CloudProbabilityOpImage(imageLayout, sourceImageVector, sourceBands, calculator, clusterFilter,
-                                           cloudClusterFilter, clusterCount, discrete);
+        return new CloudProbabilityOpImage(imageLayout, sourceImageVector, sourceBands, kernel, clusterFilter,
+                                           cloudClusterFilter, discrete);
     }
 
     private CloudProbabilityOpImage(ImageLayout imageLayout, Vector<RenderedImage> sourceImageVector,
-                                    Band[] sourceBands, ProbabilityCalculator calculator,
+                                    Band[] sourceBands, PosteriorKernel kernel,
                                     IndexFilter validClusterFilter, IndexFilter cloudClusterFilter,
-                                    int clusterCount, boolean discrete) {
-        super(sourceImageVector, imageLayout, new RenderingHints(JAI.KEY_TILE_CACHE, null), true);
+                                    boolean discrete) {
+        // the discretized image is a final product, whose tiles are cached
+        super(sourceImageVector, imageLayout, discrete ? null : new RenderingHints(JAI.KEY_TILE_CACHE, null), true);
 
         this.sourceBands = sourceBands;
-        this.calculator = calculator;
+        this.kernel = kernel;
         this.validClusterFilter = validClusterFilter;
         this.cloudClusterFilter = cloudClusterFilter;
-        this.clusterCount = clusterCount;
         this.discrete = discrete;
     }
 
@@ -158,20 +154,31 @@ public class CloudProbabilityOpImage extends PointOpImage {
         int sourceLineOffset = sourceBandOffset;
         int targetLineOffset = targetBandOffset;
 
-        final double[] sourceSamples = new double[sources.length];
-        final double[] posteriors = new double[clusterCount];
+        final int featureCount = sources.length;
+        final int clusterCount = kernel.getClusterCount();
+        final double[] sourceSamples = new double[rectangle.width * featureCount];
+        final double[] posteriors = new double[rectangle.width * clusterCount];
 
-        for (int y = 0; y < rectangle.getHeight(); y++) {
+        final boolean[] cloudy = new boolean[clusterCount];
+        for (int k = 0; k < clusterCount; ++k) {
+            cloudy[k] = cloudClusterFilter.accept(k);
+        }
+
+        for (int y = 0; y < rectangle.height; y++) {
             int sourcePixelOffset = sourceLineOffset;
             int targetPixelOffset = targetLineOffset;
 
-            for (int x = 0; x < rectangle.getWidth(); x++) {
-                for (int i = 0; i < sources.length; i++) {
-                    sourceSamples[i] = sourceBands[i].scale(sourcePixels[i][sourcePixelOffset]);
+            for (int x = 0; x < rectangle.width; x++) {
+                for (int i = 0; i < featureCount; i++) {
+                    sourceSamples[x * featureCount + i] = sourceBands[i].scale(sourcePixels[i][sourcePixelOffset]);
                 }
-                calculator.calculate(sourceSamples, posteriors, validClusterFilter);
+                sourcePixelOffset += sourcePixelStride;
+            }
+            // posteriors are calculated for the whole row at once
+            kernel.calculate(sourceSamples, rectangle.width, posteriors, validClusterFilter);
 
-                final double cloudProbability = accumulateCloudProbabilities(posteriors);
+            for (int x = 0; x < rectangle.width; x++) {
+                final double cloudProbability = accumulateCloudProbabilities(posteriors, x * clusterCount, cloudy);
                 if (discrete) {
                     if (cloudProbability > 0.5) {
                         targetPixels[targetPixelOffset] = 1.0;
@@ -180,7 +187,6 @@ public class CloudProbabilityOpImage extends PointOpImage {
                     targetPixels[targetPixelOffset] = cloudProbability;
                 }
 
-                sourcePixelOffset += sourcePixelStride;
                 targetPixelOffset += targetPixelStride;
             }
 
@@ -191,12 +197,12 @@ public class CloudProbabilityOpImage extends PointOpImage {
         targetAccessor.setPixels(targetData);
     }
 
-    private double accumulateCloudProbabilities(double[] posteriors) {
+    private static double accumulateCloudProbabilities(double[] posteriors, int offset, boolean[] cloudy) {
         double sum = 0.0;
 
-        for (int i = 0; i < posteriors.length; ++i) {
-            if (cloudClusterFilter.accept(i)) {
-                sum += posteriors[i];
+        for (int i = 0; i < cloudy.length; ++i) {
+            if (cloudy[i]) {
+                sum += posteriors[offset + i];
             }
         }
 
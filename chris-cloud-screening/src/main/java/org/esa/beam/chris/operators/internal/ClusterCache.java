@@ -0,0 +1,286 @@
+/*
+ * Copyright (C) 2011 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+package org.esa.beam.chris.operators.internal;
+
+import org.esa.beam.cluster.EMCluster;
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.util.SystemUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * On-disk cache of the clusters found by EM cluster analysis.
+ * <p/>
+ * The clusters are stored in one file per entry, whose name is a hash of the
+ * source product file and the clustering parameters. When the number of entries
+ * exceeds the maximum, the least recently used entries are deleted. Entries are
+ * marked as used by setting the modification time of the file.
+ *
+ * @author Ralf Quast
+ * @version $Revision$ $Date$
+ */
+public class ClusterCache {
+
+    private static final int MAGIC = 0x43454d31;
+    // the version of the cluster algorithm and the file format, to be incremented when either changes
+    private static final int VERSION = 1;
+    private static final String FILE_EXTENSION = ".clusters";
+    private static final String TEMP_FILE_EXTENSION = ".tmp";
+    private static final int DEFAULT_MAX_ENTRY_COUNT = 32;
+
+    private static ClusterCache sharedCache;
+
+    private final File cacheDir;
+    private final int maxEntryCount;
+
+    /**
+     * Returns the cluster cache shared within the JVM, which resides in the
+     * cache directory of the application.
+     *
+     * @return the shared cluster cache.
+     */
+    public static synchronized ClusterCache getSharedClusterCache() {
+        if (sharedCache == null) {
+            final File cacheDir = new File(SystemUtils.getApplicationDataDir(), "chris-box/cache/clusters");
+            sharedCache = new ClusterCache(cacheDir, DEFAULT_MAX_ENTRY_COUNT);
+        }
+
+        return sharedCache;
+    }
+
+    /**
+     * Creates a new instance of this class.
+     *
+     * @param cacheDir      the cache directory.
+     * @param maxEntryCount the maximum number of entries kept in the cache.
+     */
+    public ClusterCache(File cacheDir, int maxEntryCount) {
+        if (maxEntryCount < 1) {
+            throw new IllegalArgumentException("maxEntryCount < 1");
+        }
+        this.cacheDir = cacheDir;
+        this.maxEntryCount = maxEntryCount;
+    }
+
+    /**
+     * Creates the key of a cache entry.
+     *
+     * @param sourceProduct            the source product.
+     * @param featureBandNames         the names of the feature bands used for clustering.
+     * @param clusterCount             the number of clusters.
+     * @param iterationCount           the number of EM iterations.
+     * @param seed                     the seed used for initializing the clusters.
+     * @param sampleFraction           the fraction of pixels used for all but the
+     *                                 final refinement iterations.
+     * @param refinementIterationCount the number of final iterations using all pixels.
+     * @param convergenceEpsilon       the limit of the relative improvement of the mean
+     *                                 log-likelihood.
+     *
+     * @return the key, or {@code null} if the source product has not been
+     *         read from a file.
+     */
+    public static String createKey(Product sourceProduct, String[] featureBandNames, int clusterCount,
+                                   int iterationCount, int seed, double sampleFraction,
+                                   int refinementIterationCount, double convergenceEpsilon) {
+        final File file = sourceProduct.getFileLocation();
+        if (file == null || !file.isFile()) {
+            return null;
+        }
+
+        final StringBuilder sb = new StringBuilder();
+        sb.append(VERSION).append('|');
+        sb.append(file.getAbsolutePath()).append('|');
+        sb.append(file.lastModified()).append('|');
+        sb.append(file.length()).append('|');
+        for (final String name : featureBandNames) {
+            sb.append(name).append(',');
+        }
+        sb.append('|').append(clusterCount);
+        sb.append('|').append(iterationCount);
+        sb.append('|').append(seed);
+        sb.append('|').append(sampleFraction);
+        sb.append('|').append(refinementIterationCount);
+        sb.append('|').append(convergenceEpsilon);
+
+        return digest(sb.toString());
+    }
+
+    /**
+     * Returns the clusters stored for a key.
+     *
+     * @param key the key.
+     *
+     * @return the clusters, or {@code null} if no valid entry exists for the key.
+     */
+    public synchronized EMCluster[] get(String key) {
+        final File file = getFile(key);
+        if (!file.isFile()) {
+            return null;
+        }
+        try {
+            final EMCluster[] clusters = read(file);
+            file.setLastModified(System.currentTimeMillis());
+            return clusters;
+        } catch (IOException e) {
+            file.delete();
+            return null;
+        }
+    }
+
+    /**
+     * Stores the clusters for a key, and evicts the least recently used
+     * entries when the maximum number of entries is exceeded. The clusters
+     * are written to a temporary file, which is renamed when complete, so
+     * an entry is never read while it is being written.
+     *
+     * @param key      the key.
+     * @param clusters the clusters.
+     *
+     * @throws IOException if the clusters could not be stored.
+     */
+    public synchronized void put(String key, EMCluster[] clusters) throws IOException {
+        if (!cacheDir.isDirectory() && !cacheDir.mkdirs()) {
+            throw new IOException("Cannot create cache directory: " + cacheDir.getPath());
+        }
+        final File file = getFile(key);
+        final File tempFile = File.createTempFile("clusters", TEMP_FILE_EXTENSION, cacheDir);
+        try {
+            write(tempFile, clusters);
+            // renaming does not replace an existing file on all platforms
+            if (file.exists() && !file.delete() || !tempFile.renameTo(file)) {
+                throw new IOException("Cannot rename cache file: " + tempFile.getPath());
+            }
+        } finally {
+            tempFile.delete();
+        }
+        evict();
+    }
+
+    private File getFile(String key) {
+        return new File(cacheDir, key + FILE_EXTENSION);
+    }
+
+    private void evict() {
+        final File[] files = cacheDir.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.isFile() && file.getName().endsWith(FILE_EXTENSION);
+            }
+        });
+        if (files == null || files.length <= maxEntryCount) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File f1, File f2) {
+                return Long.valueOf(f1.lastModified()).compareTo(f2.lastModified());
+            }
+        });
+        for (int i = 0; i < files.length - maxEntryCount; ++i) {
+            files[i].delete();
+        }
+    }
+
+    private static EMCluster[] read(File file) throws IOException {
+        final DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+
+        try {
+            if (dis.readInt() != MAGIC) {
+                throw new IOException("Not a cluster cache file: " + file.getPath());
+            }
+            final int clusterCount = dis.readInt();
+            final int featureCount = dis.readInt();
+            final EMCluster[] clusters = new EMCluster[clusterCount];
+
+            for (int k = 0; k < clusterCount; ++k) {
+                final double prior = dis.readDouble();
+                final double[] mean = new double[featureCount];
+                final double[][] covariances = new double[featureCount][featureCount];
+                for (int i = 0; i < featureCount; ++i) {
+                    mean[i] = dis.readDouble();
+                }
+                for (int i = 0; i < featureCount; ++i) {
+                    for (int j = 0; j < featureCount; ++j) {
+                        covariances[i][j] = dis.readDouble();
+                    }
+                }
+                clusters[k] = new EMCluster(mean, covariances, prior);
+            }
+
+            return clusters;
+        } finally {
+            dis.close();
+        }
+    }
+
+    private static void write(File file, EMCluster[] clusters) throws IOException {
+        final DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+
+        try {
+            final int featureCount = clusters[0].getMean().length;
+
+            dos.writeInt(MAGIC);
+            dos.writeInt(clusters.length);
+            dos.writeInt(featureCount);
+
+            for (final EMCluster cluster : clusters) {
+                final double[] mean = cluster.getMean();
+                final double[][] covariances = cluster.getCovariances();
+
+                dos.writeDouble(cluster.getPriorProbability());
+                for (int i = 0; i < featureCount; ++i) {
+                    dos.writeDouble(mean[i]);
+                }
+                for (int i = 0; i < featureCount; ++i) {
+                    for (int j = 0; j < featureCount; ++j) {
+                        dos.writeDouble(covariances[i][j]);
+                    }
+                }
+            }
+        } finally {
+            dos.close();
+        }
+    }
+
+    private static String digest(String s) {
+        try {
+            final byte[] bytes = MessageDigest.getInstance("SHA-1").digest(s.getBytes("UTF-8"));
+            final StringBuilder sb = new StringBuilder(2 * bytes.length);
+            for (final byte b : bytes) {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+                sb.append(Character.forDigit(b & 0xF, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2011 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+package org.esa.beam.chris.operators.internal;
+
+import org.esa.beam.cluster.EMCluster;
+import org.esa.beam.framework.datamodel.Band;
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.jai.BandOpImage;
+
+import java.awt.Rectangle;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.nio.ByteBuffer;
+
+/**
+ * Ranking of clusters by posterior probability for each pixel of a feature
+ * product.
+ * <p/>
+ * For each pixel the cluster indexes are stored in order of decreasing posterior
+ * probability, one byte per cluster, in a direct byte buffer. The class index
+ * for any set of valid clusters is the first valid cluster in the ranking of a
+ * pixel, so the class image can be regenerated without recalculating posteriors
+ * when the valid clusters change. Like for the {@link ClassOpImage}, the class
+ * index of a pixel whose posterior probabilities are undefined, e.g. because a
+ * feature is NaN, is zero.
+ * <p/>
+ * The ranking is calculated tile by tile when first requested. Instances of this
+ * class can be shared between threads.
+ *
+ * @author Ralf Quast
+ * @version $Revision$ $Date$
+ */
+public class ClusterRanking {
+
+    private static final int TILE_W = 64;
+    private static final int TILE_H = 64;
+    // marks the ranking of a pixel whose posterior probabilities are undefined
+    private static final byte NO_RANK = -1;
+
+    private final Band[] featureBands;
+    private final RenderedImage[] featureImages;
+    private final PosteriorKernel kernel;
+    private final int w;
+    private final int h;
+    private final int clusterCount;
+
+    private final ByteBuffer ranks;
+    private final boolean[] computed;
+    private final Object[] locks;
+    private final int tileCountX;
+
+    /**
+     * Creates a new ranking of the clusters.
+     *
+     * @param featureProduct   the feature product.
+     * @param featureBandNames the names of the feature bands used for clustering.
+     * @param clusters         the clusters.
+     *
+     * @return the ranking.
+     */
+    public static ClusterRanking create(Product featureProduct, String[] featureBandNames, EMCluster[] clusters) {
+        final Band[] featureBands = new Band[featureBandNames.length];
+        for (int i = 0; i < featureBandNames.length; i++) {
+            featureBands[i] = featureProduct.getBand(featureBandNames[i]);
+        }
+
+        return new ClusterRanking(featureBands, new PosteriorKernel(clusters));
+    }
+
+    ClusterRanking(Band[] featureBands, PosteriorKernel kernel) {
+        if (kernel.getClusterCount() > Byte.MAX_VALUE) {
+            throw new IllegalArgumentException("kernel.getClusterCount() > Byte.MAX_VALUE");
+        }
+        this.featureBands = featureBands;
+        this.kernel = kernel;
+
+        featureImages = new RenderedImage[featureBands.length];
+        for (int i = 0; i < featureBands.length; ++i) {
+            RenderedImage image = featureBands[i].getSourceImage();
+            if (image == null) {
+                image = new BandOpImage(featureBands[i]);
+                featureBands[i].setSourceImage(image);
+            }
+            featureImages[i] = image;
+        }
+
+        w = featureImages[0].getWidth();
+        h = featureImages[0].getHeight();
+        clusterCount = kernel.getClusterCount();
+
+        ranks = ByteBuffer.allocateDirect(w * h * clusterCount);
+
+        tileCountX = (w + TILE_W - 1) / TILE_W;
+        final int tileCount = tileCountX * ((h + TILE_H - 1) / TILE_H);
+        computed = new boolean[tileCount];
+        locks = new Object[tileCount];
+        for (int i = 0; i < tileCount; ++i) {
+            locks[i] = new Object();
+        }
+    }
+
+    public final int getWidth() {
+        return w;
+    }
+
+    public final int getHeight() {
+        return h;
+    }
+
+    public final int getClusterCount() {
+        return clusterCount;
+    }
+
+    /**
+     * Returns the class indexes for a rectangle of pixels, i.e. the index of
+     * the valid cluster with the largest posterior probability. When no cluster
+     * is valid, or the posterior probabilities of a pixel are undefined, the
+     * class index is zero.
+     *
+     * @param rectangle  the rectangle.
+     * @param validFlags the valid flags, one for each cluster.
+     * @param classes    the class indexes (overwritten on output).
+     * @param offset     the index of the first class index of the rectangle.
+     * @param stride     the scanline stride of the class indexes.
+     */
+    public void getClassIndexes(Rectangle rectangle, boolean[] validFlags, byte[] classes, int offset, int stride) {
+        ensureRanks(rectangle);
+
+        for (int y = rectangle.y; y < rectangle.y + rectangle.height; ++y) {
+            int classIndex = offset + (y - rectangle.y) * stride;
+
+            for (int x = rectangle.x; x < rectangle.x + rectangle.width; ++x) {
+                final int rankIndex = (y * w + x) * clusterCount;
+                byte c = 0;
+                for (int j = 0; j < clusterCount; ++j) {
+                    final byte k = ranks.get(rankIndex + j);
+                    if (k == NO_RANK) {
+                        break;
+                    }
+                    if (validFlags[k]) {
+                        c = k;
+                        break;
+                    }
+                }
+                classes[classIndex] = c;
+                ++classIndex;
+            }
+        }
+    }
+
+    private void ensureRanks(Rectangle rectangle) {
+        final int minTileX = rectangle.x / TILE_W;
+        final int minTileY = rectangle.y / TILE_H;
+        final int maxTileX = (rectangle.x + rectangle.width - 1) / TILE_W;
+        final int maxTileY = (rectangle.y + rectangle.height - 1) / TILE_H;
+
+        for (int tileY = minTileY; tileY <= maxTileY; ++tileY) {
+            for (int tileX = minTileX; tileX <= maxTileX; ++tileX) {
+                final int tileIndex = tileY * tileCountX + tileX;
+                synchronized (locks[tileIndex]) {
+                    if (!computed[tileIndex]) {
+                        computeRanks(tileX, tileY);
+                        computed[tileIndex] = true;
+                    }
+                }
+            }
+        }
+    }
+
+    private void computeRanks(int tileX, int tileY) {
+        final Rectangle tileRectangle = new Rectangle(tileX * TILE_W, tileY * TILE_H, TILE_W, TILE_H).intersection(
+                new Rectangle(0, 0, w, h));
+        final int tileW = tileRectangle.width;
+        final int featureCount = featureBands.length;
+
+        final Raster[] rasters = new Raster[featureCount];
+        for (int i = 0; i < featureCount; ++i) {
+            rasters[i] = featureImages[i].getData(tileRectangle);
+        }
+
+        final double[] rawSamples = new double[tileW];
+        final double[] samples = new double[tileW * featureCount];
+        final double[] logProbabilities = new double[tileW * clusterCount];
+        final byte[] order = new byte[clusterCount];
+
+        for (int y = tileRectangle.y; y < tileRectangle.y + tileRectangle.height; ++y) {
+            for (int i = 0; i < featureCount; ++i) {
+                rasters[i].getSamples(tileRectangle.x, y, tileW, 1, 0, rawSamples);
+                for (int x = 0; x < tileW; ++x) {
+                    samples[x * featureCount + i] = featureBands[i].scale(rawSamples[x]);
+                }
+            }
+            kernel.calculateLogProbabilities(samples, tileW, logProbabilities);
+
+            for (int x = 0; x < tileW; ++x) {
+                rank(logProbabilities, x * clusterCount, order);
+
+                final int rankIndex = (y * w + tileRectangle.x + x) * clusterCount;
+                // NaN values are ranked last, so all values are NaN if the first is
+                if (Double.isNaN(logProbabilities[x * clusterCount + order[0]])) {
+                    ranks.put(rankIndex, NO_RANK);
+                    continue;
+                }
+                for (int j = 0; j < clusterCount; ++j) {
+                    ranks.put(rankIndex + j, order[j]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Sorts the cluster indexes by decreasing value. Clusters with equal values
+     * keep their order, so the cluster with the lowest index wins a tie.
+     *
+     * @param values the values.
+     * @param offset the index of the value of the first cluster.
+     * @param order  the cluster indexes in sorted order (overwritten on output).
+     */
+    private static void rank(double[] values, int offset, byte[] order) {
+        for (byte k = 0; k < order.length; ++k) {
+            final double value = values[offset + k];
+
+            int j = k;
+            // NaN values are ranked last
+            while (j > 0 && (value > values[offset + order[j - 1]] || Double.isNaN(values[offset + order[j - 1]])
+                                                                      && !Double.isNaN(value))) {
+                order[j] = order[j - 1];
+                --j;
+            }
+            order[j] = k;
+        }
+    }
+}
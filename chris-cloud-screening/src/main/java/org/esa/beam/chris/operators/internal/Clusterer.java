@@ -19,12 +19,33 @@ import org.esa.beam.cluster.Distribution;
 import org.esa.beam.cluster.EMCluster;
 import org.esa.beam.cluster.ProbabilityCalculator;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 /**
  * Expectation maximization (EM) cluster algorithm.
+ * <p/>
+ * The pixels are divided into a fixed number of partitions. For each partition
+ * the sufficient statistics of the clusters (the sums of posterior probabilities
+ * and the weighted means and scatter matrices) are accumulated independently,
+ * so that partitions may be processed concurrently. The partial statistics are
+ * merged in the order of partitions, which makes the result depend on the seed
+ * and the number of partitions only.
+ * <p/>
+ * Iterations may be restricted to a stratified random sample of the pixels,
+ * which is useful for carrying out early iterations on large images (mini-batch
+ * EM). The sample is drawn with the random number generator used for the
+ * initialization of the clusters, so the result is reproducible.
+ * <p/>
+ * Each iteration evaluates the mean log-likelihood of the pixels used for
+ * iterating, which may serve as convergence criterion.
  *
  * @author Ralf Quast
  * @version $Revision$ $Date$
@@ -32,7 +53,12 @@ import java.util.Random;
 public class Clusterer {
 
     private final int clusterCount;
+    private final int partitionCount;
     private final PixelAccessor pixelAccessor;
+    private final Random random;
+
+    // indexes of the pixels used for iterating, all pixels are used if null
+    private int[] sampleIndexes;
 
     // prior cluster probabilities
     private final double[] priors;
@@ -43,9 +69,6 @@ public class Clusterer {
     // cluster distributions
     private final Distribution[] distributions;
 
-    // strategy for calculating posterior cluster probabilities
-    private final ProbabilityCalculator calculator;
-
     /**
      * Finds a collection of clusters for a given set of data points.
      *
@@ -57,7 +80,43 @@ public class Clusterer {
      * @return the cluster decomposition.
      */
     public static EMCluster[] findClusters(PixelAccessor pixelAccessor, int clusterCount, int iterationCount, int seed) {
-        return new Clusterer(pixelAccessor, clusterCount, seed).findClusters(iterationCount);
+        return new Clusterer(pixelAccessor, clusterCount, seed).findClusters(iterationCount, 0.0).getClusters();
+    }
+
+    /**
+     * Finds a collection of clusters for a given set of data points. The
+     * iteration stops early when the relative improvement of the mean
+     * log-likelihood falls below a given limit.
+     *
+     * @param pixelAccessor  the pixel accessor.
+     * @param clusterCount   the number of clusters.
+     * @param iterationCount the maximum number of EM iterations to be made.
+     * @param seed           the seed used to initialize the cluster algorithm
+     * @param epsilon        the limit of the relative improvement of the mean
+     *                       log-likelihood.
+     *
+     * @return the result of the cluster analysis.
+     */
+    public static EMResult findClusters(PixelAccessor pixelAccessor, int clusterCount, int iterationCount, int seed,
+                                        double epsilon) {
+        return new Clusterer(pixelAccessor, clusterCount, seed).findClusters(iterationCount, epsilon);
+    }
+
+    /**
+     * Tests whether the EM iteration has converged.
+     *
+     * @param previous the mean log-likelihood of the previous iteration.
+     * @param current  the mean log-likelihood of the current iteration.
+     * @param epsilon  the limit of the relative improvement of the mean
+     *                 log-likelihood.
+     *
+     * @return {@code true} if {@code epsilon} is positive and the relative improvement
+     *         of the mean log-likelihood is non-negative and less than or equal to
+     *         {@code epsilon}, {@code false} otherwise. A decrease of the mean
+     *         log-likelihood is not considered as convergence.
+     */
+    public static boolean isConverged(double previous, double current, double epsilon) {
+        return epsilon > 0.0 && current >= previous && current - previous <= epsilon * Math.abs(previous);
     }
 
     /**
@@ -88,35 +147,59 @@ public class Clusterer {
      * @param seed          the seed used to initialize the cluster algorithm.
      */
     public Clusterer(PixelAccessor pixelAccessor, int clusterCount, long seed) {
+        this(pixelAccessor, clusterCount, seed, 1);
+    }
+
+    /**
+     * Constructs a new instance of this class.
+     *
+     * @param pixelAccessor  the pixel accessor.
+     * @param clusterCount   the number of clusters.
+     * @param seed           the seed used to initialize the cluster algorithm.
+     * @param partitionCount the number of partitions the pixels are divided into.
+     *                       The result depends on the number of partitions, but
+     *                       not on the number of threads used for iterating.
+     */
+    public Clusterer(PixelAccessor pixelAccessor, int clusterCount, long seed, int partitionCount) {
+        if (partitionCount < 1) {
+            throw new IllegalArgumentException("partitionCount < 1");
+        }
         final int sampleCount = pixelAccessor.getSampleCount();
 
         this.pixelAccessor = pixelAccessor;
         this.clusterCount = clusterCount;
+        this.partitionCount = partitionCount;
 
         priors = new double[clusterCount];
 
         means = new double[clusterCount][sampleCount];
         covariances = new double[clusterCount][sampleCount][sampleCount];
         distributions = new Distribution[clusterCount];
-        calculator = new ProbabilityCalculator(distributions, priors);
 
-        initialize(new Random(seed));
+        random = new Random(seed);
+        initialize(random);
     }
 
     /**
      * Finds a collection of clusters.
      *
-     * @param iterationCount the number of EM iterations to be made.
+     * @param iterationCount the maximum number of EM iterations to be made.
+     * @param epsilon        the limit of the relative improvement of the mean
+     *                       log-likelihood.
      *
-     * @return the cluster decomposition.
+     * @return the result of the cluster analysis.
      */
-    private EMCluster[] findClusters(int iterationCount) {
+    private EMResult findClusters(int iterationCount, double epsilon) {
+        final double[] logLikelihoods = new double[iterationCount];
+
         for (int i = 0; i < iterationCount; ++i) {
-            iterate();
-            // todo - logging
+            logLikelihoods[i] = iterate();
+            if (i > 0 && isConverged(logLikelihoods[i - 1], logLikelihoods[i], epsilon)) {
+                return new EMResult(getClusters(), Arrays.copyOf(logLikelihoods, i + 1), true);
+            }
         }
 
-        return getClusters();
+        return new EMResult(getClusters(), logLikelihoods, false);
     }
 
     /**
@@ -187,38 +270,162 @@ public class Clusterer {
         }
     }
 
+    /**
+     * Sets the fraction of pixels used for subsequent iterations. The pixels
+     * are divided into strata of consecutive pixels and a single pixel is
+     * randomly selected from each stratum.
+     *
+     * @param sampleFraction the sample fraction. If unity, all pixels are used.
+     */
+    public final void setSampleFraction(double sampleFraction) {
+        if (sampleFraction <= 0.0 || sampleFraction > 1.0) {
+            throw new IllegalArgumentException("sampleFraction <= 0.0 || sampleFraction > 1.0");
+        }
+        final int pixelCount = pixelAccessor.getPixelCount();
+        final int strataCount = Math.max(Math.min(clusterCount, pixelCount),
+                                         (int) Math.round(sampleFraction * pixelCount));
+
+        if (strataCount >= pixelCount) {
+            sampleIndexes = null;
+        } else {
+            sampleIndexes = new int[strataCount];
+            for (int j = 0; j < strataCount; ++j) {
+                final int from = (int) ((long) pixelCount * j / strataCount);
+                final int to = (int) ((long) pixelCount * (j + 1) / strataCount);
+                sampleIndexes[j] = from + random.nextInt(to - from);
+            }
+        }
+    }
+
     /**
      * Carries out a single EM iteration.
+     *
+     * @return the mean log-likelihood of the pixels used for iterating, with
+     *         respect to the clusters before the iteration.
      */
-    public final void iterate() {
-        iterate(false);
+    public final double iterate() {
+        final Statistics[] statistics = new Statistics[partitionCount];
+
+        for (int p = 0; p < partitionCount; ++p) {
+            statistics[p] = accumulate(p, false);
+        }
+        return update(statistics, false);
     }
 
-    private void iterate(boolean updateCovariances) {
-        final int pixelCount = pixelAccessor.getPixelCount();
+    /**
+     * Carries out a single EM iteration, where the partitions of pixels are
+     * processed concurrently. The result is the same as for {@link #iterate()}.
+     *
+     * @param executorService the executor service used for processing the
+     *                        partitions.
+     *
+     * @return the mean log-likelihood of the pixels used for iterating, with
+     *         respect to the clusters before the iteration.
+     *
+     * @throws InterruptedException if the current thread was interrupted while
+     *                              waiting for the partitions to be processed.
+     */
+    public final double iterate(ExecutorService executorService) throws InterruptedException {
+        final List<Future<Statistics>> futures = new ArrayList<Future<Statistics>>(partitionCount);
+
+        for (int p = 0; p < partitionCount; ++p) {
+            final int partition = p;
+            futures.add(executorService.submit(new Callable<Statistics>() {
+                @Override
+                public Statistics call() {
+                    return accumulate(partition, false);
+                }
+            }));
+        }
+
+        final Statistics[] statistics = new Statistics[partitionCount];
+        try {
+            for (int p = 0; p < partitionCount; ++p) {
+                statistics[p] = futures.get(p).get();
+            }
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        } finally {
+            for (final Future<Statistics> future : futures) {
+                future.cancel(true);
+            }
+        }
+        return update(statistics, false);
+    }
+
+    /**
+     * Accumulates the sufficient statistics of the clusters for a partition
+     * of pixels.
+     *
+     * @param partition         the partition index.
+     * @param updateCovariances if {@code true} the off-diagonal elements of
+     *                          the scatter matrices are accumulated, too.
+     *
+     * @return the statistics of the partition or {@code null} if the partition
+     *         is empty.
+     */
+    private Statistics accumulate(int partition, boolean updateCovariances) {
+        final int[] sampleIndexes = this.sampleIndexes;
+        final int pixelCount = sampleIndexes == null ? pixelAccessor.getPixelCount() : sampleIndexes.length;
         final int sampleCount = pixelAccessor.getSampleCount();
 
-        final double[] sums = new double[clusterCount];
+        final int from = (int) ((long) pixelCount * partition / partitionCount);
+        final int to = (int) ((long) pixelCount * (partition + 1) / partitionCount);
+        if (from == to) {
+            return null;
+        }
+
+        final Statistics statistics = new Statistics(clusterCount, sampleCount);
+        final double[] sums = statistics.sums;
+        final double[][] means = statistics.means;
+        final double[][][] scatters = statistics.scatters;
+
         final double[] posteriors = new double[clusterCount];
         final double[] samples = new double[sampleCount];
 
-        for (int i = 0; i < pixelCount; ++i) {
-            pixelAccessor.getSamples(i, samples);
-            calculator.calculate(samples, posteriors);
+        double priorSum = 0.0;
+        for (int k = 0; k < clusterCount; ++k) {
+            priorSum += priors[k];
+        }
+        final double[] logPriors = new double[clusterCount];
+        for (int k = 0; k < clusterCount; ++k) {
+            logPriors[k] = Math.log(priors[k] / priorSum);
+        }
+
+        for (int i = from; i < to; ++i) {
+            pixelAccessor.getSamples(sampleIndexes == null ? i : sampleIndexes[i], samples);
+
+            // calculate posterior probabilities and log-likelihood from the
+            // logarithmic densities, which avoids underflow
+            double max = Double.NEGATIVE_INFINITY;
+            for (int k = 0; k < clusterCount; ++k) {
+                posteriors[k] = logPriors[k] + distributions[k].logProbabilityDensity(samples);
+                if (posteriors[k] > max) {
+                    max = posteriors[k];
+                }
+            }
+            double sum = 0.0;
+            for (int k = 0; k < clusterCount; ++k) {
+                posteriors[k] = Math.exp(posteriors[k] - max);
+                sum += posteriors[k];
+            }
+            for (int k = 0; k < clusterCount; ++k) {
+                posteriors[k] /= sum;
+            }
+            statistics.logLikelihood += max + Math.log(sum);
 
             // calculate cluster means and covariances in a single pass
             // D. H. D. West (1979, Communications of the ACM, 22, 532)
-            if (i == 0) {
+            if (i == from) {
                 for (int k = 0; k < clusterCount; ++k) {
-                    for (int l = 0; l < sampleCount; ++l) {
-                        means[k][l] = samples[l];
-                        covariances[k][l][l] = 0.0;
-                        if (updateCovariances) {
-                            for (int m = l + 1; m < sampleCount; ++m) {
-                                covariances[k][l][m] = 0.0;
-                            }
-                        }
-                    }
+                    System.arraycopy(samples, 0, means[k], 0, sampleCount);
                     sums[k] = posteriors[k];
                 }
             } else {
@@ -229,10 +436,10 @@ public class Clusterer {
                         for (int l = 0; l < sampleCount; ++l) {
                             final double dist = samples[l] - means[k][l];
 
-                            covariances[k][l][l] += sums[k] * posteriors[k] * dist * dist / temp;
+                            scatters[k][l][l] += sums[k] * posteriors[k] * dist * dist / temp;
                             if (updateCovariances) {
                                 for (int m = l + 1; m < sampleCount; ++m) {
-                                    covariances[k][l][m] += sums[k] * posteriors[k] * dist * (samples[m] - means[k][m]) / temp;
+                                    scatters[k][l][m] += sums[k] * posteriors[k] * dist * (samples[m] - means[k][m]) / temp;
                                 }
                             }
                             means[k][l] += posteriors[k] * dist / temp;
@@ -244,20 +451,55 @@ public class Clusterer {
             }
         }
 
+        return statistics;
+    }
+
+    /**
+     * Merges the statistics of all partitions and updates the clusters.
+     *
+     * @param statistics        the statistics of the partitions.
+     * @param updateCovariances if {@code true} the off-diagonal elements of
+     *                          the covariance matrices are updated, too.
+     *
+     * @return the mean log-likelihood of the pixels.
+     */
+    private double update(Statistics[] statistics, boolean updateCovariances) {
+        final int pixelCount = sampleIndexes == null ? pixelAccessor.getPixelCount() : sampleIndexes.length;
+        final int sampleCount = pixelAccessor.getSampleCount();
+
+        Statistics merged = null;
+        for (final Statistics s : statistics) {
+            if (s != null) {
+                if (merged == null) {
+                    merged = s;
+                } else {
+                    merged.merge(s, updateCovariances);
+                }
+            }
+        }
+        if (merged == null) {
+            return Double.NaN;
+        }
+
         for (int k = 0; k < clusterCount; ++k) {
+            final double sum = merged.sums[k];
+
             for (int l = 0; l < sampleCount; ++l) {
-                covariances[k][l][l] /= sums[k];
+                means[k][l] = merged.means[k][l];
+                covariances[k][l][l] = merged.scatters[k][l][l] / sum;
                 if (updateCovariances) {
                     for (int m = l + 1; m < sampleCount; ++m) {
-                        covariances[k][l][m] /= sums[k];
+                        covariances[k][l][m] = merged.scatters[k][l][m] / sum;
                         covariances[k][m][l] = covariances[k][l][m];
                     }
                 }
             }
 
-            priors[k] = sums[k] / pixelCount;
+            priors[k] = sum / pixelCount;
             distributions[k] = new MultinormalDistribution(means[k], covariances[k]);
         }
+
+        return merged.logLikelihood / pixelCount;
     }
 
     /**
@@ -272,6 +514,76 @@ public class Clusterer {
         }
     }
 
+    /**
+     * Sufficient statistics of the clusters for a partition of pixels.
+     */
+    private static class Statistics {
+        // sums of posterior probabilities
+        private final double[] sums;
+        // weighted means
+        private final double[][] means;
+        // weighted scatter matrices, only the upper triangle is used
+        private final double[][][] scatters;
+        // sum of log-likelihoods
+        private double logLikelihood;
+
+        private Statistics(int clusterCount, int sampleCount) {
+            sums = new double[clusterCount];
+            means = new double[clusterCount][sampleCount];
+            scatters = new double[clusterCount][sampleCount][sampleCount];
+        }
+
+        /**
+         * Merges the statistics of another partition into this statistics.
+         * <p/>
+         * T. F. Chan, G. H. Golub, R. J. LeVeque (1979, Technical Report STAN-CS-79-773)
+         *
+         * @param other             the statistics of the other partition.
+         * @param updateCovariances if {@code true} the off-diagonal elements of
+         *                          the scatter matrices are merged, too.
+         */
+        private void merge(Statistics other, boolean updateCovariances) {
+            logLikelihood += other.logLikelihood;
+            for (int k = 0; k < sums.length; ++k) {
+                final double wa = sums[k];
+                final double wb = other.sums[k];
+
+                if (wb > 0.0) {
+                    final double[] ma = means[k];
+                    final double[] mb = other.means[k];
+                    final double[][] sa = scatters[k];
+                    final double[][] sb = other.scatters[k];
+
+                    if (wa > 0.0) {
+                        final double w = wa + wb;
+                        final double f = wa * wb / w;
+
+                        for (int l = 0; l < ma.length; ++l) {
+                            final double dist = mb[l] - ma[l];
+
+                            sa[l][l] += sb[l][l] + f * dist * dist;
+                            if (updateCovariances) {
+                                for (int m = l + 1; m < ma.length; ++m) {
+                                    sa[l][m] += sb[l][m] + f * dist * (mb[m] - ma[m]);
+                                }
+                            }
+                        }
+                        for (int l = 0; l < ma.length; ++l) {
+                            ma[l] += (mb[l] - ma[l]) * wb / w;
+                        }
+                        sums[k] = w;
+                    } else {
+                        System.arraycopy(mb, 0, ma, 0, ma.length);
+                        for (int l = 0; l < ma.length; ++l) {
+                            System.arraycopy(sb[l], 0, sa[l], 0, ma.length);
+                        }
+                        sums[k] = wb;
+                    }
+                }
+            }
+        }
+    }
+
     /**
      * Multinormal distribution with vanishing covariances.
      */
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2011 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+package org.esa.beam.chris.operators.internal;
+
+import org.esa.beam.cluster.EMCluster;
+
+/**
+ * Result of an expectation maximization (EM) cluster analysis.
+ *
+ * @author Ralf Quast
+ * @version $Revision$ $Date$
+ */
+public class EMResult {
+
+    private final EMCluster[] clusters;
+    private final double[] logLikelihoods;
+    private final boolean converged;
+
+    /**
+     * Constructs a new instance of this class.
+     *
+     * @param clusters       the clusters found.
+     * @param logLikelihoods the mean log-likelihoods of all iterations made.
+     * @param converged      {@code true} if the iteration has converged.
+     */
+    public EMResult(EMCluster[] clusters, double[] logLikelihoods, boolean converged) {
+        this.clusters = clusters;
+        this.logLikelihoods = logLikelihoods;
+        this.converged = converged;
+    }
+
+    /**
+     * Returns the clusters found.
+     *
+     * @return the clusters found.
+     */
+    public EMCluster[] getClusters() {
+        return clusters;
+    }
+
+    /**
+     * Returns the number of iterations made.
+     *
+     * @return the number of iterations made.
+     */
+    public int getIterationCount() {
+        return logLikelihoods.length;
+    }
+
+    /**
+     * Returns the convergence history, i.e. the mean log-likelihood of the
+     * pixels for each iteration made.
+     *
+     * @return the mean log-likelihoods.
+     */
+    public double[] getLogLikelihoods() {
+        return logLikelihoods.clone();
+    }
+
+    /**
+     * Returns {@code true} if the iteration has converged before the maximum
+     * number of iterations was made.
+     *
+     * @return {@code true} if the iteration has converged, {@code false} otherwise.
+     */
+    public boolean isConverged() {
+        return converged;
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2011 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+package org.esa.beam.chris.operators.internal;
+
+import org.esa.beam.cluster.EMCluster;
+import org.esa.beam.cluster.IndexFilter;
+
+/**
+ * Calculates the posterior cluster probabilities of many pixels at once,
+ * for clusters with multinormal distributions of vanishing covariances.
+ * <p/>
+ * The cluster means, the negative half inverse variances and the logarithms
+ * of prior probability times normalization factor are precomputed into flat
+ * arrays. The posteriors are normalized by means of the log-sum-exp method,
+ * so they are well-defined even when all probability densities underflow.
+ * <p/>
+ * Instances of this class are immutable and can be shared between threads.
+ *
+ * @author Ralf Quast
+ * @version $Revision$ $Date$
+ */
+public class PosteriorKernel {
+
+    private final int clusterCount;
+    private final int featureCount;
+
+    // cluster means, indexed by cluster * featureCount + feature
+    private final double[] means;
+    // negative half inverse cluster variances, indexed like the means
+    private final double[] weights;
+    // logarithms of prior probability times normalization factor
+    private final double[] logFactors;
+
+    /**
+     * Creates a new instance of this class.
+     *
+     * @param clusters the clusters. Only the diagonal elements of the
+     *                 covariance matrices are considered.
+     */
+    public PosteriorKernel(EMCluster[] clusters) {
+        clusterCount = clusters.length;
+        featureCount = clusters[0].getMean().length;
+
+        means = new double[clusterCount * featureCount];
+        weights = new double[clusterCount * featureCount];
+        logFactors = new double[clusterCount];
+
+        for (int k = 0; k < clusterCount; ++k) {
+            final double[] mean = clusters[k].getMean();
+            final double[][] covariances = clusters[k].getCovariances();
+
+            double det = 1.0;
+            for (int i = 0; i < featureCount; ++i) {
+                means[k * featureCount + i] = mean[i];
+                weights[k * featureCount + i] = -0.5 / covariances[i][i];
+                det *= covariances[i][i];
+            }
+            if (det == 0) {
+                throw new ArithmeticException("covariance matrix is singular.");
+            }
+            logFactors[k] = Math.log(clusters[k].getPriorProbability())
+                            - 0.5 * (featureCount * Math.log(2.0 * Math.PI) + Math.log(det));
+        }
+    }
+
+    /**
+     * Returns the number of clusters.
+     *
+     * @return the number of clusters.
+     */
+    public final int getClusterCount() {
+        return clusterCount;
+    }
+
+    /**
+     * Returns the number of features.
+     *
+     * @return the number of features.
+     */
+    public final int getFeatureCount() {
+        return featureCount;
+    }
+
+    /**
+     * Calculates the posterior cluster probabilities of a number of pixels.
+     * The posteriors of clusters which are not accepted by the cluster filter
+     * are zero. When no cluster is accepted, all posteriors are zero.
+     *
+     * @param samples       the feature samples, where the sample of feature
+     *                      {@code i} of pixel {@code p} is found at index
+     *                      {@code p * featureCount + i}.
+     * @param pixelCount    the number of pixels.
+     * @param posteriors    the posterior probabilities, where the posterior
+     *                      of cluster {@code k} for pixel {@code p} is found
+     *                      at index {@code p * clusterCount + k} (overwritten
+     *                      on output).
+     * @param clusterFilter the cluster filter.
+     */
+    public void calculate(double[] samples, int pixelCount, double[] posteriors, IndexFilter clusterFilter) {
+        final boolean[] accepted = new boolean[clusterCount];
+        for (int k = 0; k < clusterCount; ++k) {
+            accepted[k] = clusterFilter.accept(k);
+        }
+
+        // 1. log probability densities, cluster by cluster
+        calculateLogProbabilities(samples, pixelCount, posteriors, accepted);
+
+        // 2. normalization, pixel by pixel
+        for (int p = 0; p < pixelCount; ++p) {
+            final int offset = p * clusterCount;
+
+            double max = Double.NEGATIVE_INFINITY;
+            for (int k = 0; k < clusterCount; ++k) {
+                if (posteriors[offset + k] > max) {
+                    max = posteriors[offset + k];
+                }
+            }
+            if (max == Double.NEGATIVE_INFINITY) {
+                for (int k = 0; k < clusterCount; ++k) {
+                    posteriors[offset + k] = 0.0;
+                }
+                continue;
+            }
+
+            double sum = 0.0;
+            for (int k = 0; k < clusterCount; ++k) {
+                final double posterior = Math.exp(posteriors[offset + k] - max);
+                posteriors[offset + k] = posterior;
+                sum += posterior;
+            }
+            for (int k = 0; k < clusterCount; ++k) {
+                posteriors[offset + k] /= sum;
+            }
+        }
+    }
+
+    /**
+     * Calculates the logarithms of prior probability times probability density
+     * of all clusters for a number of pixels. The cluster with the largest value
+     * is the cluster with the largest posterior probability.
+     *
+     * @param samples          the feature samples, where the sample of feature
+     *                         {@code i} of pixel {@code p} is found at index
+     *                         {@code p * featureCount + i}.
+     * @param pixelCount       the number of pixels.
+     * @param logProbabilities the logarithms calculated, where the value of
+     *                         cluster {@code k} for pixel {@code p} is found
+     *                         at index {@code p * clusterCount + k} (overwritten
+     *                         on output).
+     */
+    public void calculateLogProbabilities(double[] samples, int pixelCount, double[] logProbabilities) {
+        final boolean[] accepted = new boolean[clusterCount];
+        for (int k = 0; k < clusterCount; ++k) {
+            accepted[k] = true;
+        }
+
+        calculateLogProbabilities(samples, pixelCount, logProbabilities, accepted);
+    }
+
+    private void calculateLogProbabilities(double[] samples, int pixelCount, double[] logProbabilities,
+                                           boolean[] accepted) {
+        for (int k = 0; k < clusterCount; ++k) {
+            if (!accepted[k]) {
+                for (int p = 0; p < pixelCount; ++p) {
+                    logProbabilities[p * clusterCount + k] = Double.NEGATIVE_INFINITY;
+                }
+                continue;
+            }
+            final int clusterOffset = k * featureCount;
+            final double logFactor = logFactors[k];
+
+            for (int p = 0; p < pixelCount; ++p) {
+                final int pixelOffset = p * featureCount;
+                double sum = logFactor;
+                for (int i = 0; i < featureCount; ++i) {
+                    final double d = samples[pixelOffset + i] - means[clusterOffset + i];
+                    sum += d * d * weights[clusterOffset + i];
+                }
+                logProbabilities[p * clusterCount + k] = sum;
+            }
+        }
+    }
+}
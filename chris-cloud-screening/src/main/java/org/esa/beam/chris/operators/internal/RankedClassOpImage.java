@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2011 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+package org.esa.beam.chris.operators.internal;
+
+import org.esa.beam.cluster.IndexFilter;
+
+import javax.media.jai.ComponentSampleModelJAI;
+import javax.media.jai.ImageLayout;
+import javax.media.jai.JAI;
+import javax.media.jai.OpImage;
+import javax.media.jai.PixelAccessor;
+import javax.media.jai.PlanarImage;
+import javax.media.jai.SourcelessOpImage;
+import javax.media.jai.UnpackedImageData;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+
+/**
+ * Class image obtained from a {@link ClusterRanking}. Yields the same class
+ * indexes as the {@link ClassOpImage}, but does not calculate any posterior
+ * probabilities once the ranking is known.
+ *
+ * @author Ralf Quast
+ * @version $Revision$ $Date$
+ */
+public class RankedClassOpImage extends SourcelessOpImage {
+
+    private static final int TILE_W = 32;
+    private static final int TILE_H = 32;
+
+    private final ClusterRanking ranking;
+    private final boolean[] validFlags;
+
+    public static OpImage createImage(ClusterRanking ranking, IndexFilter validClusterFilter) {
+        final int w = ranking.getWidth();
+        final int h = ranking.getHeight();
+
+        final SampleModel sampleModel = new ComponentSampleModelJAI(DataBuffer.TYPE_BYTE, w, h, 1, w, new int[]{0});
+        final ColorModel colorModel = PlanarImage.createColorModel(sampleModel);
+        final ImageLayout imageLayout = new ImageLayout(0, 0, w, h, 0, 0, TILE_W, TILE_H, sampleModel, colorModel);
+
+        final boolean[] validFlags = new boolean[ranking.getClusterCount()];
+        for (int k = 0; k < validFlags.length; ++k) {
+            validFlags[k] = validClusterFilter.accept(k);
+        }
+
+        return new RankedClassOpImage(imageLayout, sampleModel, ranking, validFlags);
+    }
+
+    private RankedClassOpImage(ImageLayout imageLayout, SampleModel sampleModel, ClusterRanking ranking,
+                               boolean[] validFlags) {
+        super(imageLayout, new RenderingHints(JAI.KEY_TILE_CACHE, null), sampleModel,
+              0, 0, ranking.getWidth(), ranking.getHeight());
+
+        this.ranking = ranking;
+        this.validFlags = validFlags;
+    }
+
+    @Override
+    protected void computeRect(PlanarImage[] sources, WritableRaster target, Rectangle rectangle) {
+        final PixelAccessor targetAccessor = new PixelAccessor(getSampleModel(), getColorModel());
+        final UnpackedImageData targetData = targetAccessor.getPixels(target, rectangle, DataBuffer.TYPE_BYTE, true);
+
+        ranking.getClassIndexes(rectangle, validFlags, targetData.getByteData(0), targetData.bandOffsets[0],
+                                targetData.lineStride);
+
+        targetAccessor.setPixels(targetData);
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2011 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+package org.esa.beam.chris.operators.internal;
+
+import org.esa.beam.cluster.EMCluster;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Cloud screening model, comprising the names of the feature bands used for
+ * clustering, the clusters, and the cloudy and ignore flags assigned to the
+ * clusters when labeling.
+ * <p/>
+ * A model is stored in a compact binary file. Since the clusters are used
+ * with vanishing covariances only, the variances of the clusters are stored
+ * instead of the full covariance matrices.
+ *
+ * @author Ralf Quast
+ * @version $Revision$ $Date$
+ */
+public class ScreeningModel {
+
+    private static final int MAGIC = 0x43534d31;
+
+    private final String[] featureBandNames;
+    private final EMCluster[] clusters;
+    private final boolean[] cloudyFlags;
+    private final boolean[] ignoreFlags;
+
+    /**
+     * Creates a new instance of this class.
+     *
+     * @param featureBandNames the names of the feature bands used for clustering.
+     * @param clusters         the clusters.
+     * @param cloudyFlags      the cloudy flags, one for each cluster.
+     * @param ignoreFlags      the ignore flags, one for each cluster.
+     */
+    public ScreeningModel(String[] featureBandNames, EMCluster[] clusters, boolean[] cloudyFlags,
+                          boolean[] ignoreFlags) {
+        if (cloudyFlags.length != clusters.length) {
+            throw new IllegalArgumentException("cloudyFlags.length != clusters.length");
+        }
+        if (ignoreFlags.length != clusters.length) {
+            throw new IllegalArgumentException("ignoreFlags.length != clusters.length");
+        }
+        for (final EMCluster cluster : clusters) {
+            if (cluster.getMean().length != featureBandNames.length) {
+                throw new IllegalArgumentException("cluster.getMean().length != featureBandNames.length");
+            }
+        }
+        this.featureBandNames = featureBandNames.clone();
+        this.clusters = clusters.clone();
+        this.cloudyFlags = cloudyFlags.clone();
+        this.ignoreFlags = ignoreFlags.clone();
+    }
+
+    public final String[] getFeatureBandNames() {
+        return featureBandNames.clone();
+    }
+
+    public final EMCluster[] getClusters() {
+        return clusters.clone();
+    }
+
+    public final boolean[] getCloudyFlags() {
+        return cloudyFlags.clone();
+    }
+
+    public final boolean[] getIgnoreFlags() {
+        return ignoreFlags.clone();
+    }
+
+    /**
+     * Reads a screening model from a file.
+     *
+     * @param file the file.
+     *
+     * @return the screening model read.
+     *
+     * @throws IOException if the model could not be read.
+     */
+    public static ScreeningModel read(File file) throws IOException {
+        final DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+
+        try {
+            if (dis.readInt() != MAGIC) {
+                throw new IOException("Not a cloud screening model file: " + file.getPath());
+            }
+            final int featureCount = dis.readInt();
+            final String[] featureBandNames = new String[featureCount];
+            for (int i = 0; i < featureCount; ++i) {
+                featureBandNames[i] = dis.readUTF();
+            }
+
+            final int clusterCount = dis.readInt();
+            final EMCluster[] clusters = new EMCluster[clusterCount];
+            final boolean[] cloudyFlags = new boolean[clusterCount];
+            final boolean[] ignoreFlags = new boolean[clusterCount];
+
+            for (int k = 0; k < clusterCount; ++k) {
+                final double prior = dis.readDouble();
+                final double[] mean = new double[featureCount];
+                final double[][] covariances = new double[featureCount][featureCount];
+                for (int i = 0; i < featureCount; ++i) {
+                    mean[i] = dis.readDouble();
+                }
+                for (int i = 0; i < featureCount; ++i) {
+                    covariances[i][i] = dis.readDouble();
+                }
+                clusters[k] = new EMCluster(mean, covariances, prior);
+                cloudyFlags[k] = dis.readBoolean();
+                ignoreFlags[k] = dis.readBoolean();
+            }
+
+            return new ScreeningModel(featureBandNames, clusters, cloudyFlags, ignoreFlags);
+        } finally {
+            dis.close();
+        }
+    }
+
+    /**
+     * Writes this screening model to a file.
+     *
+     * @param file the file.
+     *
+     * @throws IOException if the model could not be written.
+     */
+    public void write(File file) throws IOException {
+        final DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+
+        try {
+            dos.writeInt(MAGIC);
+            dos.writeInt(featureBandNames.length);
+            for (final String name : featureBandNames) {
+                dos.writeUTF(name);
+            }
+
+            dos.writeInt(clusters.length);
+            for (int k = 0; k < clusters.length; ++k) {
+                final double[] mean = clusters[k].getMean();
+                final double[][] covariances = clusters[k].getCovariances();
+
+                dos.writeDouble(clusters[k].getPriorProbability());
+                for (final double m : mean) {
+                    dos.writeDouble(m);
+                }
+                for (int i = 0; i < mean.length; ++i) {
+                    dos.writeDouble(covariances[i][i]);
+                }
+                dos.writeBoolean(cloudyFlags[k]);
+                dos.writeBoolean(ignoreFlags[k]);
+            }
+        } finally {
+            dos.close();
+        }
+    }
+}
@@ -18,6 +18,7 @@ package org.esa.beam.chris.ui;
 import com.bc.ceres.core.ProgressMonitor;
 import com.bc.ceres.glayer.support.ImageLayer;
 import com.bc.ceres.swing.progress.ProgressMonitorSwingWorker;
+import org.esa.beam.chris.operators.internal.ScreeningModel;
 import org.esa.beam.framework.datamodel.Band;
 import org.esa.beam.framework.datamodel.Product;
 import org.esa.beam.framework.ui.AppContext;
@@ -25,6 +26,7 @@ import org.esa.beam.framework.ui.ModelessDialog;
 import org.esa.beam.framework.ui.PixelPositionListener;
 import org.esa.beam.framework.ui.UIUtils;
 import org.esa.beam.framework.ui.product.ProductSceneView;
+import org.esa.beam.util.io.BeamFileChooser;
 import org.esa.beam.visat.VisatApp;
 
 import javax.swing.AbstractButton;
@@ -38,6 +40,8 @@ import java.awt.event.MouseEvent;
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyVetoException;
 import java.beans.VetoableChangeListener;
+import java.io.File;
+import java.io.IOException;
 import java.text.MessageFormat;
 import java.util.concurrent.ExecutionException;
 
@@ -85,6 +89,13 @@ class LabelingDialog extends ModelessDialog {
             }
         });
 
+        form.getSaveButton().addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                saveScreeningModel();
+            }
+        });
+
         pixelPositionListener = new PixelPositionListener() {
             @Override
             public void pixelPosChanged(ImageLayer baseImageLayer, int pixelX, int pixelY, int currentLevel,
@@ -171,6 +182,22 @@ class LabelingDialog extends ModelessDialog {
         getJDialog().dispose();
     }
 
+    private void saveScreeningModel() {
+        final BeamFileChooser fileChooser = new BeamFileChooser();
+        fileChooser.setDialogTitle("Save Cloud Labels");
+        fileChooser.setSelectedFile(new File(screeningContext.getRadianceProduct().getName() + ".labels"));
+
+        if (BeamFileChooser.APPROVE_OPTION == fileChooser.showSaveDialog(getJDialog())) {
+            final ScreeningModel model = screeningContext.createScreeningModel(formModel.getCloudyFlags(),
+                                                                               formModel.getIgnoreFlags());
+            try {
+                model.write(fileChooser.getSelectedFile());
+            } catch (IOException e) {
+                appContext.handleError(e.getMessage(), e);
+            }
+        }
+    }
+
     private JInternalFrame createInternalFrame(ProductSceneView view, String title) {
         final VisatApp visatApp = VisatApp.getApp();
 
@@ -20,6 +20,7 @@ import com.jidesoft.grid.ColorCellEditor;
 import com.jidesoft.grid.ColorCellRenderer;
 
 import javax.swing.BorderFactory;
+import javax.swing.JButton;
 import javax.swing.JCheckBox;
 import javax.swing.JPanel;
 import javax.swing.JScrollPane;
@@ -42,6 +43,7 @@ class LabelingForm extends JPanel {
 
     private final JTable table;
     private final JCheckBox checkBox;
+    private final JButton saveButton;
 
     LabelingForm(LabelingFormModel formModel) {
         table = new JTable(formModel.getTableModel());
@@ -68,8 +70,12 @@ class LabelingForm extends JPanel {
         bc.bind("probabilistic", checkBox);
         bc.bindEnabledState("probabilistic", true, "probabilisticEnabled", true);
 
+        saveButton = new JButton("Save Labels...");
+        saveButton.setToolTipText("Saves the clusters and labels for screening clouds without user interaction");
+
         final JPanel checkBoxPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
         checkBoxPanel.add(checkBox);
+        checkBoxPanel.add(saveButton);
         checkBoxPanel.setBorder(BorderFactory.createTitledBorder("Processing Parameters"));
 
         setLayout(new BorderLayout(4, 4));
@@ -93,6 +99,10 @@ class LabelingForm extends JPanel {
         return checkBox;
     }
 
+    JButton getSaveButton() {
+        return saveButton;
+    }
+
     private static TableCellEditor createColorEditor() {
         return new ColorCellEditor();
     }
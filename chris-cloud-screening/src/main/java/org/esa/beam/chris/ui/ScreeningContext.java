@@ -22,11 +22,13 @@ import org.esa.beam.chris.operators.ComputeToaReflectancesOp;
 import org.esa.beam.chris.operators.ExtractEndmembersOp;
 import org.esa.beam.chris.operators.ExtractFeaturesOp;
 import org.esa.beam.chris.operators.FindClustersOp;
-import org.esa.beam.chris.operators.internal.ClassOpImage;
 import org.esa.beam.chris.operators.internal.CloudProbabilityOpImage;
+import org.esa.beam.chris.operators.internal.ClusterRanking;
 import org.esa.beam.chris.operators.internal.Clusterer;
 import org.esa.beam.chris.operators.internal.ExclusiveIndexFilter;
 import org.esa.beam.chris.operators.internal.InclusiveIndexFilter;
+import org.esa.beam.chris.operators.internal.RankedClassOpImage;
+import org.esa.beam.chris.operators.internal.ScreeningModel;
 import org.esa.beam.chris.util.OpUtils;
 import org.esa.beam.cluster.EMCluster;
 import org.esa.beam.cluster.IndexFilter;
@@ -91,9 +93,15 @@ class ScreeningContext implements LabelingContext {
     private final ProductSceneView colorView;
     private final ProductSceneView classView;
 
+    // created when the class view is regenerated for the first time
+    private ClusterRanking clusterRanking;
+
     ScreeningContext(ScreeningFormModel formModel, PropertyMap configuration, ProgressMonitor pm) throws Exception {
         final int iterationCount = formModel.getIterationCount();
         final int seed = formModel.getSeed();
+        final double sampleFraction = formModel.getSampleFraction();
+        final int refinementIterationCount = formModel.getRefinementIterationCount();
+        final double convergenceEpsilon = formModel.getConvergenceEpsilon();
 
         clusters = new EMCluster[formModel.getClusterCount()];
         featureBandNames = formModel.getFeatureBandNames();
@@ -104,8 +112,11 @@ class ScreeningContext implements LabelingContext {
 
             // 1. Reflectances
             final Map<String, Object> emptyMap = Collections.emptyMap();
+            // reflectances are computed on the fly, so their tiles are not stored in the tile cache
+            final Map<String, Object> reflectanceParameterMap = new HashMap<String, Object>();
+            reflectanceParameterMap.put("virtualBands", true);
             reflectanceProduct = GPF.createProduct(OperatorSpi.getOperatorAlias(ComputeToaReflectancesOp.class),
-                                                   emptyMap,
+                                                   reflectanceParameterMap,
                                                    radianceProduct);
 
             // 2. Features
@@ -115,13 +126,17 @@ class ScreeningContext implements LabelingContext {
 
             // 3. Clustering
             final BrightnessComparator comparator = new BrightnessComparator();
-            FindClustersOp.findClusters(featureProduct,
-                                        featureBandNames,
-                                        clusters,
-                                        iterationCount,
-                                        seed,
-                                        comparator,
-                                        SubProgressMonitor.create(pm, 80));
+            FindClustersOp.findCachedClusters(radianceProduct,
+                                              featureProduct,
+                                              featureBandNames,
+                                              clusters,
+                                              iterationCount,
+                                              seed,
+                                              sampleFraction,
+                                              refinementIterationCount,
+                                              convergenceEpsilon,
+                                              comparator,
+                                              SubProgressMonitor.create(pm, 80));
 
             // 4. Classification
             final Map<String, Object> classificationParameterMap = new HashMap<String, Object>();
@@ -150,7 +165,7 @@ class ScreeningContext implements LabelingContext {
 
         final RenderedImage cloudMaskImage;
         try {
-            pm.beginTask("Creating cloud mask...", probabilistic ? 110 : 100);
+            pm.beginTask("Creating cloud mask...", 10);
 
             if (probabilistic) {
                 // 1. Calculate cloud probability
@@ -182,9 +197,9 @@ class ScreeningContext implements LabelingContext {
                                                                                reflectanceBandNames,
                                                                                endmembers);
 
-                // 4. Calculate cloud mask
-                final RenderingHints renderingHints = new RenderingHints(JAI.KEY_TILE_CACHE, null);
-                renderingHints.put(JAI.KEY_IMAGE_LAYOUT, new ImageLayout(probabilityImage));
+                // 4. Calculate cloud mask, whose tiles are cached when computed
+                final RenderingHints renderingHints = new RenderingHints(JAI.KEY_IMAGE_LAYOUT,
+                                                                         new ImageLayout(probabilityImage));
                 cloudMaskImage = MultiplyDescriptor.create(probabilityImage, abundanceImage, renderingHints);
             } else {
                 cloudMaskImage = CloudProbabilityOpImage.createDiscretizedImage(featureProduct,
@@ -194,7 +209,7 @@ class ScreeningContext implements LabelingContext {
                                                                                 cloudFilter);
             }
             // 5. Add cloud mask to radiance product
-            final Band band = createSyntheticBand("cloud_product", cloudMaskImage, SubProgressMonitor.create(pm, 100));
+            final Band band = createSyntheticBand("cloud_product", cloudMaskImage);
             band.setDescription("Cloud product");
 
             return band;
@@ -237,10 +252,10 @@ class ScreeningContext implements LabelingContext {
     @Override
     public void regenerateClassView(boolean[] ignoreFlags) {
         final IndexFilter indexFilter = new ExclusiveIndexFilter(ignoreFlags);
-        final RenderedImage classImage = ClassOpImage.createImage(featureProduct,
-                                                                  featureBandNames,
-                                                                  clusters,
-                                                                  indexFilter);
+        if (clusterRanking == null) {
+            clusterRanking = ClusterRanking.create(featureProduct, featureBandNames, clusters);
+        }
+        final RenderedImage classImage = RankedClassOpImage.createImage(clusterRanking, indexFilter);
         getClassBand().setSourceImage(classImage);
         classView.getBaseImageLayer().regenerate();
         classView.getLayerCanvas().repaint();
@@ -309,6 +324,10 @@ class ScreeningContext implements LabelingContext {
         return radianceProduct;
     }
 
+    ScreeningModel createScreeningModel(boolean[] cloudyFlags, boolean[] ignoreFlags) {
+        return new ScreeningModel(featureBandNames, clusters, cloudyFlags, ignoreFlags);
+    }
+
     ProductSceneView getColorView() {
         return colorView;
     }
@@ -418,13 +437,18 @@ class ScreeningContext implements LabelingContext {
         return product.getBand("cloud_abundance").getSourceImage();
     }
 
-    private static Band createSyntheticBand(String name, RenderedImage sourceImage, ProgressMonitor pm) {
+    /*
+     * The source image is not copied into a raster, but evaluated tile by tile
+     * when the band is displayed or written. Computed tiles are kept in the JAI
+     * tile cache only, there is no disk cache: writing the product streams the
+     * tiles to disk anyway.
+     */
+    private static Band createSyntheticBand(String name, RenderedImage sourceImage) {
         final int dataType = ImageManager.getProductDataType(sourceImage.getSampleModel().getDataType());
         final Band band = new Band(name, dataType, sourceImage.getWidth(), sourceImage.getHeight());
 
-        band.setRasterData(RasterDataUtils.createRasterData(sourceImage, pm));
+        band.setSourceImage(sourceImage);
         band.setSynthetic(true);
-        band.getSourceImage();
 
         return band;
     }
@@ -16,14 +16,13 @@
 package org.esa.beam.chris.ui;
 
 import com.bc.ceres.binding.PropertyContainer;
+import org.esa.beam.chris.operators.ExtractFeaturesOp;
+import org.esa.beam.chris.operators.FindClustersOp;
 import org.esa.beam.framework.datamodel.Product;
 import org.esa.beam.framework.gpf.annotations.Parameter;
 import org.esa.beam.framework.gpf.annotations.ParameterDescriptorFactory;
 import org.esa.beam.framework.gpf.annotations.SourceProduct;
 
-import java.util.ArrayList;
-import java.util.List;
-
 /**
  * Cloud screening form model.
  *
@@ -32,13 +31,6 @@ import java.util.List;
  */
 class ScreeningFormModel {
 
-    private static final String BR_VIS_NAME = "brightness_vis";
-    private static final String WH_VIS_NAME = "whiteness_vis";
-    private static final String BR_NIR_NAME = "brightness_nir";
-    private static final String WH_NIR_NAME = "whiteness_nir";
-    private static final String WV_NAME = "wv";
-    private static final String O2_NAME = "o2";
-
     private final ProductBlock productBlock;
     private final ParameterBlock parameterBlock;
 
@@ -94,26 +86,21 @@ class ScreeningFormModel {
         return parameterBlock.seed;
     }
 
-    String[] getFeatureBandNames() {
-        final List<String> nameList = new ArrayList<String>(6);
+    final double getSampleFraction() {
+        return parameterBlock.sampleFraction;
+    }
 
-        nameList.add(BR_VIS_NAME);
-        nameList.add(WH_VIS_NAME);
+    final int getRefinementIterationCount() {
+        return parameterBlock.refinementIterationCount;
+    }
 
-        if (getUseNirBrightness()) {
-            nameList.add(BR_NIR_NAME);
-        }
-        if (getUseNirWhiteness()) {
-            nameList.add(WH_NIR_NAME);
-        }
-        if (getUseWv()) {
-            nameList.add(WV_NAME);
-        }
-        if (getUseO2()) {
-            nameList.add(O2_NAME);
-        }
+    final double getConvergenceEpsilon() {
+        return parameterBlock.convergenceEpsilon;
+    }
 
-        return nameList.toArray(new String[nameList.size()]);
+    String[] getFeatureBandNames() {
+        return ExtractFeaturesOp.getFeatureBandNames(getUseNirBrightness(), getUseNirWhiteness(), getUseWv(),
+                                                     getUseO2());
     }
 
     private static class ProductBlock {
@@ -133,6 +120,21 @@ class ScreeningFormModel {
                    defaultValue = "31415",
                    description = "The seed used for initializing the EM clustering algorithm.")
         private int seed = 31415;
+        @Parameter(label = "Sample fraction",
+                   defaultValue = "1.0",
+                   interval = "(0,1]",
+                   description = "The fraction of pixels used for all but the final refinement iterations.")
+        private double sampleFraction = 1.0;
+        @Parameter(label = "Number of refinement iterations",
+                   defaultValue = "3",
+                   interval = "[0,999]",
+                   description = "The number of final iterations using all pixels, when the sample fraction is less than unity.")
+        private int refinementIterationCount = 3;
+        @Parameter(label = "Convergence limit",
+                   defaultValue = "1.0E-5",
+                   interval = "[0,1]",
+                   description = "The iteration stops when the relative improvement of the mean log-likelihood falls below this limit.")
+        private double convergenceEpsilon = FindClustersOp.DEFAULT_CONVERGENCE_EPSILON;
 
         @Parameter(label = "Use NIR brightness", defaultValue = "true")
         private boolean useNirBr = true;
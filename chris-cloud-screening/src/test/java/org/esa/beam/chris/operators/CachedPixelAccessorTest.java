@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2011 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+package org.esa.beam.chris.operators;
+
+import junit.framework.TestCase;
+import org.esa.beam.framework.datamodel.Band;
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.framework.datamodel.ProductData;
+import org.esa.beam.framework.gpf.OperatorException;
+import org.esa.beam.framework.gpf.Tile;
+import org.esa.beam.framework.gpf.internal.TileImpl;
+import org.esa.beam.jai.BandOpImage;
+
+/**
+ * Tests for class {@link CachedPixelAccessor}.
+ *
+ * @author Ralf Quast
+ * @version $Revision$ $Date$
+ * @since BEAM 4.2
+ */
+public class CachedPixelAccessorTest extends TestCase {
+
+    private static final float NO_DATA_VALUE = -1.0f;
+
+    public void testInvalidPixelsAreDropped() {
+        final Product product = new Product("F", "F", 3, 2);
+        final Tile[] tiles = {
+                createTile(product, "feature_0", new float[]{1.0f, 2.0f, NO_DATA_VALUE, 4.0f, 5.0f, 6.0f}),
+                createTile(product, "feature_1", new float[]{1.5f, Float.NaN, 3.5f, 4.5f, 5.5f, Float.NEGATIVE_INFINITY})
+        };
+
+        final CachedPixelAccessor accessor = new CachedPixelAccessor(tiles);
+        assertEquals(2, accessor.getSampleCount());
+        assertEquals(3, accessor.getPixelCount());
+
+        assertEquals(0, accessor.getTileIndex(0));
+        assertEquals(3, accessor.getTileIndex(1));
+        assertEquals(4, accessor.getTileIndex(2));
+    }
+
+    public void testSampleLayout() {
+        final Product product = new Product("F", "F", 2, 2);
+        final Tile[] tiles = {
+                createTile(product, "feature_0", new float[]{1.0f, 2.0f, 3.0f, NO_DATA_VALUE}),
+                createTile(product, "feature_1", new float[]{10.0f, 20.0f, 30.0f, 40.0f}),
+                createTile(product, "feature_2", new float[]{100.0f, 200.0f, 300.0f, 400.0f})
+        };
+
+        final CachedPixelAccessor accessor = new CachedPixelAccessor(tiles);
+        assertEquals(3, accessor.getPixelCount());
+
+        final double[] samples = new double[3];
+        accessor.getSamples(1, samples);
+        assertEquals(2.0, samples[0], 0.0);
+        assertEquals(20.0, samples[1], 0.0);
+        assertEquals(200.0, samples[2], 0.0);
+
+        accessor.getSamples(2, samples);
+        assertEquals(3.0, samples[0], 0.0);
+        assertEquals(30.0, samples[1], 0.0);
+        assertEquals(300.0, samples[2], 0.0);
+
+        accessor.addSamples(0, samples);
+        assertEquals(4.0, samples[0], 0.0);
+        assertEquals(40.0, samples[1], 0.0);
+        assertEquals(400.0, samples[2], 0.0);
+    }
+
+    public void testNoValidPixels() {
+        final Product product = new Product("F", "F", 2, 1);
+        final Tile[] tiles = {
+                createTile(product, "feature_0", new float[]{NO_DATA_VALUE, 2.0f}),
+                createTile(product, "feature_1", new float[]{1.0f, Float.NaN})
+        };
+
+        try {
+            new CachedPixelAccessor(tiles);
+            fail();
+        } catch (OperatorException expected) {
+        }
+    }
+
+    private static Tile createTile(Product product, String name, float[] values) {
+        final Band band = product.addBand(name, ProductData.TYPE_FLOAT32);
+
+        band.setSynthetic(true);
+        band.setNoDataValue(NO_DATA_VALUE);
+        band.setNoDataValueUsed(true);
+        band.setRasterData(ProductData.createInstance(values));
+        band.setSourceImage(new BandOpImage(band));
+
+        return new TileImpl(band, band.getSourceImage().getData());
+    }
+}
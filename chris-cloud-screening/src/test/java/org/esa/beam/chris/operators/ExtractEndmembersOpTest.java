@@ -15,12 +15,20 @@
  */
 package org.esa.beam.chris.operators;
 
+import com.bc.ceres.core.ProgressMonitor;
 import junit.framework.TestCase;
+import org.esa.beam.chris.operators.internal.Clusterer;
+import org.esa.beam.chris.operators.internal.ExclusiveIndexFilter;
+import org.esa.beam.chris.operators.internal.InclusiveIndexFilter;
+import org.esa.beam.cluster.EMCluster;
+import org.esa.beam.cluster.IndexFilter;
+import org.esa.beam.cluster.ProbabilityCalculator;
 import org.esa.beam.framework.datamodel.Band;
 import org.esa.beam.framework.datamodel.IndexCoding;
 import org.esa.beam.framework.datamodel.Product;
 import org.esa.beam.framework.datamodel.ProductData;
 import org.esa.beam.jai.BandOpImage;
+import org.esa.beam.unmixing.Endmember;
 
 /**
  * Tests for class {@link ExtractEndmembersOp}.
@@ -30,6 +38,79 @@ import org.esa.beam.jai.BandOpImage;
  */
 public class ExtractEndmembersOpTest extends TestCase {
 
+    private static final int W = 7;
+    private static final int H = 6;
+    private static final String[] FEATURE_NAMES = {"brightness_vis", "whiteness_vis"};
+    private static final double[] WAVELENGTHS = {490.0, 560.0, 670.0, 740.0};
+
+    public void testSinglePassEqualsTwoPasses() {
+        final EMCluster[] clusters = {
+                createCluster(0.80, 0.05, 0.3),
+                createCluster(0.20, 0.30, 0.4),
+                createCluster(0.05, 0.50, 0.2),
+                createCluster(0.50, 0.50, 0.1),
+        };
+        final boolean[] cloudFlags = {true, false, false, false};
+        final boolean[] invalidFlags = {false, false, false, true};
+
+        final double[][] features = new double[FEATURE_NAMES.length][W * H];
+        final double[][] reflectances = new double[WAVELENGTHS.length][W * H];
+        for (int j = 0; j < W * H; ++j) {
+            final double[] mean = clusters[j % clusters.length].getMean();
+            for (int i = 0; i < FEATURE_NAMES.length; ++i) {
+                features[i][j] = mean[i] + 0.001 * ((7 * j + 3 * i) % 11 - 5);
+            }
+            for (int i = 0; i < WAVELENGTHS.length; ++i) {
+                reflectances[i][j] = 0.01 * ((13 * j + 5 * i) % 37);
+            }
+        }
+
+        final Product reflectanceProduct = new Product("R", "R", W, H);
+        for (int i = 0; i < WAVELENGTHS.length; ++i) {
+            final Band band = addSyntheticBand(reflectanceProduct, "toa_refl_" + (i + 1), reflectances[i]);
+            band.setSpectralWavelength((float) WAVELENGTHS[i]);
+        }
+        final Product featureProduct = new Product("F", "F", W, H);
+        for (int i = 0; i < FEATURE_NAMES.length; ++i) {
+            addSyntheticBand(featureProduct, FEATURE_NAMES[i], features[i]);
+        }
+        final Product classificationProduct = new Product("C", "C", W, H);
+        final Band classBand = addSyntheticBand(classificationProduct, "class_indices", new int[W * H]);
+        final IndexCoding indexCoding = new IndexCoding("Class_indices");
+        for (int k = 0; k < clusters.length; ++k) {
+            indexCoding.addIndex("class_" + (k + 1), k, "Cluster label");
+        }
+        classificationProduct.getIndexCodingGroup().add(indexCoding);
+        classBand.setSampleCoding(indexCoding);
+
+        final Endmember[] endmembers = ExtractEndmembersOp.extractEndmembers(reflectanceProduct,
+                                                                             featureProduct,
+                                                                             classificationProduct,
+                                                                             FEATURE_NAMES,
+                                                                             clusters,
+                                                                             cloudFlags,
+                                                                             invalidFlags,
+                                                                             ProgressMonitor.NULL);
+
+        final IndexFilter validFilter = new ExclusiveIndexFilter(invalidFlags);
+        final IndexFilter cloudFilter = new InclusiveIndexFilter(cloudFlags);
+        final IndexFilter earthFilter = new ExclusiveIndexFilter(cloudFlags, invalidFlags);
+        final double[] expectedCloudReflectances =
+                extractCloudReflectances(features, reflectances, clusters, cloudFilter, validFilter);
+        final double[][] expectedSurfaceReflectances =
+                extractSurfaceReflectances(features, reflectances, clusters, earthFilter, validFilter);
+
+        assertEquals(3, endmembers.length);
+        assertEquals("cloud", endmembers[0].getName());
+        assertEquals("class_2", endmembers[1].getName());
+        assertEquals("class_3", endmembers[2].getName());
+        for (int i = 0; i < WAVELENGTHS.length; ++i) {
+            assertEquals(expectedCloudReflectances[i], endmembers[0].getRadiation(i), 0.0);
+            assertEquals(expectedSurfaceReflectances[1][i], endmembers[1].getRadiation(i), 1.0E-12);
+            assertEquals(expectedSurfaceReflectances[2][i], endmembers[2].getRadiation(i), 1.0E-12);
+        }
+    }
+
     public void testCalculateEndmembers() {
 //        final double[][] reflectances = {
 //                new double[]{0.1, 0.2, 0.3, 0.4, 0.5, 0.6},
@@ -83,6 +164,85 @@ public class ExtractEndmembersOpTest extends TestCase {
 ////        assertNotNull(targetProduct);
     }
 
+    // the former first pass, which finds the cloud pixel with the largest ratio of brightness to whiteness
+    private static double[] extractCloudReflectances(double[][] features, double[][] reflectances,
+                                                     EMCluster[] clusters, IndexFilter cloudFilter,
+                                                     IndexFilter validFilter) {
+        final ProbabilityCalculator calculator = Clusterer.createProbabilityCalculator(clusters);
+        final double[] pixelFeatures = new double[features.length];
+        final double[] posteriors = new double[clusters.length];
+
+        int maxIndex = -1;
+        double maxRatio = 0.0;
+        for (int j = 0; j < W * H; ++j) {
+            for (int i = 0; i < features.length; ++i) {
+                pixelFeatures[i] = features[i][j];
+            }
+            if (pixelFeatures[1] > 0.0) {
+                calculator.calculate(pixelFeatures, posteriors, validFilter);
+                for (int k = 0; k < clusters.length; ++k) {
+                    if (posteriors[k] > 0.5 && cloudFilter.accept(k)) {
+                        final double ratio = pixelFeatures[0] / pixelFeatures[1];
+                        if (maxIndex == -1 || ratio > maxRatio) {
+                            maxIndex = j;
+                            maxRatio = ratio;
+                        }
+                    }
+                }
+            }
+        }
+        assertTrue(maxIndex != -1);
+
+        final double[] cloudReflectances = new double[reflectances.length];
+        for (int i = 0; i < reflectances.length; ++i) {
+            cloudReflectances[i] = reflectances[i][maxIndex];
+        }
+        return cloudReflectances;
+    }
+
+    // the former second pass, which averages the reflectances of the surface pixels cluster by cluster
+    private static double[][] extractSurfaceReflectances(double[][] features, double[][] reflectances,
+                                                         EMCluster[] clusters, IndexFilter earthFilter,
+                                                         IndexFilter validFilter) {
+        final ProbabilityCalculator calculator = Clusterer.createProbabilityCalculator(clusters);
+        final double[] pixelFeatures = new double[features.length];
+        final double[] posteriors = new double[clusters.length];
+        final double[][] sums = new double[clusters.length][reflectances.length];
+        final int[] counts = new int[clusters.length];
+
+        for (int j = 0; j < W * H; ++j) {
+            for (int i = 0; i < features.length; ++i) {
+                pixelFeatures[i] = features[i][j];
+            }
+            calculator.calculate(pixelFeatures, posteriors, validFilter);
+            for (int k = 0; k < clusters.length; ++k) {
+                if (posteriors[k] > 0.5 && earthFilter.accept(k)) {
+                    for (int i = 0; i < reflectances.length; ++i) {
+                        sums[k][i] += reflectances[i][j];
+                    }
+                    ++counts[k];
+                    break;
+                }
+            }
+        }
+        for (int k = 0; k < clusters.length; ++k) {
+            if (earthFilter.accept(k)) {
+                assertTrue(counts[k] > 0);
+                for (int i = 0; i < reflectances.length; ++i) {
+                    sums[k][i] /= counts[k];
+                }
+            }
+        }
+        return sums;
+    }
+
+    private static EMCluster createCluster(double brightness, double whiteness, double prior) {
+        final double[] mean = {brightness, whiteness};
+        final double[][] covariances = {{1.0E-3, 0.0}, {0.0, 1.0E-3}};
+
+        return new EMCluster(mean, covariances, prior);
+    }
+
     private static Product createReflectanceProduct(double[][] values) {
         final Product reflectanceProduct = new Product("R", "R", 3, 2);
 
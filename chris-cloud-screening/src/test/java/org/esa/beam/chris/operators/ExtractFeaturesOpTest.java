@@ -17,7 +17,12 @@
 package org.esa.beam.chris.operators;
 
 import junit.framework.TestCase;
+import org.esa.beam.framework.datamodel.Band;
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.framework.datamodel.ProductData;
+import org.esa.beam.framework.gpf.Operator;
 
+import java.awt.image.Raster;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
@@ -32,10 +37,111 @@ import java.util.Scanner;
  */
 public class ExtractFeaturesOpTest extends TestCase {
 
+    private static final int W = 3;
+    private static final int H = 4;
+    // wavelengths of absorption-free bands, five VIS and five NIR bands
+    private static final double[] WAVELENGTHS = {
+            450.0, 500.0, 550.0, 610.0, 670.0, 720.0, 750.0, 780.0, 860.0, 1020.0
+    };
+    private static final String[] FEATURE_NAMES = {
+            "brightness", "brightness_vis", "brightness_nir", "whiteness", "whiteness_vis", "whiteness_nir"
+    };
+
     public void testTransmittanceTableIntegrity() throws IOException {
         assertTransmittanceTableIntegrity();
     }
 
+    public void testRawDataPathEqualsGeophysicalSamplePath() {
+        final short[][] samples = createSamples();
+
+        // scaled 16-bit integer bands are read from the raw data buffer
+        final Product rawFeatures = extractFeatures(createReflectanceProduct(samples, ProductData.TYPE_INT16));
+        // floating point bands are read by means of Tile.getSampleDouble()
+        final Product geoFeatures = extractFeatures(createReflectanceProduct(samples, ProductData.TYPE_FLOAT32));
+
+        for (final String name : FEATURE_NAMES) {
+            final Band rawBand = rawFeatures.getBand(name);
+            final Band geoBand = geoFeatures.getBand(name);
+            final Raster rawData = rawBand.getSourceImage().getData();
+            final Raster geoData = geoBand.getSourceImage().getData();
+
+            for (int y = 0; y < H; ++y) {
+                for (int x = 0; x < W; ++x) {
+                    final double expected = geoBand.scale(geoData.getSampleDouble(x, y, 0));
+                    final double actual = rawBand.scale(rawData.getSampleDouble(x, y, 0));
+                    // the features differ by one quantum at most
+                    assertEquals(name, expected, actual, 1.5E-4);
+                }
+            }
+        }
+
+        final Band brightnessBand = rawFeatures.getBand("brightness");
+        final Raster brightnessData = brightnessBand.getSourceImage().getData();
+        for (int y = 0; y < H; ++y) {
+            for (int x = 0; x < W; ++x) {
+                final double expected = brightness(samples, y * W + x);
+                final double actual = brightnessBand.scale(brightnessData.getSampleDouble(x, y, 0));
+                assertEquals(expected, actual, 1.5E-4);
+            }
+        }
+    }
+
+    private static Product extractFeatures(Product reflectanceProduct) {
+        final Operator op = new ExtractFeaturesOp();
+        op.setSourceProduct("source", reflectanceProduct);
+        // tiles of a single row, so the scanline offsets of the source tiles do not vanish
+        op.setParameter("tileHeight", 1);
+
+        return op.getTargetProduct();
+    }
+
+    private static short[][] createSamples() {
+        final short[][] samples = new short[WAVELENGTHS.length][W * H];
+
+        for (int i = 0; i < WAVELENGTHS.length; ++i) {
+            for (int j = 0; j < W * H; ++j) {
+                // spectra crossing their mean, so that whiteness is not trivial
+                samples[i][j] = (short) Math.round(2000.0 + 1000.0 * Math.sin(0.7 * i + 0.3 * j) + 100.0 * j);
+            }
+        }
+
+        return samples;
+    }
+
+    private static Product createReflectanceProduct(short[][] samples, int dataType) {
+        final Product product = new Product("R", "CHRIS_M2_NR", W, H);
+
+        for (int i = 0; i < WAVELENGTHS.length; ++i) {
+            final Band band = product.addBand("toa_refl_" + (i + 1), dataType);
+            band.setSpectralWavelength((float) WAVELENGTHS[i]);
+            band.setSynthetic(true);
+
+            if (dataType == ProductData.TYPE_INT16) {
+                band.setScalingFactor(1.0E-4);
+                band.setRasterData(ProductData.createInstance(samples[i]));
+            } else {
+                final float[] values = new float[samples[i].length];
+                for (int j = 0; j < values.length; ++j) {
+                    values[j] = (float) (samples[i][j] * 1.0E-4);
+                }
+                band.setRasterData(ProductData.createInstance(values));
+            }
+        }
+
+        return product;
+    }
+
+    private static double brightness(short[][] samples, int j) {
+        double sum = 0.0;
+        for (int i = 1; i < WAVELENGTHS.length; ++i) {
+            final double r1 = samples[i - 1][j] * 1.0E-4;
+            final double r2 = samples[i][j] * 1.0E-4;
+            sum += 0.5 * (r1 + r2) * (WAVELENGTHS[i] - WAVELENGTHS[i - 1]);
+        }
+
+        return sum / (WAVELENGTHS[WAVELENGTHS.length - 1] - WAVELENGTHS[0]);
+    }
+
     private static void assertTransmittanceTableIntegrity() throws IOException {
         final InputStream is = ExtractFeaturesOpTest.class.getResourceAsStream("nir-transmittance.txt");
 
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2011 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+package org.esa.beam.chris.operators;
+
+import junit.framework.TestCase;
+import org.esa.beam.cluster.EMCluster;
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.framework.datamodel.ProductData;
+import org.esa.beam.framework.gpf.OperatorException;
+
+/**
+ * Tests for class {@link ScreenCloudsOp}.
+ *
+ * @author Ralf Quast
+ * @version $Revision$ $Date$
+ */
+public class ScreenCloudsOpTest extends TestCase {
+
+    public void testLabelClusters() {
+        final EMCluster[] clusters = {
+                createCluster(0.5, 0.05),
+                createCluster(0.5, 0.2),
+                createCluster(0.2, 0.05),
+                createCluster(0.3, 0.1),
+                createCluster(0.29, 0.1),
+                createCluster(0.3, 0.11),
+        };
+
+        final boolean[] cloudyFlags = ScreenCloudsOp.labelClusters(clusters, 0.3, 0.1);
+        assertEquals(clusters.length, cloudyFlags.length);
+
+        assertTrue(cloudyFlags[0]);
+        // too white
+        assertFalse(cloudyFlags[1]);
+        // too dark
+        assertFalse(cloudyFlags[2]);
+        // both thresholds are inclusive
+        assertTrue(cloudyFlags[3]);
+        assertFalse(cloudyFlags[4]);
+        assertFalse(cloudyFlags[5]);
+    }
+
+    public void testCheckFeatureBandNames() {
+        final Product featureProduct = new Product("F", "CHRIS_M2_NR_FEAT", 1, 1);
+        for (final String name : ExtractFeaturesOp.getFeatureBandNames(true, true, false, false)) {
+            featureProduct.addBand(name, ProductData.TYPE_INT16);
+        }
+
+        ScreenCloudsOp.checkFeatureBandNames(featureProduct,
+                                             ExtractFeaturesOp.getFeatureBandNames(false, true, false, false));
+        try {
+            // a mode 2 product has no atmospheric features
+            ScreenCloudsOp.checkFeatureBandNames(featureProduct,
+                                                 ExtractFeaturesOp.getFeatureBandNames(true, true, true, false));
+            fail();
+        } catch (OperatorException expected) {
+            assertTrue(expected.getMessage().contains(ExtractFeaturesOp.WV_NAME));
+        }
+    }
+
+    public void testGetFeatureBandNames() {
+        final String[] names = ExtractFeaturesOp.getFeatureBandNames(false, true, false, true);
+
+        assertEquals(4, names.length);
+        assertEquals(ExtractFeaturesOp.BR_VIS_NAME, names[0]);
+        assertEquals(ExtractFeaturesOp.WH_VIS_NAME, names[1]);
+        assertEquals(ExtractFeaturesOp.WH_NIR_NAME, names[2]);
+        assertEquals(ExtractFeaturesOp.O2_NAME, names[3]);
+    }
+
+    private static EMCluster createCluster(double brightness, double whiteness) {
+        final double[][] covariances = {{1.0, 0.0}, {0.0, 1.0}};
+
+        return new EMCluster(new double[]{brightness, whiteness}, covariances, 0.5);
+    }
+}
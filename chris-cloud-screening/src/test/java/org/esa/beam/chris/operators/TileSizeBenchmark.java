@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2011 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+package org.esa.beam.chris.operators;
+
+import org.esa.beam.framework.dataio.ProductIO;
+import org.esa.beam.framework.datamodel.Band;
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.framework.gpf.GPF;
+import org.esa.beam.framework.gpf.OperatorSpi;
+
+import javax.media.jai.JAI;
+import java.awt.image.RenderedImage;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Benchmark comparing the throughput of the TOA reflectance computation and
+ * the feature extraction for different tile sizes.
+ * <p/>
+ * Usage: {@code TileSizeBenchmark <CHRIS product file>}
+ *
+ * @author Ralf Quast
+ * @version $Revision$ $Date$
+ */
+public class TileSizeBenchmark {
+
+    // tile sizes {width, height}, where a width of zero means full-width strips
+    private static final int[][] TILE_SIZES = {
+            {32, 32},
+            {64, 64},
+            {128, 128},
+            {256, 256},
+            {0, 16},
+            {0, 64},
+            {0, 256}
+    };
+    private static final int RUN_COUNT = 3;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("Usage: TileSizeBenchmark <CHRIS product file>");
+            System.exit(1);
+        }
+        GPF.getDefaultInstance().getOperatorSpiRegistry().loadOperatorSpis();
+
+        final Product radianceProduct = ProductIO.readProduct(args[0]);
+        if (radianceProduct == null) {
+            System.err.println("Cannot read product: " + args[0]);
+            System.exit(1);
+        }
+        try {
+            final double megaPixels = radianceProduct.getSceneRasterWidth() *
+                                      radianceProduct.getSceneRasterHeight() / 1.0E6;
+
+            System.out.println("tile size\tbest time (s)\tthroughput (Mpx/s)");
+            for (final int[] tileSize : TILE_SIZES) {
+                long bestTime = Long.MAX_VALUE;
+                for (int i = 0; i < RUN_COUNT; ++i) {
+                    JAI.getDefaultInstance().getTileCache().flush();
+                    bestTime = Math.min(bestTime, run(radianceProduct, tileSize[0], tileSize[1]));
+                }
+                final double seconds = bestTime / 1.0E9;
+                final String name = (tileSize[0] == 0 ? "full" : String.valueOf(tileSize[0])) + "x" + tileSize[1];
+                System.out.printf("%s\t%.3f\t%.3f%n", name, seconds, megaPixels / seconds);
+            }
+        } finally {
+            radianceProduct.dispose();
+        }
+    }
+
+    private static long run(Product radianceProduct, int tileWidth, int tileHeight) {
+        final Map<String, Object> parameterMap = new HashMap<String, Object>(2);
+        parameterMap.put("tileWidth", tileWidth);
+        parameterMap.put("tileHeight", tileHeight);
+
+        final long startTime = System.nanoTime();
+        final Product reflectanceProduct =
+                GPF.createProduct(OperatorSpi.getOperatorAlias(ComputeToaReflectancesOp.class), parameterMap,
+                                  radianceProduct);
+        final Product featureProduct =
+                GPF.createProduct(OperatorSpi.getOperatorAlias(ExtractFeaturesOp.class), parameterMap,
+                                  reflectanceProduct);
+        try {
+            for (final Band band : featureProduct.getBands()) {
+                computeAllTiles(band.getSourceImage());
+            }
+            return System.nanoTime() - startTime;
+        } finally {
+            featureProduct.dispose();
+            reflectanceProduct.dispose();
+        }
+    }
+
+    private static void computeAllTiles(RenderedImage image) {
+        for (int tileY = image.getMinTileY(); tileY < image.getMinTileY() + image.getNumYTiles(); ++tileY) {
+            for (int tileX = image.getMinTileX(); tileX < image.getMinTileX() + image.getNumXTiles(); ++tileX) {
+                image.getTile(tileX, tileY);
+            }
+        }
+    }
+}
@@ -16,9 +16,8 @@
 package org.esa.beam.chris.operators.internal;
 
 import junit.framework.TestCase;
-import org.esa.beam.cluster.Distribution;
+import org.esa.beam.cluster.EMCluster;
 import org.esa.beam.cluster.IndexFilter;
-import org.esa.beam.cluster.ProbabilityCalculator;
 import org.esa.beam.framework.datamodel.Band;
 import org.esa.beam.framework.datamodel.Product;
 import org.esa.beam.framework.datamodel.ProductData;
@@ -44,17 +43,16 @@ public class ClassOpImageTest extends TestCase {
 
     public void testComputation() {
         final Product product = createTestProduct();
-        final Distribution[] distributions = new Distribution[4];
+        final EMCluster[] clusters = new EMCluster[4];
 
-        distributions[0] = new StandardMultinormalDistribution(new double[]{10.0, 10.0, 10.0, 10.0});
-        distributions[1] = new StandardMultinormalDistribution(new double[]{20.0, 20.0, 20.0, 20.0});
-        distributions[2] = new StandardMultinormalDistribution(new double[]{30.0, 30.0, 30.0, 30.0});
-        distributions[3] = new StandardMultinormalDistribution(new double[]{40.0, 40.0, 40.0, 40.0});
+        clusters[0] = createStandardCluster(new double[]{10.0, 10.0, 10.0, 10.0});
+        clusters[1] = createStandardCluster(new double[]{20.0, 20.0, 20.0, 20.0});
+        clusters[2] = createStandardCluster(new double[]{30.0, 30.0, 30.0, 30.0});
+        clusters[3] = createStandardCluster(new double[]{40.0, 40.0, 40.0, 40.0});
 
-        final double[] priors = {1.0, 1.0, 1.0, 1.0};
-        final ProbabilityCalculator calculator = new ProbabilityCalculator(distributions, priors);
+        final PosteriorKernel kernel = new PosteriorKernel(clusters);
 
-        final RenderedImage image = ClassOpImage.createImage(product.getBands(), calculator, NO_FILTERING, 4);
+        final RenderedImage image = ClassOpImage.createImage(product.getBands(), kernel, NO_FILTERING);
         final Raster data = image.getData();
 
         assertEquals(0, data.getSample(0, 0, 0));
@@ -84,35 +82,12 @@ public class ClassOpImageTest extends TestCase {
         return band;
     }
 
-    private static class StandardMultinormalDistribution implements Distribution {
-        private final double[] mean;
-
-        public StandardMultinormalDistribution(double[] mean) {
-            this.mean = mean;
-        }
-
-        @Override
-        public final double probabilityDensity(double[] y) {
-            return Math.exp(logProbabilityDensity(y));
+    private static EMCluster createStandardCluster(double[] mean) {
+        final double[][] covariances = new double[mean.length][mean.length];
+        for (int i = 0; i < mean.length; ++i) {
+            covariances[i][i] = 1.0;
         }
 
-        @Override
-        public final double logProbabilityDensity(double[] y) {
-            if (y.length != mean.length) {
-                throw new IllegalArgumentException("y.length != mean.length");
-            }
-
-            return -0.5 * squaredDistance(y);
-        }
-
-        private double squaredDistance(double[] y) {
-            double u = 0.0;
-
-            for (int i = 0; i < mean.length; ++i) {
-                u += ((y[i] - mean[i]) * (y[i] - mean[i]));
-            }
-
-            return u;
-        }
+        return new EMCluster(mean, covariances, 0.25);
     }
 }
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2011 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+package org.esa.beam.chris.operators.internal;
+
+import junit.framework.TestCase;
+import org.esa.beam.cluster.EMCluster;
+import org.esa.beam.framework.datamodel.Product;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Tests for class {@link ClusterCache}.
+ *
+ * @author Ralf Quast
+ * @version $Revision$ $Date$
+ * @since BEAM 4.2
+ */
+public class ClusterCacheTest extends TestCase {
+
+    private File cacheDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        cacheDir = File.createTempFile("clusters", "");
+        cacheDir.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        final File[] files = cacheDir.listFiles();
+        if (files != null) {
+            for (final File file : files) {
+                file.delete();
+            }
+        }
+        cacheDir.delete();
+    }
+
+    public void testPutAndGet() throws IOException {
+        final ClusterCache cache = new ClusterCache(cacheDir, 2);
+        assertNull(cache.get("a"));
+
+        final EMCluster[] clusters = {
+                new EMCluster(new double[]{0.5, 0.02}, new double[][]{{0.01, 0.001}, {0.001, 0.002}}, 0.25),
+                new EMCluster(new double[]{0.1, 0.05}, new double[][]{{0.03, 0.0}, {0.0, 0.004}}, 0.75)
+        };
+        cache.put("a", clusters);
+
+        final EMCluster[] actual = cache.get("a");
+        assertNotNull(actual);
+        assertEquals(2, actual.length);
+        for (int k = 0; k < 2; ++k) {
+            assertEquals(clusters[k].getPriorProbability(), actual[k].getPriorProbability(), 0.0);
+            for (int i = 0; i < 2; ++i) {
+                assertEquals(clusters[k].getMean()[i], actual[k].getMean()[i], 0.0);
+                for (int j = 0; j < 2; ++j) {
+                    assertEquals(clusters[k].getCovariances()[i][j], actual[k].getCovariances()[i][j], 0.0);
+                }
+            }
+        }
+    }
+
+    public void testPutReplacesEntryWithoutLeavingTemporaryFiles() throws IOException {
+        final ClusterCache cache = new ClusterCache(cacheDir, 2);
+
+        cache.put("a", new EMCluster[]{new EMCluster(new double[]{0.5}, new double[][]{{0.01}}, 1.0)});
+        cache.put("a", new EMCluster[]{new EMCluster(new double[]{0.7}, new double[][]{{0.01}}, 1.0)});
+
+        final EMCluster[] actual = cache.get("a");
+        assertNotNull(actual);
+        assertEquals(0.7, actual[0].getMean()[0], 0.0);
+
+        final String[] names = cacheDir.list();
+        assertEquals(1, names.length);
+        assertEquals("a.clusters", names[0]);
+    }
+
+    public void testKeyDependsOnAllParameters() throws IOException {
+        final File file = new File(cacheDir, "product.dim");
+        assertTrue(cacheDir.mkdirs());
+        assertTrue(file.createNewFile());
+        final Product product = new Product("P", "P", 1, 1);
+        product.setFileLocation(file);
+
+        final String[] names = {"brightness_vis", "whiteness_vis"};
+        final String key = ClusterCache.createKey(product, names, 14, 30, 31415, 1.0, 0, 0.0);
+        assertNotNull(key);
+        assertEquals(key, ClusterCache.createKey(product, names, 14, 30, 31415, 1.0, 0, 0.0));
+
+        assertFalse(key.equals(ClusterCache.createKey(product, new String[]{"brightness_vis"}, 14, 30, 31415,
+                                                      1.0, 0, 0.0)));
+        assertFalse(key.equals(ClusterCache.createKey(product, names, 13, 30, 31415, 1.0, 0, 0.0)));
+        assertFalse(key.equals(ClusterCache.createKey(product, names, 14, 29, 31415, 1.0, 0, 0.0)));
+        assertFalse(key.equals(ClusterCache.createKey(product, names, 14, 30, 31416, 1.0, 0, 0.0)));
+        assertFalse(key.equals(ClusterCache.createKey(product, names, 14, 30, 31415, 0.5, 0, 0.0)));
+        assertFalse(key.equals(ClusterCache.createKey(product, names, 14, 30, 31415, 1.0, 3, 0.0)));
+        assertFalse(key.equals(ClusterCache.createKey(product, names, 14, 30, 31415, 1.0, 0, 1.0E-5)));
+
+        product.setFileLocation(null);
+        assertNull(ClusterCache.createKey(product, names, 14, 30, 31415, 1.0, 0, 0.0));
+    }
+
+    public void testLeastRecentlyUsedEntryIsEvicted() throws IOException {
+        final ClusterCache cache = new ClusterCache(cacheDir, 2);
+        final EMCluster[] clusters = {
+                new EMCluster(new double[]{0.5}, new double[][]{{0.01}}, 1.0)
+        };
+
+        cache.put("a", clusters);
+        cache.put("b", clusters);
+        new File(cacheDir, "a.clusters").setLastModified(1000000000000L);
+        new File(cacheDir, "b.clusters").setLastModified(1000000001000L);
+        // using the first entry makes the second one the least recently used
+        assertNotNull(cache.get("a"));
+
+        cache.put("c", clusters);
+        assertNotNull(cache.get("a"));
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("c"));
+    }
+}
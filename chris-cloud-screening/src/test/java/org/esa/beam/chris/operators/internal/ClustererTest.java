@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2011 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+package org.esa.beam.chris.operators.internal;
+
+import junit.framework.TestCase;
+import org.esa.beam.cluster.EMCluster;
+
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Tests for class {@link Clusterer}.
+ *
+ * @author Ralf Quast
+ * @version $Revision$ $Date$
+ */
+public class ClustererTest extends TestCase {
+
+    private static final int CLUSTER_COUNT = 3;
+    private static final int ITERATION_COUNT = 10;
+    private static final int SEED = 31415;
+
+    private PixelAccessor pixelAccessor;
+
+    @Override
+    protected void setUp() throws Exception {
+        pixelAccessor = new ArrayPixelAccessor(createSamples(new Random(5489), 3000, 2));
+    }
+
+    public void testConcurrentIterationEqualsSequentialIteration() throws InterruptedException {
+        final Clusterer sequential = new Clusterer(pixelAccessor, CLUSTER_COUNT, SEED, 4);
+        final Clusterer concurrent = new Clusterer(pixelAccessor, CLUSTER_COUNT, SEED, 4);
+
+        final ExecutorService executorService = Executors.newFixedThreadPool(4);
+        try {
+            for (int i = 0; i < ITERATION_COUNT; ++i) {
+                sequential.iterate();
+                concurrent.iterate(executorService);
+            }
+        } finally {
+            executorService.shutdown();
+        }
+
+        final EMCluster[] expected = sequential.getClusters();
+        final EMCluster[] actual = concurrent.getClusters();
+        for (int k = 0; k < CLUSTER_COUNT; ++k) {
+            assertEquals(expected[k].getPriorProbability(), actual[k].getPriorProbability(), 0.0);
+            for (int l = 0; l < 2; ++l) {
+                assertEquals(expected[k].getMean()[l], actual[k].getMean()[l], 0.0);
+                assertEquals(expected[k].getCovariances()[l][l], actual[k].getCovariances()[l][l], 0.0);
+            }
+        }
+    }
+
+    public void testPartitionedIterationEqualsSinglePassIteration() {
+        final Clusterer singlePass = new Clusterer(pixelAccessor, CLUSTER_COUNT, SEED);
+        final Clusterer partitioned = new Clusterer(pixelAccessor, CLUSTER_COUNT, SEED, 7);
+
+        for (int i = 0; i < ITERATION_COUNT; ++i) {
+            singlePass.iterate();
+            partitioned.iterate();
+        }
+
+        final EMCluster[] expected = singlePass.getClusters();
+        final EMCluster[] actual = partitioned.getClusters();
+        for (int k = 0; k < CLUSTER_COUNT; ++k) {
+            assertEquals(expected[k].getPriorProbability(), actual[k].getPriorProbability(), 1.0E-10);
+            for (int l = 0; l < 2; ++l) {
+                assertEquals(expected[k].getMean()[l], actual[k].getMean()[l], 1.0E-10);
+                assertEquals(expected[k].getCovariances()[l][l], actual[k].getCovariances()[l][l], 1.0E-10);
+            }
+        }
+    }
+
+    public void testSampledIterationIsCloseToFullIteration() {
+        final PixelAccessor accessor = new ArrayPixelAccessor(createSamples(new Random(5489), 30000, 2));
+        final Clusterer full = new Clusterer(accessor, CLUSTER_COUNT, SEED);
+        final Clusterer sampled = new Clusterer(accessor, CLUSTER_COUNT, SEED);
+
+        sampled.setSampleFraction(0.05);
+        for (int i = 0; i < ITERATION_COUNT; ++i) {
+            if (i == ITERATION_COUNT - 2) {
+                sampled.setSampleFraction(1.0);
+            }
+            full.iterate();
+            sampled.iterate();
+        }
+
+        final EMCluster[] expected = full.getClusters();
+        final EMCluster[] actual = sampled.getClusters();
+        for (int k = 0; k < CLUSTER_COUNT; ++k) {
+            assertEquals(expected[k].getPriorProbability(), actual[k].getPriorProbability(), 1.0E-2);
+            for (int l = 0; l < 2; ++l) {
+                assertEquals(expected[k].getMean()[l], actual[k].getMean()[l], 1.0E-2);
+            }
+        }
+    }
+
+    public void testSampledIterationIsReproducible() {
+        final Clusterer c1 = new Clusterer(pixelAccessor, CLUSTER_COUNT, SEED, 3);
+        final Clusterer c2 = new Clusterer(pixelAccessor, CLUSTER_COUNT, SEED, 3);
+
+        c1.setSampleFraction(0.1);
+        c2.setSampleFraction(0.1);
+        for (int i = 0; i < ITERATION_COUNT; ++i) {
+            c1.iterate();
+            c2.iterate();
+        }
+
+        final EMCluster[] expected = c1.getClusters();
+        final EMCluster[] actual = c2.getClusters();
+        for (int k = 0; k < CLUSTER_COUNT; ++k) {
+            assertEquals(expected[k].getPriorProbability(), actual[k].getPriorProbability(), 0.0);
+            assertEquals(expected[k].getMean()[0], actual[k].getMean()[0], 0.0);
+        }
+    }
+
+    public void testEarlyExitOnConvergence() {
+        final EMResult result = Clusterer.findClusters(pixelAccessor, CLUSTER_COUNT, 100, SEED, 1.0E-6);
+
+        assertTrue(result.isConverged());
+        assertTrue(result.getIterationCount() < 100);
+        assertEquals(result.getIterationCount(), result.getLogLikelihoods().length);
+        assertEquals(CLUSTER_COUNT, result.getClusters().length);
+
+        final double[] logLikelihoods = result.getLogLikelihoods();
+        for (int i = 1; i < logLikelihoods.length; ++i) {
+            // EM never decreases the likelihood
+            assertTrue(logLikelihoods[i] >= logLikelihoods[i - 1] - 1.0E-10);
+        }
+    }
+
+    public void testIsConverged() {
+        assertTrue(Clusterer.isConverged(-10.0, -10.0, 1.0E-5));
+        assertTrue(Clusterer.isConverged(-10.0, -10.0 + 1.0E-5, 1.0E-5));
+        assertFalse(Clusterer.isConverged(-10.0, -10.0 + 1.0E-3, 1.0E-5));
+        // a decrease of the log-likelihood is not convergence
+        assertFalse(Clusterer.isConverged(-10.0, -10.0 - 1.0E-9, 1.0E-5));
+        assertFalse(Clusterer.isConverged(-10.0, -10.0, 0.0));
+    }
+
+    public void testNoEarlyExitForVanishingEpsilon() {
+        final EMResult result = Clusterer.findClusters(pixelAccessor, CLUSTER_COUNT, ITERATION_COUNT, SEED, 0.0);
+
+        assertFalse(result.isConverged());
+        assertEquals(ITERATION_COUNT, result.getIterationCount());
+    }
+
+    public void testMorePartitionsThanPixels() {
+        final PixelAccessor accessor = new ArrayPixelAccessor(createSamples(new Random(5489), 5, 2));
+        final Clusterer clusterer = new Clusterer(accessor, 2, SEED, 8);
+        clusterer.iterate();
+
+        double priorSum = 0.0;
+        for (final EMCluster cluster : clusterer.getClusters()) {
+            priorSum += cluster.getPriorProbability();
+        }
+        assertEquals(1.0, priorSum, 1.0E-10);
+    }
+
+    private static double[][] createSamples(Random random, int pixelCount, int sampleCount) {
+        final double[][] samples = new double[pixelCount][sampleCount];
+
+        for (int i = 0; i < pixelCount; ++i) {
+            // three well separated groups of pixels
+            final double offset = 4.0 * (i % 3);
+            for (int l = 0; l < sampleCount; ++l) {
+                samples[i][l] = offset + random.nextGaussian();
+            }
+        }
+
+        return samples;
+    }
+
+    private static class ArrayPixelAccessor implements PixelAccessor {
+
+        private final double[][] samples;
+
+        private ArrayPixelAccessor(double[][] samples) {
+            this.samples = samples;
+        }
+
+        @Override
+        public double[] addSamples(int i, double[] samples) {
+            for (int l = 0; l < samples.length; ++l) {
+                samples[l] += this.samples[i][l];
+            }
+            return samples;
+        }
+
+        @Override
+        public double[] getSamples(int i, double[] samples) {
+            System.arraycopy(this.samples[i], 0, samples, 0, samples.length);
+            return samples;
+        }
+
+        @Override
+        public int getPixelCount() {
+            return samples.length;
+        }
+
+        @Override
+        public int getSampleCount() {
+            return samples[0].length;
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2011 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+package org.esa.beam.chris.operators.internal;
+
+import junit.framework.TestCase;
+import org.esa.beam.cluster.EMCluster;
+import org.esa.beam.cluster.IndexFilter;
+import org.esa.beam.cluster.ProbabilityCalculator;
+
+import java.util.Random;
+
+/**
+ * Tests for class {@link PosteriorKernel}.
+ *
+ * @author Ralf Quast
+ * @version $Revision$ $Date$
+ * @since BEAM 4.2
+ */
+public class PosteriorKernelTest extends TestCase {
+
+    private static final IndexFilter NO_FILTERING = new IndexFilter() {
+        @Override
+        public boolean accept(int index) {
+            return true;
+        }
+    };
+
+    public void testPosteriorsAreIdenticalToProbabilityCalculator() {
+        final Random random = new Random(5489);
+        final EMCluster[] clusters = createClusters(random, 5, 3);
+
+        final PosteriorKernel kernel = new PosteriorKernel(clusters);
+        final ProbabilityCalculator calculator = Clusterer.createProbabilityCalculator(clusters);
+
+        final int pixelCount = 20;
+        final double[] samples = new double[pixelCount * 3];
+        for (int i = 0; i < samples.length; ++i) {
+            samples[i] = random.nextDouble();
+        }
+        final double[] posteriors = new double[pixelCount * 5];
+        kernel.calculate(samples, pixelCount, posteriors, NO_FILTERING);
+
+        final double[] y = new double[3];
+        final double[] expected = new double[5];
+        for (int p = 0; p < pixelCount; ++p) {
+            System.arraycopy(samples, p * 3, y, 0, 3);
+            calculator.calculate(y, expected);
+
+            for (int k = 0; k < 5; ++k) {
+                assertEquals(expected[k], posteriors[p * 5 + k], 1.0E-10);
+            }
+        }
+    }
+
+    public void testFilteredClustersHaveVanishingPosteriors() {
+        final Random random = new Random(5489);
+        final EMCluster[] clusters = createClusters(random, 4, 2);
+        final PosteriorKernel kernel = new PosteriorKernel(clusters);
+
+        final double[] samples = {0.2, 0.7, 0.9, 0.1};
+        final double[] posteriors = new double[8];
+        kernel.calculate(samples, 2, posteriors, new ExclusiveIndexFilter(new boolean[]{false, true, false, true}));
+
+        for (int p = 0; p < 2; ++p) {
+            assertEquals(0.0, posteriors[p * 4 + 1], 0.0);
+            assertEquals(0.0, posteriors[p * 4 + 3], 0.0);
+            assertEquals(1.0, posteriors[p * 4] + posteriors[p * 4 + 2], 1.0E-10);
+        }
+
+        kernel.calculate(samples, 2, posteriors, new ExclusiveIndexFilter(new boolean[]{true, true, true, true}));
+        for (final double posterior : posteriors) {
+            assertEquals(0.0, posterior, 0.0);
+        }
+    }
+
+    public void testPosteriorsOfDistantPixels() {
+        final Random random = new Random(5489);
+        final EMCluster[] clusters = createClusters(random, 3, 2);
+        final PosteriorKernel kernel = new PosteriorKernel(clusters);
+
+        // all probability densities underflow
+        final double[] samples = {1.0E4, 1.0E4};
+        final double[] posteriors = new double[3];
+        kernel.calculate(samples, 1, posteriors, NO_FILTERING);
+
+        double sum = 0.0;
+        for (final double posterior : posteriors) {
+            assertFalse(Double.isNaN(posterior));
+            sum += posterior;
+        }
+        assertEquals(1.0, sum, 1.0E-10);
+    }
+
+    private static EMCluster[] createClusters(Random random, int clusterCount, int featureCount) {
+        final EMCluster[] clusters = new EMCluster[clusterCount];
+
+        for (int k = 0; k < clusterCount; ++k) {
+            final double[] mean = new double[featureCount];
+            final double[][] covariances = new double[featureCount][featureCount];
+            for (int i = 0; i < featureCount; ++i) {
+                mean[i] = random.nextDouble();
+                covariances[i][i] = 0.01 + 0.1 * random.nextDouble();
+            }
+            clusters[k] = new EMCluster(mean, covariances, 1.0 / clusterCount);
+        }
+
+        return clusters;
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2011 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+package org.esa.beam.chris.operators.internal;
+
+import junit.framework.TestCase;
+import org.esa.beam.cluster.EMCluster;
+import org.esa.beam.cluster.IndexFilter;
+import org.esa.beam.framework.datamodel.Band;
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.framework.datamodel.ProductData;
+
+import java.awt.image.Raster;
+import java.util.Random;
+
+/**
+ * Tests for classes {@link RankedClassOpImage} and {@link ClusterRanking}.
+ *
+ * @author Ralf Quast
+ * @version $Revision$ $Date$
+ * @since BEAM 4.2
+ */
+public class RankedClassOpImageTest extends TestCase {
+
+    public void testClassIndexesAreIdenticalToClassOpImage() {
+        final Random random = new Random(5489);
+        final Product product = createTestProduct(random, 70, 40);
+        final Band[] bands = product.getBands();
+        final EMCluster[] clusters = createClusters(random, 6, bands.length);
+
+        final PosteriorKernel kernel = new PosteriorKernel(clusters);
+        final ClusterRanking ranking = new ClusterRanking(bands, kernel);
+
+        final boolean[][] ignoreFlagsList = {
+                {false, false, false, false, false, false},
+                {true, false, true, false, false, false},
+                {false, true, true, true, true, false},
+                {true, true, true, true, true, true}
+        };
+        for (final boolean[] ignoreFlags : ignoreFlagsList) {
+            final IndexFilter filter = new ExclusiveIndexFilter(ignoreFlags);
+            final Raster expected = ClassOpImage.createImage(bands, kernel, filter).getData();
+            final Raster actual = RankedClassOpImage.createImage(ranking, filter).getData();
+
+            for (int y = 0; y < 40; ++y) {
+                for (int x = 0; x < 70; ++x) {
+                    assertEquals(expected.getSample(x, y, 0), actual.getSample(x, y, 0));
+                }
+            }
+        }
+    }
+
+    public void testClassIndexOfUndefinedPixelIsZero() {
+        final Random random = new Random(5489);
+        final Product product = new Product("Features", "Features", 2, 1);
+        product.addBand("feature_0", ProductData.TYPE_FLOAT32).setRasterData(
+                ProductData.createInstance(new float[]{0.5f, Float.NaN}));
+        product.addBand("feature_1", ProductData.TYPE_FLOAT32).setRasterData(
+                ProductData.createInstance(new float[]{0.5f, 0.5f}));
+        for (final Band band : product.getBands()) {
+            band.setSynthetic(true);
+        }
+        final Band[] bands = product.getBands();
+        final EMCluster[] clusters = createClusters(random, 4, bands.length);
+
+        final PosteriorKernel kernel = new PosteriorKernel(clusters);
+        final ClusterRanking ranking = new ClusterRanking(bands, kernel);
+        final IndexFilter filter = new ExclusiveIndexFilter(new boolean[]{true, false, false, false});
+
+        // the posterior probabilities of the undefined pixel all vanish, so the class op image yields zero
+        final double[] posteriors = new double[4];
+        kernel.calculate(new double[]{Double.NaN, 0.5}, 1, posteriors, filter);
+        for (final double posterior : posteriors) {
+            assertEquals(0.0, posterior, 0.0);
+        }
+
+        final Raster actual = RankedClassOpImage.createImage(ranking, filter).getData();
+        assertTrue(actual.getSample(0, 0, 0) != 0);
+        assertEquals(0, actual.getSample(1, 0, 0));
+    }
+
+    private static Product createTestProduct(Random random, int w, int h) {
+        final Product product = new Product("Features", "Features", w, h);
+
+        for (int i = 0; i < 3; ++i) {
+            final short[] samples = new short[w * h];
+            for (int k = 0; k < samples.length; ++k) {
+                samples[k] = (short) random.nextInt(1000);
+            }
+            final Band band = product.addBand("feature_" + i, ProductData.TYPE_INT16);
+            band.setScalingFactor(1.0 / 1000.0);
+            band.setSynthetic(true);
+            band.setRasterData(ProductData.createInstance(samples));
+        }
+
+        return product;
+    }
+
+    private static EMCluster[] createClusters(Random random, int clusterCount, int featureCount) {
+        final EMCluster[] clusters = new EMCluster[clusterCount];
+
+        for (int k = 0; k < clusterCount; ++k) {
+            final double[] mean = new double[featureCount];
+            final double[][] covariances = new double[featureCount][featureCount];
+            for (int i = 0; i < featureCount; ++i) {
+                mean[i] = random.nextDouble();
+                covariances[i][i] = 0.01 + 0.1 * random.nextDouble();
+            }
+            clusters[k] = new EMCluster(mean, covariances, 1.0 / clusterCount);
+        }
+
+        return clusters;
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2011 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+package org.esa.beam.chris.operators.internal;
+
+import junit.framework.TestCase;
+import org.esa.beam.cluster.EMCluster;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Tests for class {@link ScreeningModel}.
+ *
+ * @author Ralf Quast
+ * @version $Revision$ $Date$
+ * @since BEAM 4.2
+ */
+public class ScreeningModelTest extends TestCase {
+
+    private File file;
+
+    @Override
+    protected void setUp() throws Exception {
+        file = File.createTempFile("screening", ".labels");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        file.delete();
+    }
+
+    public void testWriteAndRead() throws IOException {
+        final String[] featureBandNames = {"brightness_vis", "whiteness_vis"};
+        final EMCluster[] clusters = {
+                new EMCluster(new double[]{0.5, 0.02}, new double[][]{{0.01, 0.001}, {0.001, 0.002}}, 0.25),
+                new EMCluster(new double[]{0.1, 0.05}, new double[][]{{0.03, 0.0}, {0.0, 0.004}}, 0.75)
+        };
+        final boolean[] cloudyFlags = {true, false};
+        final boolean[] ignoreFlags = {false, true};
+
+        new ScreeningModel(featureBandNames, clusters, cloudyFlags, ignoreFlags).write(file);
+        final ScreeningModel model = ScreeningModel.read(file);
+
+        assertEquals("brightness_vis", model.getFeatureBandNames()[0]);
+        assertEquals("whiteness_vis", model.getFeatureBandNames()[1]);
+        assertTrue(model.getCloudyFlags()[0]);
+        assertFalse(model.getCloudyFlags()[1]);
+        assertFalse(model.getIgnoreFlags()[0]);
+        assertTrue(model.getIgnoreFlags()[1]);
+
+        final EMCluster[] actual = model.getClusters();
+        assertEquals(2, actual.length);
+        for (int k = 0; k < 2; ++k) {
+            assertEquals(clusters[k].getPriorProbability(), actual[k].getPriorProbability(), 0.0);
+            for (int i = 0; i < 2; ++i) {
+                assertEquals(clusters[k].getMean()[i], actual[k].getMean()[i], 0.0);
+                assertEquals(clusters[k].getCovariances()[i][i], actual[k].getCovariances()[i][i], 0.0);
+            }
+            // only the variances are stored
+            assertEquals(0.0, actual[k].getCovariances()[0][1], 0.0);
+        }
+    }
+
+    public void testReadInvalidFile() throws IOException {
+        final FileOutputStream fos = new FileOutputStream(file);
+        try {
+            fos.write(new byte[]{1, 2, 3, 4, 5, 6, 7, 8});
+        } finally {
+            fos.close();
+        }
+
+        try {
+            ScreeningModel.read(file);
+            fail();
+        } catch (IOException expected) {
+        }
+    }
+}
@@ -31,7 +31,8 @@ import org.esa.beam.framework.gpf.annotations.TargetProduct;
 import org.esa.beam.util.ProductUtils;
 
 import java.awt.Rectangle;
-import java.text.MessageFormat;
+
+import static org.esa.beam.chris.operators.NoiseReductionSupport.assertValidity;
 
 /**
  * Operator for applying the vertical striping (VS) correction factors calculated by
@@ -137,16 +138,6 @@ public class ApplyDestripingFactorsOp extends Operator {
         }
     }
 
-    private static void assertValidity(Product product) throws OperatorException {
-        try {
-            OpUtils.getAnnotationString(product, ChrisConstants.ATTR_NAME_CHRIS_MODE);
-        } catch (OperatorException e) {
-            throw new OperatorException(MessageFormat.format(
-                    "product ''{0}'' is not a CHRIS product", product.getName()), e);
-        }
-        // todo - add further validation criteria
-    }
-
     public static class Spi extends OperatorSpi {
 
         public Spi() {
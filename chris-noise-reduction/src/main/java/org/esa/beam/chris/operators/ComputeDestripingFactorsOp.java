@@ -40,15 +40,28 @@ import javax.imageio.stream.ImageInputStream;
 import java.awt.Rectangle;
 import java.io.IOException;
 import java.text.MessageFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static java.lang.Math.*;
 
 /**
  * Operator for calculating the vertical striping correction factors for noise
  * due to the CCD elements.
+ * <p/>
+ * The source products are read in strips of rows, but the memory required is
+ * not bounded by the strip size: the edge detection needs the across-track
+ * spectral angle differences of all rows for adjusting its threshold column by
+ * column, so these are kept in memory as 16-bit codes, i.e. 2 bytes for each
+ * pixel of the panorama of all source products.
  *
  * @author Ralf Quast
  * @author Marco Zühlke
@@ -67,6 +80,9 @@ public class ComputeDestripingFactorsOp extends Operator {
     private static final double S1 = -0.12107994955864;
     private static final double S2 = 0.65034734426230;
 
+    // the number of rows read at once when creating the edge mask
+    private static final int STRIP_HEIGHT = 32;
+
     @SourceProducts
     Product[] sourceProducts;
     @TargetProduct
@@ -86,8 +102,9 @@ public class ComputeDestripingFactorsOp extends Operator {
     private transient Band[][] sourceMskBands;
     private transient Band[] targetBands;
     private transient Panorama panorama;
-    private boolean[][] edgeMask;
-    private double[] slitNoiseFactors;
+    private double[][] correctionFactors;
+    // reciprocal slit noise factors, unity if the slit correction is not carried out
+    private double[] slitCorrectionFactors;
 
 
     @Override
@@ -158,8 +175,14 @@ public class ComputeDestripingFactorsOp extends Operator {
 
         panorama = new Panorama(sourceProducts);
         smoother = new LocalRegressionSmoother(new LowessRegressionWeightCalculator(), 2, smoothingOrder, 2);
+        slitCorrectionFactors = new double[panorama.width];
         if (slitCorrection) {
-            slitNoiseFactors = getSlitNoiseFactors(sourceProducts[0]);
+            final double[] slitNoiseFactors = getSlitNoiseFactors(sourceProducts[0]);
+            for (int x = 0; x < panorama.width; ++x) {
+                slitCorrectionFactors[x] = 1.0 / slitNoiseFactors[x];
+            }
+        } else {
+            Arrays.fill(slitCorrectionFactors, 1.0);
         }
 
         targetProduct.setPreferredTileSize(targetProduct.getSceneRasterWidth(), 1);
@@ -169,16 +192,24 @@ public class ComputeDestripingFactorsOp extends Operator {
     public void computeTile(Band band, Tile targetTile, ProgressMonitor pm) throws OperatorException {
         try {
             synchronized (this) {
-                if (edgeMask == null) {
+                if (correctionFactors == null) {
                     pm.beginTask("Computing correction factors...", 100);
-                    edgeMask = createEdgeMask(SubProgressMonitor.create(pm, 90));
+                    final char[] angleCodes = computeSpectralAngleDifferences(SubProgressMonitor.create(pm, 45));
+                    final char thresholdCode = computeEdgeDetectionThreshold(angleCodes,
+                                                                             SubProgressMonitor.create(pm, 5));
+                    correctionFactors = computeCorrectionFactors(angleCodes, thresholdCode,
+                                                                 SubProgressMonitor.create(pm, 50));
                 } else {
-                    pm.beginTask("Computing correction factors...", 10);
+                    pm.beginTask("Computing correction factors...", 1);
                 }
             }
             for (int i = 0; i < targetBands.length; ++i) {
                 if (targetBands[i].equals(band)) {
-                    computeCorrectionFactors(i, targetTile, SubProgressMonitor.create(pm, 10));
+                    final double[] factors = correctionFactors[i];
+                    // combine slit and vertical striping correction into a single correction factor
+                    for (int x = targetTile.getMinX(); x < targetTile.getMinX() + targetTile.getWidth(); ++x) {
+                        targetTile.setSample(x, 0, factors[x] * slitCorrectionFactors[x]);
+                    }
                     return;
                 }
             }
@@ -194,88 +225,141 @@ public class ComputeDestripingFactorsOp extends Operator {
         targetBands = null;
         panorama = null;
         smoother = null;
-        edgeMask = null;
-        slitNoiseFactors = null;
+        correctionFactors = null;
+        slitCorrectionFactors = null;
+    }
+
+    /**
+     * Computes the vertical striping correction factors for all target bands.
+     * The bands are processed in parallel, and the source data of each band
+     * are read exactly once.
+     *
+     * @param angleCodes    the codes of the across-track spectral angle differences.
+     * @param thresholdCode the code of the edge-detection threshold.
+     * @param pm            the {@link ProgressMonitor}.
+     *
+     * @return the correction factors, indexed by band and column.
+     *
+     * @throws OperatorException if an error occurred.
+     */
+    private double[][] computeCorrectionFactors(final char[] angleCodes, final char thresholdCode,
+                                                ProgressMonitor pm) throws OperatorException {
+        final int threadCount = Runtime.getRuntime().availableProcessors();
+        final ExecutorService executorService = Executors.newFixedThreadPool(threadCount);
+        final List<Future<double[]>> futures = new ArrayList<Future<double[]>>(spectralBandCount);
+
+        try {
+            pm.beginTask("Computing correction factors...", spectralBandCount);
+
+            for (int i = 0; i < spectralBandCount; ++i) {
+                final int bandIndex = i;
+                futures.add(executorService.submit(new Callable<double[]>() {
+                    @Override
+                    public double[] call() throws OperatorException {
+                        return computeCorrectionFactors(bandIndex, angleCodes, thresholdCode);
+                    }
+                }));
+            }
+
+            final double[][] factors = new double[spectralBandCount][];
+            for (int i = 0; i < spectralBandCount; ++i) {
+                factors[i] = futures.get(i).get();
+                pm.worked(1);
+            }
+
+            return factors;
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof OperatorException) {
+                throw (OperatorException) cause;
+            }
+            throw new OperatorException(cause);
+        } catch (InterruptedException e) {
+            throw new OperatorException(e);
+        } finally {
+            for (final Future<double[]> future : futures) {
+                future.cancel(true);
+            }
+            executorService.shutdownNow();
+            pm.done();
+        }
     }
 
     /**
      * Computes the vertical striping correction factors for a single target band.
+     * Pixels whose across-track spectral angle difference exceeds the edge-detection
+     * threshold indicate changes in the surface texture or coverage, and are not used.
+     *
+     * @param bandIndex     the band index.
+     * @param angleCodes    the codes of the across-track spectral angle differences.
+     * @param thresholdCode the code of the edge-detection threshold.
      *
-     * @param bandIndex  the band index.
-     * @param targetTile the target raster.
-     * @param pm         the {@link ProgressMonitor}.
+     * @return the correction factors.
      *
      * @throws OperatorException if an error occurred.
      */
-    private void computeCorrectionFactors(int bandIndex, Tile targetTile, ProgressMonitor pm)
+    private double[] computeCorrectionFactors(int bandIndex, char[] angleCodes, char thresholdCode)
             throws OperatorException {
-        pm.beginTask("Computing correction factors...", panorama.height + 5);
-        try {
-            // 1. Accumulate the across-track spatial derivative profile
-            final double[] p = new double[panorama.width];
-            final int[] count = new int[panorama.width];
+        // 1. Accumulate the across-track spatial derivative profile
+        final double[] p = new double[panorama.width];
+        final int[] count = new int[panorama.width];
+        final double[] scanline = new double[panorama.width];
 
-            for (int j = 0; j < sourceProducts.length; ++j) {
-                final Tile rci = getSceneTile(sourceRciBands[bandIndex][j]);
-                final Tile mask = getSceneTile(sourceMskBands[bandIndex][j]);
+        for (int j = 0; j < sourceProducts.length; ++j) {
+            final int productHeight = sourceProducts[j].getSceneRasterHeight();
 
-                for (int y = 0; y < rci.getHeight(); ++y) {
-                    checkForCancellation();
-                    double r1 = getDouble(rci, 0, y);
+            for (int minY = 0; minY < productHeight; minY += STRIP_HEIGHT) {
+                checkForCancellation();
+                final Rectangle rectangle = new Rectangle(0, minY, panorama.width,
+                                                          min(STRIP_HEIGHT, productHeight - minY));
+                final Tile rci = getSourceTile(sourceRciBands[bandIndex][j], rectangle);
+                final Tile mask = getSourceTile(sourceMskBands[bandIndex][j], rectangle);
+
+                final short[] maskSamples = mask.getDataBufferShort();
+                int maskOffset = mask.getScanlineOffset();
 
-                    for (int x = 1; x < rci.getWidth(); ++x) {
-                        final double r2 = getDouble(rci, x, y);
+                for (int y = minY; y < minY + rectangle.height; ++y) {
+                    final int angleOffset = panorama.getIndex(j, y);
+                    getScanline(rci, y, scanline);
 
-                        if (!edgeMask[panorama.getY(j, y)][x] && isValid(mask, x, y) && isValid(mask, x, y)) {
-                            p[x] += log(r2 / r1);
+                    for (int x = 1; x < panorama.width; ++x) {
+                        if (angleCodes[angleOffset + x] <= thresholdCode && maskSamples[maskOffset + x] == 0) {
+                            p[x] += log(scanline[x] / scanline[x - 1]);
                             ++count[x];
                         }
-                        r1 = r2;
                     }
-                    pm.worked(1);
+                    maskOffset += mask.getScanlineStride();
                 }
             }
-            // 2. Compute the average profile
-            for (int x = 1; x < panorama.width; ++x) {
-                if (count[x] > 0) {
-                    p[x] /= count[x];
-                } else {
-                    p[x] = p[x - 1];
-                }
-            }
-            pm.worked(1);
-            // 3. Compute the integrated profile
-            for (int x = 1; x < panorama.width; ++x) {
-                p[x] += p[x - 1];
-            }
-            pm.worked(1);
-            // 4. Smooth the integrated profile to get rid of small-scale variations (noise)
-            final double[] s = new double[panorama.width];
-            smoother.smooth(p, s);
-            pm.worked(1);
-            // 5. Compute the noise profile
-            double meanNoise = 0.0;
-            for (int x = 0; x < panorama.width; ++x) {
-                p[x] -= s[x];
-                meanNoise += p[x];
-            }
-            meanNoise /= panorama.width;
-            for (int x = 0; x < panorama.width; ++x) {
-                p[x] -= meanNoise;
-            }
-            pm.worked(1);
-            // 6. Compute the correction factors
-            for (int x = targetTile.getMinX(); x < targetTile.getMinX() + targetTile.getWidth(); ++x) {
-                setDouble(targetTile, x, 0, exp(-p[x]));
+        }
+        // 2. Compute the average profile
+        for (int x = 1; x < panorama.width; ++x) {
+            if (count[x] > 0) {
+                p[x] /= count[x];
+            } else {
+                p[x] = p[x - 1];
             }
-            pm.worked(1);
-        } finally {
-            pm.done();
         }
-    }
+        // 3. Compute the integrated profile
+        for (int x = 1; x < panorama.width; ++x) {
+            p[x] += p[x - 1];
+        }
+        // 4. Smooth the integrated profile to get rid of small-scale variations (noise)
+        final double[] s = new double[panorama.width];
+        smoother.smooth(p, s);
+        // 5. Compute the noise profile
+        double meanNoise = 0.0;
+        for (int x = 0; x < panorama.width; ++x) {
+            p[x] -= s[x];
+            meanNoise += p[x];
+        }
+        meanNoise /= panorama.width;
+        // 6. Compute the correction factors
+        for (int x = 0; x < panorama.width; ++x) {
+            p[x] = exp(meanNoise - p[x]);
+        }
 
-    private static boolean isValid(Tile mask, int x, int y) {
-        return mask.getSampleInt(x, y) == 0;
+        return p;
     }
 
     private static double[] getSlitNoiseFactors(Product product) throws OperatorException {
@@ -324,112 +408,172 @@ public class ComputeDestripingFactorsOp extends Operator {
     }
 
     /**
-     * Creates the spatio-spectral edge mask for a hyperspectral image.
+     * Computes the across-track spectral angle differences for a hyperspectral
+     * image, which are used for detecting spatio-spectral edges.
+     * <p/>
+     * The source products are read in strips of rows. For each strip the squares
+     * and across-track scalar products of the spectral vectors are accumulated
+     * over all bands, and the resulting angles are stored as 16-bit codes. The
+     * codes of the whole panorama are kept in memory, which requires 2 bytes per
+     * pixel, in addition to two strips of accumulated values. The memory required
+     * does not depend on the number of bands, but grows with the size of the
+     * panorama.
      *
      * @param pm the {@link ProgressMonitor}.
      *
-     * @return the edge mask. The value {@code true} indicates changes in the surface
-     *         texture or coverage.
+     * @return the codes of the across-track spectral angle differences, row-major.
      *
      * @throws OperatorException if an error occurred.
      */
-    private boolean[][] createEdgeMask(ProgressMonitor pm) throws OperatorException {
-        pm.beginTask("Creating edge mask...", spectralBandCount + panorama.width + 2);
+    private char[] computeSpectralAngleDifferences(ProgressMonitor pm) throws OperatorException {
+        int stripCount = 0;
+        for (final Product sourceProduct : sourceProducts) {
+            stripCount += (sourceProduct.getSceneRasterHeight() + STRIP_HEIGHT - 1) / STRIP_HEIGHT;
+        }
+        pm.beginTask("Computing spectral angle differences...", stripCount);
         try {
+            final int w = panorama.width;
+            final int h = panorama.height;
+
+            // across-track spectral angle differences, row-major
+            final char[] sad = new char[w * h];
+            // squares and across-track scalar products of the spectral vectors of a strip, row-major
+            final double[] sqr = new double[w * STRIP_HEIGHT];
+            final double[] sca = new double[w * STRIP_HEIGHT];
+            final double[] scanline = new double[w];
 
-            final double[][] sad = new double[panorama.width][panorama.height];
-            final double[][] sca = new double[panorama.width][panorama.height];
+            for (int i = 0; i < sourceProducts.length; ++i) {
+                final int productHeight = sourceProducts[i].getSceneRasterHeight();
 
-            // 1. Compute the squares and across-track scalar products of the spectral vectors
-            for (final Band[] bands : sourceRciBands) {
-                for (int i = 0; i < bands.length; i++) {
-                    final Tile data = getSceneTile(bands[i]);
+                for (int minY = 0; minY < productHeight; minY += STRIP_HEIGHT) {
+                    final Rectangle rectangle = new Rectangle(0, minY, w, min(STRIP_HEIGHT, productHeight - minY));
+                    Arrays.fill(sqr, 0.0);
+                    Arrays.fill(sca, 0.0);
 
-                    for (int y = 0; y < data.getHeight(); ++y) {
+                    for (final Band[] bands : sourceRciBands) {
                         checkForCancellation();
-                        double r1 = getDouble(data, 0, y);
-                        sad[0][panorama.getY(i, y)] += r1 * r1;
+                        final Tile data = getSourceTile(bands[i], rectangle);
 
-                        for (int x = 1; x < data.getWidth(); ++x) {
-                            final double r2 = getDouble(data, x, y);
+                        for (int y = 0; y < rectangle.height; ++y) {
+                            final int offset = y * w;
+                            getScanline(data, minY + y, scanline);
+                            sqr[offset] += scanline[0] * scanline[0];
 
-                            sca[x][panorama.getY(i, y)] += r2 * r1;
-                            sad[x][panorama.getY(i, y)] += r2 * r2;
-                            r1 = r2;
+                            for (int x = 1; x < w; ++x) {
+                                sca[offset + x] += scanline[x] * scanline[x - 1];
+                                sqr[offset + x] += scanline[x] * scanline[x];
+                            }
                         }
                     }
-                }
-                pm.worked(1);
-            }
-            // 2. Compute the across-track spectral angle differences
-            for (int y = 0; y < panorama.height; ++y) {
-                checkForCancellation();
-                double norm1 = sqrt(sad[0][y]);
-                sad[0][y] = 0.0;
+                    for (int y = 0; y < rectangle.height; ++y) {
+                        final int offset = y * w;
+                        final int sadOffset = panorama.getIndex(i, minY + y);
+                        double norm1 = sqrt(sqr[offset]);
 
-                for (int x = 1; x < panorama.width; ++x) {
-                    final double norm2 = sqrt(sad[x][y]);
+                        for (int x = 1; x < w; ++x) {
+                            final double norm2 = sqrt(sqr[offset + x]);
 
-                    sad[x][y] = acos(sca[x][y] / (norm1 * norm2));
-                    norm1 = norm2;
+                            sad[sadOffset + x] = encodeAngle(sca[offset + x] / (norm1 * norm2));
+                            norm1 = norm2;
+                        }
+                    }
+                    pm.worked(1);
                 }
             }
-            pm.worked(1);
 
-            final int minIndex = (int) (0.60 * panorama.height);
-            final int maxIndex = (int) (0.80 * panorama.height);
+            return sad;
+        } finally {
+            pm.done();
+        }
+    }
+
+    /**
+     * Adjusts the edge-detection threshold to the across-track spectral angle
+     * differences.
+     * <p/>
+     * The threshold is compared with the angle codes instead of the angles. Since
+     * the angles are quantized with a resolution of {@code PI / 65535}, pixels
+     * whose angle is within half a quantization step of the threshold may be
+     * classified differently than with unquantized angles.
+     *
+     * @param sad the codes of the across-track spectral angle differences, row-major.
+     * @param pm  the {@link ProgressMonitor}.
+     *
+     * @return the code of the edge-detection threshold. Pixels with larger codes
+     *         indicate changes in the surface texture or coverage.
+     *
+     * @throws OperatorException if an error occurred.
+     */
+    private char computeEdgeDetectionThreshold(char[] sad, ProgressMonitor pm) throws OperatorException {
+        final int w = panorama.width;
+        final int h = panorama.height;
+
+        pm.beginTask("Adjusting edge-detection threshold...", w);
+        try {
+            final int minIndex = (int) (0.60 * h);
+            final int maxIndex = (int) (0.80 * h);
 
             double minThreshold = 0.0;
             double maxThreshold = 0.0;
 
-            // 3. Adjust the edge-detection threshold
-            for (int x = 1; x < panorama.width; ++x) {
-                final double[] values = Arrays.copyOf(sad[x], panorama.height);
+            final double[] values = new double[h];
+            for (int x = 1; x < w; ++x) {
+                checkForCancellation();
+                for (int y = 0; y < h; ++y) {
+                    values[y] = decodeAngle(sad[y * w + x]);
+                }
                 minThreshold = max(minThreshold, Sorter.nthElement(values, minIndex));
                 maxThreshold = max(maxThreshold, Sorter.nthElement(values, maxIndex));
 
                 pm.worked(1);
             }
             final double threshold = min(max(getEdgeDetectionThreshold(sourceProducts[0]), minThreshold), maxThreshold);
-
-            // 4. Create the edge mask
-            final boolean[][] edgeMask = new boolean[panorama.height][panorama.width];
-            for (int y = 0; y < panorama.height; ++y) {
-                checkForCancellation();
-                for (int x = 1; x < panorama.width; ++x) {
-                    if (sad[x][y] > threshold) {
-                        edgeMask[y][x] = true;
-                    }
-                }
-            }
             pm.worked(1);
 
-            return edgeMask;
+            return encodeAngle(cos(threshold));
         } finally {
             pm.done();
         }
     }
 
-    private double getDouble(Tile tile, int x, int y) {
-        if (slitCorrection) {
-            // return the slit-corrected value
-            return tile.getSampleDouble(x, y) / slitNoiseFactors[x];
-        } else {
-            return tile.getSampleDouble(x, y);
+    /**
+     * Encodes the angle whose cosine is given as a 16-bit code.
+     *
+     * @param cos the cosine of the angle. Values exceeding unity due to rounding
+     *            errors and undefined values are mapped to a vanishing angle.
+     *
+     * @return the code of the angle.
+     */
+    static char encodeAngle(double cos) {
+        if (!(cos < 1.0)) {
+            return 0;
         }
+        if (cos <= -1.0) {
+            return Character.MAX_VALUE;
+        }
+        return (char) (acos(cos) * (Character.MAX_VALUE / PI) + 0.5);
     }
 
-    private void setDouble(Tile tile, int x, int y, double v) {
-        if (slitCorrection) {
-            // combine slit and vertical striping correction into a single correction factor
-            tile.setSample(x, y, v / slitNoiseFactors[x]);
-        } else {
-            tile.setSample(x, y, v);
-        }
+    static double decodeAngle(char code) {
+        return code * (PI / Character.MAX_VALUE);
     }
 
-    private Tile getSceneTile(Band band) throws OperatorException {
-        return getSourceTile(band, new Rectangle(0, 0, band.getSceneRasterWidth(), band.getSceneRasterHeight()));
+    /**
+     * Reads a full scanline of slit-corrected radiances from a radiance tile.
+     * The raw samples are read, because the spectral angles and the across-track
+     * radiance ratios do not depend on the scaling factor of the radiance bands.
+     *
+     * @param tile     the radiance tile.
+     * @param y        the y coordinate of the scanline.
+     * @param scanline the slit-corrected radiances (overwritten on output).
+     */
+    private void getScanline(Tile tile, int y, double[] scanline) {
+        final int[] samples = tile.getDataBufferInt();
+        final int offset = tile.getScanlineOffset() + (y - tile.getMinY()) * tile.getScanlineStride();
+
+        for (int x = 0; x < scanline.length; ++x) {
+            scanline[x] = samples[offset + x] * slitCorrectionFactors[x];
+        }
     }
 
     private static double getEdgeDetectionThreshold(Product product) throws OperatorException {
@@ -498,33 +642,42 @@ public class ComputeDestripingFactorsOp extends Operator {
 
 
     /**
-     * Image panorama.
+     * Image panorama, i.e. the images of an acquisition set concatenated along
+     * track.
      */
     private static class Panorama {
 
-        public int width;
-        public int height;
-        private Rectangle[] rectangles;
+        public final int width;
+        public final int height;
+        // the panorama row of the first row of each image
+        private final int[] minY;
 
         public Panorama(Product[] products) throws OperatorException {
             width = products[0].getSceneRasterWidth();
+            minY = new int[products.length];
 
-            for (Product product : products) {
-                if (width != product.getSceneRasterWidth()) {
+            int y = 0;
+            for (int i = 0; i < products.length; ++i) {
+                if (width != products[i].getSceneRasterWidth()) {
                     throw new OperatorException("Input products do have inconsistent raster widths");
                 }
-                height += product.getSceneRasterHeight();
-            }
-
-            rectangles = new Rectangle[products.length];
-
-            for (int i = 0, y = 0; i < products.length; ++i) {
-                rectangles[i] = new Rectangle(0, y, width, y += products[i].getSceneRasterHeight());
+                minY[i] = y;
+                y += products[i].getSceneRasterHeight();
             }
+            height = y;
         }
 
-        public final int getY(int i, int y) {
-            return rectangles[i].y + y;
+        /**
+         * Returns the row-major panorama pixel index of the first pixel in a row
+         * of an image.
+         *
+         * @param i the image index.
+         * @param y the row of the image.
+         *
+         * @return the pixel index.
+         */
+        public final int getIndex(int i, int y) {
+            return (minY[i] + y) * width;
         }
     }
 }
@@ -21,7 +21,6 @@ import org.esa.beam.chris.util.OpUtils;
 import org.esa.beam.dataio.chris.ChrisConstants;
 import org.esa.beam.dataio.chris.internal.DropoutCorrection;
 import org.esa.beam.framework.datamodel.Band;
-import org.esa.beam.framework.datamodel.FlagCoding;
 import org.esa.beam.framework.datamodel.Product;
 import org.esa.beam.framework.gpf.Operator;
 import org.esa.beam.framework.gpf.OperatorException;
@@ -31,14 +30,18 @@ import org.esa.beam.framework.gpf.annotations.OperatorMetadata;
 import org.esa.beam.framework.gpf.annotations.Parameter;
 import org.esa.beam.framework.gpf.annotations.SourceProduct;
 import org.esa.beam.framework.gpf.annotations.TargetProduct;
-import org.esa.beam.util.ProductUtils;
 
 import java.awt.Rectangle;
-import java.text.MessageFormat;
 import java.util.Map;
 
 import static java.lang.Math.max;
 import static java.lang.Math.min;
+import static org.esa.beam.chris.operators.NoiseReductionSupport.assertValidity;
+import static org.esa.beam.chris.operators.NoiseReductionSupport.completeTargetProduct;
+import static org.esa.beam.chris.operators.NoiseReductionSupport.copyBands;
+import static org.esa.beam.chris.operators.NoiseReductionSupport.createSourceRectangle;
+import static org.esa.beam.chris.operators.NoiseReductionSupport.createTargetProduct;
+import static org.esa.beam.chris.operators.NoiseReductionSupport.getBands;
 
 /**
  * Operator for computing the CHRIS/Proba dropout correction.
@@ -76,50 +79,17 @@ public class CorrectDropoutsOp extends Operator {
     public void initialize() throws OperatorException {
         assertValidity(sourceProduct);
 
-        targetProduct = new Product(sourceProduct.getName(), sourceProduct.getProductType(),
-                                    sourceProduct.getSceneRasterWidth(),
-                                    sourceProduct.getSceneRasterHeight());
-
-        targetProduct.setStartTime(sourceProduct.getStartTime());
-        targetProduct.setEndTime(sourceProduct.getEndTime());
-
-        ProductUtils.copyFlagCodings(sourceProduct, targetProduct);
-        ProductUtils.copyMetadata(sourceProduct.getMetadataRoot(), targetProduct.getMetadataRoot());
+        targetProduct = createTargetProduct(sourceProduct, sourceProduct.getName(), sourceProduct.getProductType());
 
         spectralBandCount = OpUtils.getAnnotationInt(sourceProduct, ChrisConstants.ATTR_NAME_NUMBER_OF_BANDS);
 
-        sourceRciBands = new Band[spectralBandCount];
-        sourceMskBands = new Band[spectralBandCount];
-        targetRciBands = new Band[spectralBandCount];
-        targetMskBands = new Band[spectralBandCount];
-
-        for (int i = 0; i < spectralBandCount; ++i) {
-            final String bandName = new StringBuilder("radiance_").append(i + 1).toString();
-            sourceRciBands[i] = sourceProduct.getBand(bandName);
-
-            if (sourceRciBands[i] == null) {
-                throw new OperatorException(MessageFormat.format("could not find band {0}", bandName));
-            }
-            targetRciBands[i] = ProductUtils.copyBand(bandName, sourceProduct, targetProduct);
-        }
-        for (int i = 0; i < spectralBandCount; ++i) {
-            final String bandName = new StringBuilder("mask_").append(i + 1).toString();
-            sourceMskBands[i] = sourceProduct.getBand(bandName);
+        sourceRciBands = getBands(sourceProduct, "radiance_", spectralBandCount);
+        sourceMskBands = getBands(sourceProduct, "mask_", spectralBandCount);
+        targetRciBands = copyBands(sourceRciBands, sourceProduct, targetProduct);
+        targetMskBands = copyBands(sourceMskBands, sourceProduct, targetProduct);
 
-            if (sourceMskBands[i] == null) {
-                throw new OperatorException(MessageFormat.format("could not find band {0}", bandName));
-            }
-            targetMskBands[i] = ProductUtils.copyBand(bandName, sourceProduct, targetProduct);
-
-            final FlagCoding flagCoding = sourceMskBands[i].getFlagCoding();
-            if (flagCoding != null) {
-                targetMskBands[i].setSampleCoding(targetProduct.getFlagCodingGroup().get(flagCoding.getName()));
-            }
-        }
-        targetProduct.setAutoGrouping(sourceProduct.getAutoGrouping());
-        ProductUtils.copyMasks(sourceProduct, targetProduct);
+        completeTargetProduct(sourceProduct, targetProduct);
         dropoutCorrection = new DropoutCorrection(neighborhoodType);
-        targetProduct.setPreferredTileSize(targetProduct.getSceneRasterWidth(), 16);
     }
 
     @Override
@@ -127,7 +97,9 @@ public class CorrectDropoutsOp extends Operator {
                                  ProgressMonitor pm) throws OperatorException {
         pm.beginTask("computing dropout correction...", spectralBandCount);
         try {
-            final Rectangle sourceRectangle = createSourceRectangle(targetRectangle);
+            final Rectangle sourceRectangle = createSourceRectangle(targetRectangle,
+                                                                    targetProduct.getSceneRasterWidth(),
+                                                                    targetProduct.getSceneRasterHeight());
 
             for (int bandIndex = 0; bandIndex < spectralBandCount; ++bandIndex) {
                 checkForCancellation();
@@ -203,40 +175,6 @@ public class CorrectDropoutsOp extends Operator {
                                   targetScanlineStride);
     }
 
-    private Rectangle createSourceRectangle(Rectangle targetRectangle) {
-        int x = targetRectangle.x;
-        int y = targetRectangle.y;
-        int width = targetRectangle.width;
-        int height = targetRectangle.height;
-
-        if (x > 0) {
-            x -= 1;
-            width += 1;
-        }
-        if (x + width < targetProduct.getSceneRasterWidth()) {
-            width += 1;
-        }
-        if (y > 0) {
-            y -= 1;
-            height += 1;
-        }
-        if (y + height < targetProduct.getSceneRasterHeight()) {
-            height += 1;
-        }
-
-        return new Rectangle(x, y, width, height);
-    }
-
-    private static void assertValidity(Product product) throws OperatorException {
-        try {
-            OpUtils.getAnnotationString(product, ChrisConstants.ATTR_NAME_CHRIS_MODE);
-        } catch (OperatorException e) {
-            throw new OperatorException(MessageFormat.format(
-                    "product ''{0}'' is not a CHRIS product", product.getName()), e);
-        }
-        // todo - add further validation criteria
-    }
-
     public static class Spi extends OperatorSpi {
 
         public Spi() {
@@ -0,0 +1,426 @@
+/*
+ * Copyright (C) 2011 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+package org.esa.beam.chris.operators;
+
+import com.bc.ceres.core.PrintWriterProgressMonitor;
+import com.bc.ceres.core.ProgressMonitor;
+import org.esa.beam.framework.dataio.ProductIO;
+import org.esa.beam.framework.dataio.ProductWriter;
+import org.esa.beam.framework.datamodel.Band;
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.framework.gpf.GPF;
+import org.esa.beam.framework.gpf.OperatorException;
+import org.esa.beam.framework.gpf.OperatorSpi;
+import org.esa.beam.gpf.operators.standard.WriteOp;
+import org.esa.beam.util.io.FileUtils;
+
+import javax.media.jai.TiledImage;
+import java.awt.image.RenderedImage;
+import java.io.File;
+import java.io.IOException;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Performs the noise reduction for many acquisition sets without user
+ * interaction.
+ * <p/>
+ * The destriping factors of an acquisition set are kept in memory and are
+ * written to file only when requested. Acquisition sets are processed
+ * concurrently. The noise-reduced products are computed into memory and
+ * written by a separate bounded pool of threads, so writing a product
+ * overlaps with computing the next product of the same acquisition set. At
+ * most two noise-reduced products of an acquisition set are held in memory,
+ * the one being written and the one being computed.
+ * <p/>
+ * Usage: {@code NoiseReduction [-f <format>] [-t <thread count>] [-w <writer thread count>]
+ * <acquisition set>...},
+ * where an acquisition set is a list of CHRIS product files separated by the
+ * path separator. The noise-reduced products are written next to the source
+ * products.
+ *
+ * @author Ralf Quast
+ * @version $Revision$ $Date$
+ */
+public class NoiseReduction {
+
+    private static final String DEFAULT_FORMAT_NAME = "BEAM-DIMAP";
+
+    private final Map<String, Object> destripingFactorsParameterMap;
+    private final Map<String, Object> dropoutCorrectionParameterMap;
+    private final String targetFormatName;
+    private final int acquisitionSetThreadCount;
+    private final int writerThreadCount;
+
+    /**
+     * Creates a new instance of this class.
+     *
+     * @param destripingFactorsParameterMap the parameter map used for calculating the
+     *                                      destriping factors.
+     * @param dropoutCorrectionParameterMap the parameter map used for calculating the
+     *                                      dropout correction.
+     * @param targetFormatName              the target file format.
+     * @param acquisitionSetThreadCount     the maximum number of acquisition sets
+     *                                      processed concurrently.
+     * @param writerThreadCount             the maximum number of products written
+     *                                      concurrently.
+     */
+    public NoiseReduction(Map<String, Object> destripingFactorsParameterMap,
+                          Map<String, Object> dropoutCorrectionParameterMap,
+                          String targetFormatName,
+                          int acquisitionSetThreadCount,
+                          int writerThreadCount) {
+        if (acquisitionSetThreadCount < 1) {
+            throw new IllegalArgumentException("acquisitionSetThreadCount < 1");
+        }
+        if (writerThreadCount < 1) {
+            throw new IllegalArgumentException("writerThreadCount < 1");
+        }
+        this.destripingFactorsParameterMap = destripingFactorsParameterMap;
+        this.dropoutCorrectionParameterMap = dropoutCorrectionParameterMap;
+        this.targetFormatName = targetFormatName;
+        this.acquisitionSetThreadCount = acquisitionSetThreadCount;
+        this.writerThreadCount = writerThreadCount;
+    }
+
+    public static void main(String[] args) {
+        String formatName = DEFAULT_FORMAT_NAME;
+        int threadCount = Runtime.getRuntime().availableProcessors();
+        int writerThreadCount = 1;
+        int argIndex = 0;
+
+        try {
+            for (; argIndex < args.length && args[argIndex].startsWith("-"); argIndex += 2) {
+                if (argIndex + 1 == args.length) {
+                    exitWithUsage();
+                }
+                if ("-f".equals(args[argIndex])) {
+                    formatName = args[argIndex + 1];
+                } else if ("-t".equals(args[argIndex])) {
+                    threadCount = Integer.parseInt(args[argIndex + 1]);
+                } else if ("-w".equals(args[argIndex])) {
+                    writerThreadCount = Integer.parseInt(args[argIndex + 1]);
+                } else {
+                    exitWithUsage();
+                }
+            }
+        } catch (NumberFormatException e) {
+            exitWithUsage();
+        }
+        if (argIndex == args.length || threadCount < 1 || writerThreadCount < 1) {
+            exitWithUsage();
+        }
+        GPF.getDefaultInstance().getOperatorSpiRegistry().loadOperatorSpis();
+
+        final ProductWriter productWriter = ProductIO.getProductWriter(formatName);
+        if (productWriter == null) {
+            System.err.println("Unknown product format: " + formatName);
+            System.exit(1);
+        }
+        final String extension = productWriter.getWriterPlugIn().getDefaultFileExtensions()[0];
+
+        final List<AcquisitionSet> acquisitionSets = new ArrayList<AcquisitionSet>(args.length - argIndex);
+        for (; argIndex < args.length; ++argIndex) {
+            final String[] paths = args[argIndex].split(File.pathSeparator);
+            final File[] sourceFiles = new File[paths.length];
+            final File[] targetFiles = new File[paths.length];
+            for (int i = 0; i < paths.length; ++i) {
+                sourceFiles[i] = new File(paths[i]);
+                targetFiles[i] = new File(sourceFiles[i].getParentFile(),
+                                          FileUtils.getFilenameWithoutExtension(sourceFiles[i]) + "_NR" + extension);
+            }
+            acquisitionSets.add(new AcquisitionSet(sourceFiles, targetFiles, null));
+        }
+
+        final NoiseReduction noiseReduction = new NoiseReduction(new HashMap<String, Object>(),
+                                                                 new HashMap<String, Object>(),
+                                                                 formatName, threadCount, writerThreadCount);
+        try {
+            noiseReduction.perform(acquisitionSets, new PrintWriterProgressMonitor(System.out));
+        } catch (OperatorException e) {
+            System.err.println(e.getMessage());
+            if (e.getCause() != null) {
+                System.err.println(e.getCause().getMessage());
+            }
+            System.exit(1);
+        }
+    }
+
+    private static void exitWithUsage() {
+        System.err.println("Usage: NoiseReduction [-f <format>] [-t <thread count>] [-w <writer thread count>]"
+                           + " <acquisition set>...");
+        System.err.println("       where an acquisition set is a list of CHRIS product files separated by '"
+                           + File.pathSeparator + "'");
+        System.exit(1);
+    }
+
+    /**
+     * Performs the noise reduction for a number of acquisition sets. When the
+     * noise reduction fails for an acquisition set, the remaining sets are
+     * processed nevertheless.
+     *
+     * @param acquisitionSets the acquisition sets.
+     * @param pm              the progress monitor.
+     *
+     * @throws OperatorException if the noise reduction failed for any acquisition
+     *                           set, or has been cancelled.
+     */
+    public void perform(List<AcquisitionSet> acquisitionSets, final ProgressMonitor pm) throws OperatorException {
+        final ExecutorService executorService = Executors.newFixedThreadPool(acquisitionSetThreadCount);
+        final ExecutorService writerExecutorService = Executors.newFixedThreadPool(writerThreadCount);
+        final List<Future<Object>> futures = new ArrayList<Future<Object>>(acquisitionSets.size());
+
+        try {
+            pm.beginTask("Performing noise reduction...", acquisitionSets.size());
+
+            for (final AcquisitionSet acquisitionSet : acquisitionSets) {
+                futures.add(executorService.submit(new Callable<Object>() {
+                    @Override
+                    public Object call() throws Exception {
+                        perform(acquisitionSet, writerExecutorService, pm);
+                        return null;
+                    }
+                }));
+            }
+
+            Throwable firstFailure = null;
+            int failureCount = 0;
+            for (final Future<Object> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    if (firstFailure == null) {
+                        firstFailure = e.getCause();
+                    }
+                    ++failureCount;
+                }
+                if (pm.isCanceled()) {
+                    throw new OperatorException("Noise reduction has been cancelled.");
+                }
+                pm.worked(1);
+            }
+            if (firstFailure != null) {
+                throw new OperatorException(MessageFormat.format(
+                        "Noise reduction failed for {0} of {1} acquisition sets.", failureCount,
+                        acquisitionSets.size()), firstFailure);
+            }
+        } catch (InterruptedException e) {
+            throw new OperatorException(e);
+        } finally {
+            for (final Future<Object> future : futures) {
+                future.cancel(true);
+            }
+            executorService.shutdownNow();
+            writerExecutorService.shutdownNow();
+            pm.done();
+        }
+    }
+
+    /**
+     * Performs the noise reduction for a single acquisition set. Invoked
+     * concurrently for different acquisition sets.
+     *
+     * @param acquisitionSet        the acquisition set.
+     * @param writerExecutorService the executor service used for writing the
+     *                              noise-reduced products.
+     * @param pm                    the progress monitor, which is used for
+     *                              checking for cancellation only.
+     *
+     * @throws Exception if the noise reduction failed or has been cancelled.
+     */
+    void perform(AcquisitionSet acquisitionSet, ExecutorService writerExecutorService, ProgressMonitor pm)
+            throws Exception {
+        final File[] sourceFiles = acquisitionSet.getSourceFiles();
+        final File[] targetFiles = acquisitionSet.getTargetFiles();
+        final Product[] sourceProducts = new Product[sourceFiles.length];
+        Product destripingFactorsProduct = null;
+        // writes the previous noise-reduced product, while the next one is computed
+        Future<Object> writerFuture = null;
+
+        try {
+            for (int i = 0; i < sourceFiles.length; ++i) {
+                checkForCancellation(pm);
+                sourceProducts[i] = ProductIO.readProduct(sourceFiles[i]);
+                if (sourceProducts[i] == null) {
+                    throw new IOException(MessageFormat.format(
+                            "Cannot read file ''{0}''.", sourceFiles[i]));
+                }
+            }
+            destripingFactorsProduct = GPF.createProduct(
+                    OperatorSpi.getOperatorAlias(ComputeDestripingFactorsOp.class),
+                    destripingFactorsParameterMap,
+                    sourceProducts);
+            if (acquisitionSet.getDestripingFactorsTargetFile() != null) {
+                checkForCancellation(pm);
+                writeProduct(destripingFactorsProduct, acquisitionSet.getDestripingFactorsTargetFile());
+            }
+
+            for (int i = 0; i < sourceFiles.length; ++i) {
+                if (targetFiles[i] != null) {
+                    checkForCancellation(pm);
+
+                    final Map<String, Product> sourceProductMap = new HashMap<String, Product>(5);
+                    sourceProductMap.put("sourceProduct", sourceProducts[i]);
+                    sourceProductMap.put("factorProduct", destripingFactorsProduct);
+
+                    final Product targetProduct = GPF.createProduct(
+                            OperatorSpi.getOperatorAlias(ReduceNoiseOp.class),
+                            dropoutCorrectionParameterMap,
+                            sourceProductMap);
+                    targetProduct.setName(FileUtils.getFilenameWithoutExtension(targetFiles[i]));
+                    try {
+                        computeProduct(targetProduct, pm);
+                    } catch (Exception e) {
+                        targetProduct.dispose();
+                        throw e;
+                    }
+                    // wait for the previous product to be written, so the products held in memory are bounded
+                    if (writerFuture != null) {
+                        getResult(writerFuture);
+                    }
+                    final File targetFile = targetFiles[i];
+                    writerFuture = writerExecutorService.submit(new Callable<Object>() {
+                        @Override
+                        public Object call() throws Exception {
+                            try {
+                                writeProduct(targetProduct, targetFile);
+                            } finally {
+                                targetProduct.dispose();
+                            }
+                            return null;
+                        }
+                    });
+                }
+            }
+            if (writerFuture != null) {
+                getResult(writerFuture);
+            }
+        } finally {
+            if (writerFuture != null) {
+                writerFuture.cancel(true);
+            }
+            if (destripingFactorsProduct != null) {
+                destripingFactorsProduct.dispose();
+            }
+            for (final Product sourceProduct : sourceProducts) {
+                if (sourceProduct != null) {
+                    sourceProduct.dispose();
+                }
+            }
+        }
+    }
+
+    /**
+     * Computes all bands of a product and replaces their source images with
+     * images held in memory, so writing the product does not compute it.
+     *
+     * @param product the product.
+     * @param pm      the progress monitor, which is used for checking for
+     *                cancellation only.
+     *
+     * @throws OperatorException if the computation has been cancelled.
+     */
+    private static void computeProduct(Product product, ProgressMonitor pm) throws OperatorException {
+        for (final Band band : product.getBands()) {
+            checkForCancellation(pm);
+            final RenderedImage sourceImage = band.getSourceImage();
+            final TiledImage image = new TiledImage(sourceImage.getMinX(), sourceImage.getMinY(),
+                                                    sourceImage.getWidth(), sourceImage.getHeight(),
+                                                    sourceImage.getTileGridXOffset(),
+                                                    sourceImage.getTileGridYOffset(),
+                                                    sourceImage.getSampleModel(), sourceImage.getColorModel());
+            image.set(sourceImage);
+            band.setSourceImage(image);
+        }
+    }
+
+    private static void getResult(Future<Object> future) throws Exception {
+        try {
+            future.get();
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw new OperatorException(cause);
+        }
+    }
+
+    private static void checkForCancellation(ProgressMonitor pm) throws OperatorException {
+        if (pm.isCanceled() || Thread.currentThread().isInterrupted()) {
+            throw new OperatorException("Noise reduction has been cancelled.");
+        }
+    }
+
+    private void writeProduct(Product product, File targetFile) {
+        final WriteOp writeOp = new WriteOp(product, targetFile, targetFormatName);
+        writeOp.setWriteEntireTileRows(true);
+        writeOp.writeProduct(ProgressMonitor.NULL);
+    }
+
+    /**
+     * An acquisition set, i.e. CHRIS images of the same target acquired at
+     * different fly-by zenith angles.
+     */
+    public static class AcquisitionSet {
+
+        private final File[] sourceFiles;
+        private final File[] targetFiles;
+        private final File destripingFactorsTargetFile;
+
+        /**
+         * Creates a new acquisition set.
+         *
+         * @param sourceFiles                 the source files. All source products
+         *                                    are used for calculating the destriping
+         *                                    factors.
+         * @param targetFiles                 the target files, one for each source
+         *                                    file. When a target file is {@code null},
+         *                                    no noise reduction is carried out for the
+         *                                    corresponding source product.
+         * @param destripingFactorsTargetFile the target file for storing the destriping
+         *                                    factors, may be {@code null}.
+         */
+        public AcquisitionSet(File[] sourceFiles, File[] targetFiles, File destripingFactorsTargetFile) {
+            if (targetFiles.length != sourceFiles.length) {
+                throw new IllegalArgumentException("targetFiles.length != sourceFiles.length");
+            }
+            this.sourceFiles = sourceFiles.clone();
+            this.targetFiles = targetFiles.clone();
+            this.destripingFactorsTargetFile = destripingFactorsTargetFile;
+        }
+
+        public final File[] getSourceFiles() {
+            return sourceFiles.clone();
+        }
+
+        public final File[] getTargetFiles() {
+            return targetFiles.clone();
+        }
+
+        public final File getDestripingFactorsTargetFile() {
+            return destripingFactorsTargetFile;
+        }
+    }
+}
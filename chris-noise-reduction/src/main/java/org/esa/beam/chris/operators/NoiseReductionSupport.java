@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2011 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+package org.esa.beam.chris.operators;
+
+import org.esa.beam.chris.util.OpUtils;
+import org.esa.beam.dataio.chris.ChrisConstants;
+import org.esa.beam.framework.datamodel.Band;
+import org.esa.beam.framework.datamodel.FlagCoding;
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.framework.gpf.OperatorException;
+import org.esa.beam.util.ProductUtils;
+
+import java.awt.Rectangle;
+import java.text.MessageFormat;
+
+/**
+ * Utility methods shared by the noise reduction operators.
+ *
+ * @author Ralf Quast
+ * @version $Revision$ $Date$
+ */
+final class NoiseReductionSupport {
+
+    private NoiseReductionSupport() {
+    }
+
+    /**
+     * Asserts that a product is a CHRIS product.
+     *
+     * @param product the product.
+     *
+     * @throws OperatorException if the product lacks the CHRIS mode annotation.
+     */
+    static void assertValidity(Product product) throws OperatorException {
+        try {
+            OpUtils.getAnnotationString(product, ChrisConstants.ATTR_NAME_CHRIS_MODE);
+        } catch (OperatorException e) {
+            throw new OperatorException(MessageFormat.format(
+                    "product ''{0}'' is not a CHRIS product", product.getName()), e);
+        }
+    }
+
+    /**
+     * Creates a target product with the dimension, the start and end times,
+     * the flag codings and the metadata of a source product.
+     *
+     * @param sourceProduct the source product.
+     * @param name          the name of the target product.
+     * @param type          the type of the target product.
+     *
+     * @return the target product.
+     */
+    static Product createTargetProduct(Product sourceProduct, String name, String type) {
+        final Product targetProduct = new Product(name, type,
+                                                  sourceProduct.getSceneRasterWidth(),
+                                                  sourceProduct.getSceneRasterHeight());
+
+        targetProduct.setStartTime(sourceProduct.getStartTime());
+        targetProduct.setEndTime(sourceProduct.getEndTime());
+
+        ProductUtils.copyFlagCodings(sourceProduct, targetProduct);
+        ProductUtils.copyMetadata(sourceProduct.getMetadataRoot(), targetProduct.getMetadataRoot());
+
+        return targetProduct;
+    }
+
+    /**
+     * Returns the spectral bands of a product, which are named by a common
+     * prefix followed by the band number.
+     *
+     * @param product   the product.
+     * @param prefix    the prefix of the band names, e.g. {@code "radiance_"}.
+     * @param bandCount the number of spectral bands.
+     *
+     * @return the bands.
+     *
+     * @throws OperatorException if a band could not be found.
+     */
+    static Band[] getBands(Product product, String prefix, int bandCount) throws OperatorException {
+        final Band[] bands = new Band[bandCount];
+
+        for (int i = 0; i < bandCount; ++i) {
+            final String bandName = new StringBuilder(prefix).append(i + 1).toString();
+            bands[i] = product.getBand(bandName);
+
+            if (bands[i] == null) {
+                throw new OperatorException(MessageFormat.format("could not find band {0}", bandName));
+            }
+        }
+
+        return bands;
+    }
+
+    /**
+     * Copies bands from the source product to the target product, including
+     * their flag codings.
+     *
+     * @param sourceBands   the source bands.
+     * @param sourceProduct the source product.
+     * @param targetProduct the target product.
+     *
+     * @return the target bands.
+     */
+    static Band[] copyBands(Band[] sourceBands, Product sourceProduct, Product targetProduct) {
+        final Band[] targetBands = new Band[sourceBands.length];
+
+        for (int i = 0; i < sourceBands.length; ++i) {
+            targetBands[i] = ProductUtils.copyBand(sourceBands[i].getName(), sourceProduct, targetProduct);
+
+            final FlagCoding flagCoding = sourceBands[i].getFlagCoding();
+            if (flagCoding != null) {
+                targetBands[i].setSampleCoding(targetProduct.getFlagCodingGroup().get(flagCoding.getName()));
+            }
+        }
+
+        return targetBands;
+    }
+
+    /**
+     * Copies the auto-grouping and the masks of the source product to the
+     * target product, and sets the preferred tile size of the target product
+     * to tiles spanning the full scene width.
+     *
+     * @param sourceProduct the source product.
+     * @param targetProduct the target product.
+     */
+    static void completeTargetProduct(Product sourceProduct, Product targetProduct) {
+        targetProduct.setAutoGrouping(sourceProduct.getAutoGrouping());
+        ProductUtils.copyMasks(sourceProduct, targetProduct);
+        targetProduct.setPreferredTileSize(targetProduct.getSceneRasterWidth(), 16);
+    }
+
+    /**
+     * Creates the source rectangle required for carrying out the dropout
+     * correction for a target rectangle, i.e. the target rectangle extended
+     * by one pixel in each direction, but clipped to the scene.
+     *
+     * @param targetRectangle the target rectangle.
+     * @param sceneWidth      the scene width.
+     * @param sceneHeight     the scene height.
+     *
+     * @return the source rectangle.
+     */
+    static Rectangle createSourceRectangle(Rectangle targetRectangle, int sceneWidth, int sceneHeight) {
+        int x = targetRectangle.x;
+        int y = targetRectangle.y;
+        int width = targetRectangle.width;
+        int height = targetRectangle.height;
+
+        if (x > 0) {
+            x -= 1;
+            width += 1;
+        }
+        if (x + width < sceneWidth) {
+            width += 1;
+        }
+        if (y > 0) {
+            y -= 1;
+            height += 1;
+        }
+        if (y + height < sceneHeight) {
+            height += 1;
+        }
+
+        return new Rectangle(x, y, width, height);
+    }
+}
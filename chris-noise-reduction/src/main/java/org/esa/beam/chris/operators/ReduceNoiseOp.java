@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2011 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+package org.esa.beam.chris.operators;
+
+import com.bc.ceres.core.Assert;
+import com.bc.ceres.core.ProgressMonitor;
+import org.esa.beam.chris.util.OpUtils;
+import org.esa.beam.dataio.chris.ChrisConstants;
+import org.esa.beam.dataio.chris.internal.DropoutCorrection;
+import org.esa.beam.framework.datamodel.Band;
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.framework.gpf.Operator;
+import org.esa.beam.framework.gpf.OperatorException;
+import org.esa.beam.framework.gpf.OperatorSpi;
+import org.esa.beam.framework.gpf.Tile;
+import org.esa.beam.framework.gpf.annotations.OperatorMetadata;
+import org.esa.beam.framework.gpf.annotations.Parameter;
+import org.esa.beam.framework.gpf.annotations.SourceProduct;
+import org.esa.beam.framework.gpf.annotations.TargetProduct;
+
+import java.awt.Rectangle;
+import java.util.Map;
+
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+import static org.esa.beam.chris.operators.NoiseReductionSupport.assertValidity;
+import static org.esa.beam.chris.operators.NoiseReductionSupport.completeTargetProduct;
+import static org.esa.beam.chris.operators.NoiseReductionSupport.copyBands;
+import static org.esa.beam.chris.operators.NoiseReductionSupport.createSourceRectangle;
+import static org.esa.beam.chris.operators.NoiseReductionSupport.createTargetProduct;
+import static org.esa.beam.chris.operators.NoiseReductionSupport.getBands;
+
+/**
+ * Operator for applying the vertical striping (VS) correction factors calculated
+ * by the {@link ComputeDestripingFactorsOp} and carrying out the dropout correction
+ * in a single pass.
+ * <p/>
+ * The result is the same as when the {@link ApplyDestripingFactorsOp} and the
+ * {@link CorrectDropoutsOp} are chained, but the destriped radiances of each
+ * band are computed only once for each tile stack. The destriped radiances of
+ * the spectral neighbours required for the dropout correction are kept in a
+ * ring buffer while the bands are processed in spectral order.
+ *
+ * @author Ralf Quast
+ * @version $Revision$ $Date$
+ */
+@OperatorMetadata(alias = "chris.ReduceNoise",
+                  version = "1.0",
+                  authors = "Ralf Quast",
+                  copyright = "(c) 2011 by Brockmann Consult",
+                  description = "Applies a precomputed set of destriping factors to a CHRIS/Proba RCI and carries out the dropout correction.")
+public class ReduceNoiseOp extends Operator {
+
+    @SourceProduct(alias = "input")
+    Product sourceProduct;
+    @SourceProduct(alias = "factors")
+    Product factorProduct;
+    @TargetProduct
+    Product targetProduct;
+
+    @Parameter(defaultValue = "5", interval = "[1, 62]")
+    private int neighborBandCount;
+
+    @Parameter(defaultValue = "N4", valueSet = {"N4", "N8"})
+    private DropoutCorrection.Type neighborhoodType;
+
+    private DropoutCorrection dropoutCorrection;
+    private int spectralBandCount;
+
+    private Band[] sourceRciBands;
+    private Band[] sourceMskBands;
+    private Band[] factorBands;
+    private Band[] targetRciBands;
+    private Band[] targetMskBands;
+
+    @Override
+    public void initialize() throws OperatorException {
+        assertValidity(sourceProduct);
+
+        targetProduct = createTargetProduct(sourceProduct, sourceProduct.getName() + "_NR",
+                                            sourceProduct.getProductType() + "_NR");
+        OpUtils.setAnnotationString(targetProduct, ChrisConstants.ATTR_NAME_NOISE_REDUCTION,
+                                    OpUtils.getAnnotationString(factorProduct,
+                                                                ChrisConstants.ATTR_NAME_NOISE_REDUCTION));
+
+        spectralBandCount = OpUtils.getAnnotationInt(sourceProduct, ChrisConstants.ATTR_NAME_NUMBER_OF_BANDS);
+
+        sourceRciBands = getBands(sourceProduct, "radiance_", spectralBandCount);
+        sourceMskBands = getBands(sourceProduct, "mask_", spectralBandCount);
+        factorBands = getBands(factorProduct, "vs_corr_", spectralBandCount);
+        targetRciBands = copyBands(sourceRciBands, sourceProduct, targetProduct);
+        targetMskBands = copyBands(sourceMskBands, sourceProduct, targetProduct);
+
+        completeTargetProduct(sourceProduct, targetProduct);
+        dropoutCorrection = new DropoutCorrection(neighborhoodType);
+    }
+
+    @Override
+    public void computeTileStack(Map<Band, Tile> targetTileMap, Rectangle targetRectangle,
+                                 ProgressMonitor pm) throws OperatorException {
+        pm.beginTask("reducing noise...", spectralBandCount);
+        try {
+            final Rectangle sourceRectangle = createSourceRectangle(targetRectangle,
+                                                                    targetProduct.getSceneRasterWidth(),
+                                                                    targetProduct.getSceneRasterHeight());
+            final int sourcePixelCount = sourceRectangle.width * sourceRectangle.height;
+
+            // ring buffer of destriped radiances and masks, the data of band i are found at index i % length
+            final int bufferLength = min(2 * neighborBandCount + 1, spectralBandCount);
+            final int[][] rciBuffer = new int[bufferLength][sourcePixelCount];
+            final short[][] mskBuffer = new short[bufferLength][sourcePixelCount];
+            // the index of the next band to be destriped
+            int nextBandIndex = 0;
+
+            for (int bandIndex = 0; bandIndex < spectralBandCount; ++bandIndex) {
+                checkForCancellation();
+
+                final int minBandIndex = max(bandIndex - neighborBandCount, 0);
+                final int maxBandIndex = min(bandIndex + neighborBandCount, spectralBandCount - 1);
+
+                for (; nextBandIndex <= maxBandIndex; ++nextBandIndex) {
+                    final int k = nextBandIndex % bufferLength;
+                    destripe(nextBandIndex, sourceRectangle, rciBuffer[k], mskBuffer[k]);
+                }
+
+                final int bandCount = maxBandIndex - minBandIndex + 1;
+                final int[][] sourceRciData = new int[bandCount][];
+                final short[][] sourceMskData = new short[bandCount][];
+
+                sourceRciData[0] = rciBuffer[bandIndex % bufferLength];
+                sourceMskData[0] = mskBuffer[bandIndex % bufferLength];
+
+                for (int i = minBandIndex, j = 1; i <= maxBandIndex; ++i) {
+                    if (i != bandIndex) {
+                        sourceRciData[j] = rciBuffer[i % bufferLength];
+                        sourceMskData[j] = mskBuffer[i % bufferLength];
+                        ++j;
+                    }
+                }
+
+                final Tile targetRciTile = targetTileMap.get(targetRciBands[bandIndex]);
+                final Tile targetMskTile = targetTileMap.get(targetMskBands[bandIndex]);
+
+                final int targetScanlineStride = targetRciTile.getScanlineStride();
+                final int targetScanlineOffset = targetRciTile.getScanlineOffset();
+
+                Assert.state(targetScanlineOffset == targetMskTile.getScanlineOffset());
+                Assert.state(targetScanlineStride == targetMskTile.getScanlineStride());
+
+                dropoutCorrection.compute(sourceRciData, sourceMskData, sourceRectangle, 0, sourceRectangle.width,
+                                          targetRciTile.getDataBufferInt(), targetMskTile.getDataBufferShort(),
+                                          targetRectangle, targetScanlineOffset, targetScanlineStride);
+                pm.worked(1);
+            }
+        } finally {
+            pm.done();
+        }
+    }
+
+    @Override
+    public void dispose() {
+        dropoutCorrection = null;
+        sourceRciBands = null;
+        sourceMskBands = null;
+        factorBands = null;
+        targetRciBands = null;
+        targetMskBands = null;
+    }
+
+    /**
+     * Applies the destriping factors to the radiances of a single band.
+     *
+     * @param bandIndex       the band index.
+     * @param sourceRectangle the source rectangle.
+     * @param rciData         the destriped radiances, stored without any gaps
+     *                        between scanlines (overwritten on output).
+     * @param mskData         the mask data, stored like the radiances
+     *                        (overwritten on output).
+     *
+     * @throws OperatorException if an error occurred.
+     */
+    private void destripe(int bandIndex, Rectangle sourceRectangle, int[] rciData, short[] mskData)
+            throws OperatorException {
+        final Rectangle factorRectangle = new Rectangle(sourceRectangle.x, 0, sourceRectangle.width, 1);
+
+        final Tile rciTile = getSourceTile(sourceRciBands[bandIndex], sourceRectangle);
+        final Tile mskTile = getSourceTile(sourceMskBands[bandIndex], sourceRectangle);
+        final Tile factorTile = getSourceTile(factorBands[bandIndex], factorRectangle);
+
+        final int[] rciSamples = rciTile.getDataBufferInt();
+        final short[] mskSamples = mskTile.getDataBufferShort();
+        final double[] factorSamples = factorTile.getDataBufferDouble();
+
+        final int w = sourceRectangle.width;
+        final int factorOffset = factorTile.getScanlineOffset();
+        int rciOffset = rciTile.getScanlineOffset();
+        int mskOffset = mskTile.getScanlineOffset();
+
+        for (int y = 0, targetIndex = 0; y < sourceRectangle.height; ++y) {
+            for (int x = 0; x < w; ++x) {
+                rciData[targetIndex + x] = (int) (rciSamples[rciOffset + x] * factorSamples[factorOffset + x] + 0.5);
+            }
+            System.arraycopy(mskSamples, mskOffset, mskData, targetIndex, w);
+
+            rciOffset += rciTile.getScanlineStride();
+            mskOffset += mskTile.getScanlineStride();
+            targetIndex += w;
+        }
+    }
+
+    public static class Spi extends OperatorSpi {
+
+        public Spi() {
+            super(ReduceNoiseOp.class);
+        }
+    }
+}
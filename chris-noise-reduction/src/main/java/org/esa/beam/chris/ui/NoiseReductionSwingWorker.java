@@ -21,14 +21,12 @@ import com.bc.ceres.swing.progress.ProgressMonitorSwingWorker;
 import org.esa.beam.framework.dataio.ProductIO;
 import org.esa.beam.framework.datamodel.Product;
 import org.esa.beam.framework.gpf.GPF;
-import org.esa.beam.framework.gpf.OperatorException;
 import org.esa.beam.framework.ui.AppContext;
 import org.esa.beam.gpf.operators.standard.WriteOp;
 import org.esa.beam.util.io.FileUtils;
 
 import java.io.File;
 import java.io.IOException;
-import java.text.MessageFormat;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -110,25 +108,11 @@ class NoiseReductionSwingWorker extends ProgressMonitorSwingWorker<Object, Produ
                                                          destripingFactorsParameterMap,
                                                          destripingFactorsSourceProducts);
 
-            try {
-                WriteOp writeOp = new WriteOp(destripingFactorsProduct, destripingFactorsTargetFile, targetFormatName);
-                writeOp.setWriteEntireTileRows(true);
-                writeOp.writeProduct(new SubProgressMonitor(pm, 50));
-            } finally {
-                destripingFactorsProduct.dispose();
-                for (final Product sourceProduct : destripingFactorsSourceProducts) {
-                    if (!sourceProductTargetFileMap.keySet().contains(sourceProduct)) {
-                        disposeSourceProductIfNotUsedInAppContext(sourceProduct);
-                    }
-                }
-            }
-
-            try {
-                destripingFactorsProduct = ProductIO.readProduct(destripingFactorsTargetFile);
-            } catch (IOException e) {
-                throw new OperatorException(MessageFormat.format(
-                        "Cannot read file ''{0}''.", destripingFactorsTargetFile), e);
-            }
+            // the destriping factors are computed once and kept in memory, so there is no need
+            // to read them from the target file
+            WriteOp writeOp = new WriteOp(destripingFactorsProduct, destripingFactorsTargetFile, targetFormatName);
+            writeOp.setWriteEntireTileRows(true);
+            writeOp.writeProduct(new SubProgressMonitor(pm, 50));
 
             for (final Map.Entry<Product, File> entry : sourceProductTargetFileMap.entrySet()) {
                 final Product sourceProduct = entry.getKey();
@@ -141,6 +125,11 @@ class NoiseReductionSwingWorker extends ProgressMonitorSwingWorker<Object, Produ
             if (destripingFactorsProduct != null) {
                 destripingFactorsProduct.dispose();
             }
+            for (final Product sourceProduct : destripingFactorsSourceProducts) {
+                if (!sourceProductTargetFileMap.keySet().contains(sourceProduct)) {
+                    disposeSourceProductIfNotUsedInAppContext(sourceProduct);
+                }
+            }
             pm.done();
         }
 
@@ -175,22 +164,15 @@ class NoiseReductionSwingWorker extends ProgressMonitorSwingWorker<Object, Produ
         sourceProductMap.put("sourceProduct", sourceProduct);
         sourceProductMap.put("factorProduct", destripingFactorsProduct);
 
-        Product destripedProduct = null;
-
         try {
-            destripedProduct = GPF.createProduct("chris.ApplyDestripingFactors",
-                                                 new HashMap<String, Object>(0),
-                                                 sourceProductMap);
-            final Product dropoutCorrectedProduct = GPF.createProduct("chris.CorrectDropouts",
-                                                                      dropoutCorrectionParameterMap,
-                                                                      destripedProduct);
-
-            dropoutCorrectedProduct.setName(FileUtils.getFilenameWithoutExtension(targetFile));
-            writeProduct(dropoutCorrectedProduct, targetFile, addTargetProductsToAppContext, pm);
+            // destriping and dropout correction are carried out in a single pass
+            final Product noiseReducedProduct = GPF.createProduct("chris.ReduceNoise",
+                                                                  dropoutCorrectionParameterMap,
+                                                                  sourceProductMap);
+
+            noiseReducedProduct.setName(FileUtils.getFilenameWithoutExtension(targetFile));
+            writeProduct(noiseReducedProduct, targetFile, addTargetProductsToAppContext, pm);
         } finally {
-            if (destripedProduct != null) {
-                destripedProduct.dispose();
-            }
             disposeSourceProductIfNotUsedInAppContext(sourceProduct);
         }
     }
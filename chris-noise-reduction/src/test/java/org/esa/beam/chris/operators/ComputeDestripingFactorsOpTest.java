@@ -37,6 +37,39 @@ public class ComputeDestripingFactorsOpTest extends TestCase {
         // assertSlitVsProfileTableIntegrity();
     }
 
+    public void testEncodeAngle() {
+        assertEquals(0, ComputeDestripingFactorsOp.encodeAngle(1.0));
+        assertEquals(0, ComputeDestripingFactorsOp.encodeAngle(1.0 + 1.0E-15));
+        assertEquals(0, ComputeDestripingFactorsOp.encodeAngle(Double.NaN));
+        assertEquals(Character.MAX_VALUE, ComputeDestripingFactorsOp.encodeAngle(-1.0));
+
+        final double tolerance = 0.5 * Math.PI / Character.MAX_VALUE;
+        for (final double angle : new double[]{0.001, 0.05, 0.08, 0.5, 1.5, 3.0}) {
+            final char code = ComputeDestripingFactorsOp.encodeAngle(Math.cos(angle));
+            assertEquals(angle, ComputeDestripingFactorsOp.decodeAngle(code), tolerance);
+        }
+    }
+
+    public void testThresholdCodeComparison() {
+        final double halfStep = 0.5 * Math.PI / Character.MAX_VALUE;
+
+        for (final double threshold : new double[]{0.001, 0.0123, 0.05, 0.08}) {
+            final char thresholdCode = ComputeDestripingFactorsOp.encodeAngle(Math.cos(threshold));
+            final int centerCode = (int) (threshold / (2.0 * halfStep));
+
+            for (int code = centerCode - 3; code <= centerCode + 3; ++code) {
+                final double angle = ComputeDestripingFactorsOp.decodeAngle((char) code);
+                // comparing codes agrees with comparing angles, except within half a step of the threshold
+                if (angle > threshold + halfStep) {
+                    assertTrue(code > thresholdCode);
+                }
+                if (angle < threshold - halfStep) {
+                    assertTrue(code <= thresholdCode);
+                }
+            }
+        }
+    }
+
     private static void assertSlitVsProfileTableIntegrity() throws IOException {
         final InputStream is = ComputeDestripingFactorsOpTest.class.getResourceAsStream("slit-vs-profile.txt");
 
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2011 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+
+package org.esa.beam.chris.operators;
+
+import com.bc.ceres.core.NullProgressMonitor;
+import com.bc.ceres.core.ProgressMonitor;
+import junit.framework.TestCase;
+import org.esa.beam.framework.gpf.OperatorException;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Tests for class {@link NoiseReduction}.
+ *
+ * @author Ralf Quast
+ * @version $Revision$ $Date$
+ */
+public class NoiseReductionTest extends TestCase {
+
+    public void testAllAcquisitionSetsAreProcessed() {
+        final List<NoiseReduction.AcquisitionSet> acquisitionSets = createAcquisitionSets("a", "b", "c", "d");
+        final StubNoiseReduction noiseReduction = new StubNoiseReduction(2);
+
+        noiseReduction.perform(acquisitionSets, ProgressMonitor.NULL);
+
+        assertEquals(4, noiseReduction.getProcessedNames().size());
+    }
+
+    public void testFailuresAreAggregated() {
+        final List<NoiseReduction.AcquisitionSet> acquisitionSets =
+                createAcquisitionSets("a", "fail_b", "c", "fail_d", "e");
+        final StubNoiseReduction noiseReduction = new StubNoiseReduction(2);
+
+        try {
+            noiseReduction.perform(acquisitionSets, ProgressMonitor.NULL);
+            fail();
+        } catch (OperatorException e) {
+            assertEquals("Noise reduction failed for 2 of 5 acquisition sets.", e.getMessage());
+            // the cause is the failure of the first failing set in list order
+            assertTrue(e.getCause() instanceof IOException);
+            assertEquals("fail_b", e.getCause().getMessage());
+        }
+        // a failing set does not stop the processing of the remaining sets
+        assertEquals(5, noiseReduction.getProcessedNames().size());
+    }
+
+    public void testCancellation() {
+        final List<NoiseReduction.AcquisitionSet> acquisitionSets = createAcquisitionSets("a", "b", "c");
+        final StubNoiseReduction noiseReduction = new StubNoiseReduction(1);
+        final ProgressMonitor pm = new NullProgressMonitor();
+        pm.setCanceled(true);
+
+        try {
+            noiseReduction.perform(acquisitionSets, pm);
+            fail();
+        } catch (OperatorException e) {
+            assertEquals("Noise reduction has been cancelled.", e.getMessage());
+        }
+    }
+
+    public void testInvalidThreadCount() {
+        try {
+            new NoiseReduction(new HashMap<String, Object>(), new HashMap<String, Object>(), "BEAM-DIMAP", 0, 1);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            new NoiseReduction(new HashMap<String, Object>(), new HashMap<String, Object>(), "BEAM-DIMAP", 1, 0);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    private static List<NoiseReduction.AcquisitionSet> createAcquisitionSets(String... names) {
+        final List<NoiseReduction.AcquisitionSet> acquisitionSets =
+                new ArrayList<NoiseReduction.AcquisitionSet>(names.length);
+        for (final String name : names) {
+            acquisitionSets.add(new NoiseReduction.AcquisitionSet(new File[]{new File(name)},
+                                                                  new File[]{new File(name + "_NR")}, null));
+        }
+
+        return acquisitionSets;
+    }
+
+    private static class StubNoiseReduction extends NoiseReduction {
+
+        private final Set<String> processedNames = Collections.synchronizedSet(new HashSet<String>());
+
+        private StubNoiseReduction(int acquisitionSetThreadCount) {
+            super(new HashMap<String, Object>(), new HashMap<String, Object>(), "BEAM-DIMAP",
+                  acquisitionSetThreadCount, 1);
+        }
+
+        @Override
+        void perform(AcquisitionSet acquisitionSet, ExecutorService writerExecutorService, ProgressMonitor pm)
+                throws Exception {
+            if (pm.isCanceled()) {
+                throw new OperatorException("Noise reduction has been cancelled.");
+            }
+            final String name = acquisitionSet.getSourceFiles()[0].getName();
+            processedNames.add(name);
+            if (name.startsWith("fail")) {
+                throw new IOException(name);
+            }
+        }
+
+        Set<String> getProcessedNames() {
+            return processedNames;
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2011 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+
+package org.esa.beam.chris.operators;
+
+import junit.framework.TestCase;
+import org.esa.beam.chris.util.OpUtils;
+import org.esa.beam.dataio.chris.ChrisConstants;
+import org.esa.beam.dataio.chris.internal.DropoutCorrection;
+import org.esa.beam.framework.datamodel.Band;
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.framework.datamodel.ProductData;
+import org.esa.beam.framework.gpf.Operator;
+
+import java.awt.image.Raster;
+
+/**
+ * Tests for class {@link ReduceNoiseOp}.
+ *
+ * @author Ralf Quast
+ * @version $Revision$ $Date$
+ */
+public class ReduceNoiseOpTest extends TestCase {
+
+    private static final int W = 5;
+    // more than two tiles of 16 rows, so there are tiles at the top, in the middle and at the bottom
+    private static final int H = 37;
+    private static final int SPECTRAL_BAND_COUNT = 4;
+
+    public void testSameResultAsChainedOperators() {
+        final Product sourceProduct = createSourceProduct();
+        final Product factorProduct = createFactorProduct();
+
+        // the ring buffer holds fewer bands than there are spectral bands
+        assertSameResultAsChainedOperators(sourceProduct, factorProduct, 1, DropoutCorrection.Type.N4);
+        assertSameResultAsChainedOperators(sourceProduct, factorProduct, 1, DropoutCorrection.Type.N8);
+        // the ring buffer holds all spectral bands
+        assertSameResultAsChainedOperators(sourceProduct, factorProduct, 2, DropoutCorrection.Type.N4);
+        assertSameResultAsChainedOperators(sourceProduct, factorProduct, SPECTRAL_BAND_COUNT,
+                                           DropoutCorrection.Type.N4);
+        assertSameResultAsChainedOperators(sourceProduct, factorProduct, SPECTRAL_BAND_COUNT + 3,
+                                           DropoutCorrection.Type.N8);
+    }
+
+    private static void assertSameResultAsChainedOperators(Product sourceProduct, Product factorProduct,
+                                                           int neighborBandCount,
+                                                           DropoutCorrection.Type neighborhoodType) {
+        final Operator applyOp = new ApplyDestripingFactorsOp();
+        applyOp.setSourceProduct("input", sourceProduct);
+        applyOp.setSourceProduct("factors", factorProduct);
+
+        final Operator correctOp = new CorrectDropoutsOp();
+        correctOp.setSourceProduct("input", applyOp.getTargetProduct());
+        correctOp.setParameter("neighborBandCount", neighborBandCount);
+        correctOp.setParameter("neighborhoodType", neighborhoodType);
+
+        final Operator reduceOp = new ReduceNoiseOp();
+        reduceOp.setSourceProduct("input", sourceProduct);
+        reduceOp.setSourceProduct("factors", factorProduct);
+        reduceOp.setParameter("neighborBandCount", neighborBandCount);
+        reduceOp.setParameter("neighborhoodType", neighborhoodType);
+
+        final Product expectedProduct = correctOp.getTargetProduct();
+        final Product actualProduct = reduceOp.getTargetProduct();
+
+        try {
+            for (int i = 1; i <= SPECTRAL_BAND_COUNT; ++i) {
+                assertSameSamples(expectedProduct.getBand("radiance_" + i), actualProduct.getBand("radiance_" + i));
+                assertSameSamples(expectedProduct.getBand("mask_" + i), actualProduct.getBand("mask_" + i));
+            }
+        } finally {
+            reduceOp.dispose();
+            correctOp.dispose();
+            applyOp.dispose();
+        }
+    }
+
+    private static void assertSameSamples(Band expectedBand, Band actualBand) {
+        assertNotNull(expectedBand);
+        assertNotNull(actualBand);
+
+        final Raster expectedData = expectedBand.getSourceImage().getData();
+        final Raster actualData = actualBand.getSourceImage().getData();
+
+        for (int y = 0; y < H; ++y) {
+            for (int x = 0; x < W; ++x) {
+                final String message = actualBand.getName() + " (" + x + ", " + y + ")";
+                assertEquals(message, expectedData.getSample(x, y, 0), actualData.getSample(x, y, 0));
+            }
+        }
+    }
+
+    private static Product createSourceProduct() {
+        final Product product = new Product("RCI", "CHRIS_M1", W, H);
+        OpUtils.setAnnotationString(product, ChrisConstants.ATTR_NAME_CHRIS_MODE, "1");
+        OpUtils.setAnnotationString(product, ChrisConstants.ATTR_NAME_NUMBER_OF_BANDS,
+                                    Integer.toString(SPECTRAL_BAND_COUNT));
+
+        for (int i = 0; i < SPECTRAL_BAND_COUNT; ++i) {
+            final int[] rciData = new int[W * H];
+            final short[] mskData = new short[W * H];
+
+            for (int j = 0; j < W * H; ++j) {
+                // a dropout in every seventh pixel, at different positions in each band
+                if ((j + 3 * i) % 7 == 0) {
+                    mskData[j] = 1;
+                } else {
+                    rciData[j] = 1000 + 100 * i + (31 * j) % 211;
+                }
+            }
+
+            final Band rciBand = product.addBand("radiance_" + (i + 1), ProductData.TYPE_INT32);
+            rciBand.setSynthetic(true);
+            rciBand.setRasterData(ProductData.createInstance(rciData));
+
+            final Band mskBand = product.addBand("mask_" + (i + 1), ProductData.TYPE_INT16);
+            mskBand.setSynthetic(true);
+            mskBand.setRasterData(ProductData.createInstance(mskData));
+        }
+
+        return product;
+    }
+
+    private static Product createFactorProduct() {
+        final Product product = new Product("VSC", "CHRIS_VSC", W, 1);
+        OpUtils.setAnnotationString(product, ChrisConstants.ATTR_NAME_NOISE_REDUCTION, "RCI");
+
+        for (int i = 0; i < SPECTRAL_BAND_COUNT; ++i) {
+            final double[] factors = new double[W];
+            for (int x = 0; x < W; ++x) {
+                factors[x] = 1.0 + 0.01 * ((x + i) % 3 - 1);
+            }
+
+            final Band band = product.addBand("vs_corr_" + (i + 1), ProductData.TYPE_FLOAT64);
+            band.setSynthetic(true);
+            band.setRasterData(ProductData.createInstance(factors));
+        }
+
+        return product;
+    }
+}
@@ -35,8 +35,6 @@ import org.esa.beam.util.ProductUtils;
 
 import java.awt.Rectangle;
 import java.text.MessageFormat;
-import java.util.HashMap;
-import java.util.Map;
 
 import static java.lang.Math.*;
 
@@ -69,13 +67,34 @@ public class ComputeToaReflectancesOp extends Operator {
                description = "If 'true' all radiance bands from the source product are copied to the target product.")
     private boolean copyRadianceBands;
 
-    private transient Map<Band, Band> sourceBandMap;
-    private transient Map<Band, Double> conversionFactorMap;
+    @Parameter(defaultValue = "0",
+               interval = "[0,10000]",
+               label = "Tile width",
+               description = "The preferred tile width in pixels. If zero, the scene width is used.")
+    private int tileWidth;
+    @Parameter(defaultValue = "64",
+               interval = "[0,10000]",
+               label = "Tile height",
+               description = "The preferred tile height in pixels. If zero, the scene height is used.")
+    private int tileHeight;
+
+    @Parameter(defaultValue = "false",
+               label = "Compute reflectances on the fly",
+               description = "If 'true' the reflectances are computed from the radiances whenever they are requested, " +
+                             "instead of being stored in a tile cache of their own.")
+    private boolean virtualBands;
+
+    // reflectance bands, radiance bands, and conversion factors indexed by spectral band index
+    private transient Band[] targetBands;
+    private transient Band[] sourceBands;
+    private transient double[] conversionFactors;
 
     @Override
     public void initialize() throws OperatorException {
-        sourceBandMap = new HashMap<Band, Band>(sourceProduct.getNumBands());
-        conversionFactorMap = new HashMap<Band, Double>(sourceProduct.getNumBands());
+        final int spectralBandCount = getSpectralBandCount(sourceProduct);
+        targetBands = new Band[spectralBandCount];
+        sourceBands = new Band[spectralBandCount];
+        conversionFactors = new double[spectralBandCount];
 
         final double solarZenithAngle = OpUtils.getAnnotationDouble(sourceProduct,
                                                                     ChrisConstants.ATTR_NAME_SOLAR_ZENITH_ANGLE);
@@ -87,6 +106,7 @@ public class ComputeToaReflectancesOp extends Operator {
         targetProduct = new Product("CHRIS_TOA_REFL", type,
                                     sourceProduct.getSceneRasterWidth(),
                                     sourceProduct.getSceneRasterHeight());
+        OpUtils.setPreferredTileSize(targetProduct, tileWidth, tileHeight);
 
         targetProduct.setStartTime(sourceProduct.getStartTime());
         targetProduct.setEndTime(sourceProduct.getEndTime());
@@ -126,8 +146,19 @@ public class ComputeToaReflectancesOp extends Operator {
                 targetProduct.addBand(targetBand);
 
                 final double conversionFactor = PI / (cos(toRadians(solarZenithAngle)) * 1000.0 * solarIrradiance);
-                conversionFactorMap.put(targetBand, conversionFactor);
-                sourceBandMap.put(targetBand, sourceBand);
+                final int index = sourceBand.getSpectralBandIndex();
+                if (index < 0 || targetBands[index] != null) {
+                    throw new OperatorException(MessageFormat.format(
+                            "invalid spectral band index for band ''{0}''", sourceBand.getName()));
+                }
+                // converts radiances directly into raw reflectance samples
+                conversionFactors[index] = conversionFactor / TOA_REFL_SCALING_FACTOR;
+                targetBands[index] = targetBand;
+                sourceBands[index] = sourceBand;
+                if (virtualBands) {
+                    targetBand.setSourceImage(ToaReflectanceOpImage.createImage(sourceBand, conversionFactors[index],
+                                                                                targetProduct.getPreferredTileSize()));
+                }
             } else if (sourceBand.getName().startsWith("mask")) {
                 final Band targetBand = ProductUtils.copyBand(sourceBand.getName(), sourceProduct, targetProduct);
                 final double solarIrradiance = getAverageValue(table,
@@ -152,36 +183,32 @@ public class ComputeToaReflectancesOp extends Operator {
 
         ProductUtils.copyMasks(sourceProduct, targetProduct);
         ProductUtils.copyMetadata(sourceProduct.getMetadataRoot(), targetProduct.getMetadataRoot());
-
-        // DO NOT CHANGE TILE SIZE - IT IS NEEDED FOR PROGRESS MONITORING IN THE CLOUD SCREENING!
-        targetProduct.setPreferredTileSize(32, 32);
     }
 
     @Override
     public void computeTile(Band targetBand, Tile targetTile, ProgressMonitor pm) throws OperatorException {
-        if (sourceBandMap.containsKey(targetBand)) {
-            computeReflectances(targetBand, targetTile, pm);
+        final int index = targetBand.getSpectralBandIndex();
+        if (index >= 0 && index < targetBands.length && targetBands[index] == targetBand) {
+            computeReflectances(index, targetTile, pm);
         }
     }
 
     @Override
     public void dispose() {
-        sourceBandMap.clear();
-        sourceBandMap = null;
-
-        conversionFactorMap.clear();
-        conversionFactorMap = null;
+        targetBands = null;
+        sourceBands = null;
+        conversionFactors = null;
     }
 
-    private void computeReflectances(Band targetBand, Tile targetTile, ProgressMonitor pm) throws OperatorException {
+    private void computeReflectances(int index, Tile targetTile, ProgressMonitor pm) throws OperatorException {
         try {
             pm.beginTask("computing reflectances...", targetTile.getHeight());
 
-            final Band sourceBand = sourceBandMap.get(targetBand);
             final Rectangle targetRectangle = targetTile.getRectangle();
-            final Tile sourceTile = getSourceTile(sourceBand, targetRectangle);
+            final Tile sourceTile = getSourceTile(sourceBands[index], targetRectangle);
 
-            final double conversionFactor = conversionFactorMap.get(targetBand);
+            final double conversionFactor = conversionFactors[index];
+            final int w = targetTile.getWidth();
 
             final int[] sourceSamples = sourceTile.getDataBufferInt();
             final short[] targetSamples = targetTile.getDataBufferShort();
@@ -192,17 +219,10 @@ public class ComputeToaReflectancesOp extends Operator {
             int targetStride = targetTile.getScanlineStride();
 
             for (int y = 0; y < targetTile.getHeight(); ++y) {
-                int sourceIndex = sourceOffset;
-                int targetIndex = targetOffset;
+                checkForCancellation();
 
-                for (int x = 0; x < targetTile.getWidth(); ++x) {
-                    checkForCancellation();
-
-                    targetSamples[targetIndex] = (short) (sourceSamples[sourceIndex] * conversionFactor /
-                                                          TOA_REFL_SCALING_FACTOR + 0.5);
-
-                    ++sourceIndex;
-                    ++targetIndex;
+                for (int x = 0; x < w; ++x) {
+                    targetSamples[targetOffset + x] = (short) (sourceSamples[sourceOffset + x] * conversionFactor + 0.5);
                 }
                 sourceOffset += sourceStride;
                 targetOffset += targetStride;
@@ -214,6 +234,16 @@ public class ComputeToaReflectancesOp extends Operator {
         }
     }
 
+    private static int getSpectralBandCount(Product product) {
+        int count = 0;
+
+        for (final Band band : product.getBands()) {
+            count = Math.max(count, band.getSpectralBandIndex() + 1);
+        }
+
+        return count;
+    }
+
     // todo - move or make an averager class
 
     private static double getAverageValue(double[][] table, double wavelength, double width) {
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2011 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+
+package org.esa.beam.chris.operators;
+
+import org.esa.beam.framework.datamodel.Band;
+import org.esa.beam.jai.BandOpImage;
+
+import javax.media.jai.ComponentSampleModelJAI;
+import javax.media.jai.ImageLayout;
+import javax.media.jai.JAI;
+import javax.media.jai.OpImage;
+import javax.media.jai.PixelAccessor;
+import javax.media.jai.PlanarImage;
+import javax.media.jai.PointOpImage;
+import javax.media.jai.UnpackedImageData;
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+
+/**
+ * TOA reflectance image. Converts the samples of a TOA radiance image into
+ * raw (i.e. scaled) TOA reflectance samples when a tile is requested, so the
+ * reflectances need not be held in a separate product. The tiles of this
+ * image are not stored in the tile cache.
+ *
+ * @author Ralf Quast
+ * @version $Revision$ $Date$
+ */
+class ToaReflectanceOpImage extends PointOpImage {
+
+    private final double conversionFactor;
+
+    /**
+     * Creates the TOA reflectance image.
+     *
+     * @param radianceBand     the TOA radiance band.
+     * @param conversionFactor the factor for converting TOA radiance samples into raw TOA reflectance samples.
+     * @param tileSize         the tile size.
+     *
+     * @return the TOA reflectance image.
+     */
+    static OpImage createImage(Band radianceBand, double conversionFactor, Dimension tileSize) {
+        RenderedImage radianceImage = radianceBand.getSourceImage();
+        if (radianceImage == null) {
+            radianceImage = new BandOpImage(radianceBand);
+            radianceBand.setSourceImage(radianceImage);
+        }
+
+        final int w = radianceBand.getRasterWidth();
+        final int h = radianceBand.getRasterHeight();
+        final int tileW = tileSize.width;
+        final int tileH = tileSize.height;
+
+        final SampleModel sampleModel = new ComponentSampleModelJAI(DataBuffer.TYPE_SHORT, tileW, tileH, 1, tileW,
+                                                                    new int[]{0});
+        final ColorModel colorModel = PlanarImage.createColorModel(sampleModel);
+        final ImageLayout imageLayout = new ImageLayout(0, 0, w, h, 0, 0, tileW, tileH, sampleModel, colorModel);
+
+        return new ToaReflectanceOpImage(radianceImage, imageLayout, conversionFactor);
+    }
+
+    private ToaReflectanceOpImage(RenderedImage radianceImage, ImageLayout imageLayout, double conversionFactor) {
+        // the reflectances are cheap to compute from the radiances, so they are not cached
+        super(radianceImage, imageLayout, new RenderingHints(JAI.KEY_TILE_CACHE, null), true);
+
+        this.conversionFactor = conversionFactor;
+    }
+
+    @Override
+    protected void computeRect(Raster[] sources, WritableRaster target, Rectangle rectangle) {
+        final PixelAccessor sourceAccessor = new PixelAccessor(getSourceImage(0));
+        final UnpackedImageData sourceData = sourceAccessor.getPixels(sources[0], rectangle, DataBuffer.TYPE_INT,
+                                                                      false);
+        final int[] sourcePixels = sourceData.getIntData(0);
+
+        final PixelAccessor targetAccessor = new PixelAccessor(getSampleModel(), getColorModel());
+        final UnpackedImageData targetData = targetAccessor.getPixels(target, rectangle, DataBuffer.TYPE_SHORT, true);
+        final short[] targetPixels = targetData.getShortData(0);
+
+        int sourceLineOffset = sourceData.bandOffsets[0];
+        int targetLineOffset = targetData.bandOffsets[0];
+
+        for (int y = 0; y < rectangle.height; ++y) {
+            int sourcePixelOffset = sourceLineOffset;
+            int targetPixelOffset = targetLineOffset;
+
+            for (int x = 0; x < rectangle.width; ++x) {
+                targetPixels[targetPixelOffset] = (short) (sourcePixels[sourcePixelOffset] * conversionFactor + 0.5);
+
+                sourcePixelOffset += sourceData.pixelStride;
+                targetPixelOffset += targetData.pixelStride;
+            }
+
+            sourceLineOffset += sourceData.lineStride;
+            targetLineOffset += targetData.lineStride;
+        }
+
+        targetAccessor.setPixels(targetData);
+    }
+}
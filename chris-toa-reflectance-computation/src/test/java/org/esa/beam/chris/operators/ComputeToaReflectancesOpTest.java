@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2011 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+
+package org.esa.beam.chris.operators;
+
+import junit.framework.TestCase;
+import org.esa.beam.chris.util.OpUtils;
+import org.esa.beam.dataio.chris.ChrisConstants;
+import org.esa.beam.framework.datamodel.Band;
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.framework.datamodel.ProductData;
+import org.esa.beam.framework.gpf.Operator;
+
+import javax.media.jai.OpImage;
+import java.awt.Dimension;
+import java.awt.image.Raster;
+import java.text.ParseException;
+
+/**
+ * Tests for class {@link ComputeToaReflectancesOp}.
+ *
+ * @author Ralf Quast
+ * @version $Revision$ $Date$
+ */
+public class ComputeToaReflectancesOpTest extends TestCase {
+
+    private static final int W = 4;
+    private static final int H = 7;
+    private static final double[] WAVELENGTHS = {490.0, 560.0, 670.0};
+
+    public void testVirtualBandsEqualComputedBands() throws ParseException {
+        final Product radianceProduct = createRadianceProduct();
+
+        final Product computedProduct = computeReflectances(radianceProduct, false);
+        final Product virtualProduct = computeReflectances(radianceProduct, true);
+
+        for (int i = 1; i <= WAVELENGTHS.length; ++i) {
+            final Band computedBand = computedProduct.getBand("toa_refl_" + i);
+            final Band virtualBand = virtualProduct.getBand("toa_refl_" + i);
+            assertNotNull(computedBand);
+            assertNotNull(virtualBand);
+
+            final Raster computedData = computedBand.getSourceImage().getData();
+            final Raster virtualData = virtualBand.getSourceImage().getData();
+            for (int y = 0; y < H; ++y) {
+                for (int x = 0; x < W; ++x) {
+                    final String message = virtualBand.getName() + " (" + x + ", " + y + ")";
+                    assertEquals(message, computedData.getSample(x, y, 0), virtualData.getSample(x, y, 0));
+                }
+            }
+        }
+    }
+
+    public void testToaReflectanceImageIsNotCached() throws ParseException {
+        final Product radianceProduct = createRadianceProduct();
+        final OpImage image = ToaReflectanceOpImage.createImage(radianceProduct.getBand("radiance_1"), 1.0,
+                                                                new Dimension(W, 3));
+
+        assertNull(image.getTileCache());
+    }
+
+    private static Product computeReflectances(Product radianceProduct, boolean virtualBands) {
+        final Operator op = new ComputeToaReflectancesOp();
+        op.setSourceProduct("source", radianceProduct);
+        // tiles of three rows, so there are several tiles and the last tile is incomplete
+        op.setParameter("tileHeight", 3);
+        op.setParameter("virtualBands", virtualBands);
+
+        return op.getTargetProduct();
+    }
+
+    private static Product createRadianceProduct() throws ParseException {
+        final Product product = new Product("RCI", "CHRIS_M1", W, H);
+        product.setStartTime(ProductData.UTC.parse("21-JUN-2011 10:30:00"));
+        OpUtils.setAnnotationString(product, ChrisConstants.ATTR_NAME_SOLAR_ZENITH_ANGLE, "32.5");
+
+        for (int i = 0; i < WAVELENGTHS.length; ++i) {
+            final int[] radiances = new int[W * H];
+            for (int j = 0; j < radiances.length; ++j) {
+                radiances[j] = 20000 + 1000 * i + 517 * j;
+            }
+
+            final Band band = product.addBand("radiance_" + (i + 1), ProductData.TYPE_INT32);
+            band.setSpectralBandIndex(i);
+            band.setSpectralWavelength((float) WAVELENGTHS[i]);
+            band.setSpectralBandwidth(10.0f);
+            band.setSynthetic(true);
+            band.setRasterData(ProductData.createInstance(radiances));
+        }
+
+        return product;
+    }
+}
@@ -485,6 +485,24 @@ public class OpUtils {
         }
     }
 
+    /**
+     * Sets the preferred tile size of a product. The tile size is limited
+     * to the scene raster size of the product.
+     *
+     * @param product    the product.
+     * @param tileWidth  the preferred tile width. If zero, the scene raster
+     *                   width of the product is used.
+     * @param tileHeight the preferred tile height. If zero, the scene raster
+     *                   height of the product is used.
+     */
+    public static void setPreferredTileSize(Product product, int tileWidth, int tileHeight) {
+        final int w = product.getSceneRasterWidth();
+        final int h = product.getSceneRasterHeight();
+
+        product.setPreferredTileSize(tileWidth > 0 ? Math.min(tileWidth, w) : w,
+                                     tileHeight > 0 ? Math.min(tileHeight, h) : h);
+    }
+
     public static Product createCopy(Product sourceProduct, String name, String type, BandFilter bandFilter) {
         final int w = sourceProduct.getSceneRasterWidth();
         final int h = sourceProduct.getSceneRasterHeight();
@@ -17,7 +17,9 @@
 package org.esa.beam.chris.util;
 
 import junit.framework.TestCase;
+import org.esa.beam.framework.datamodel.Product;
 
+import java.awt.Dimension;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
@@ -34,6 +36,19 @@ import java.util.Scanner;
  */
 public class OpUtilsTest extends TestCase {
 
+    public void testSetPreferredTileSize() {
+        final Product product = new Product("test", "test", 744, 748);
+
+        OpUtils.setPreferredTileSize(product, 0, 64);
+        assertEquals(new Dimension(744, 64), product.getPreferredTileSize());
+
+        OpUtils.setPreferredTileSize(product, 256, 256);
+        assertEquals(new Dimension(256, 256), product.getPreferredTileSize());
+
+        OpUtils.setPreferredTileSize(product, 1000, 0);
+        assertEquals(new Dimension(744, 748), product.getPreferredTileSize());
+    }
+
     public void testThuillierTableIntegrity() throws IOException {
         final InputStream is = OpUtilsTest.class.getResourceAsStream("thuillier.txt");
 